@@ -0,0 +1,129 @@
+/*
+ * This file is part of Vestige.
+ *
+ * Vestige is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Vestige is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Vestige.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.gaellalire.vestige.logback_enhancer.benchmark;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ch.qos.logback.core.util.ExecutorServiceUtil;
+import fr.gaellalire.vestige.core.VestigeCoreContext;
+import fr.gaellalire.vestige.logback_enhancer.LogbackEnhancer;
+
+/**
+ * One deployment of an application, loaded by its own {@link ChurnClassLoader}. It enhances logback and uses its executors like logback does, then returns
+ * without shutting anything down: releasing the executors, their threads and this class loader is left to the weak executors and the vestige reaper. Its
+ * executors are reaped with this class, as with the main class of an application, which is what is collected when logback is shared.
+ * @author Gael Lalire
+ */
+public final class ChurnApplication {
+
+    public static final int SUBMITTED = 0;
+
+    public static final int ELAPSED_NANOS = 1;
+
+    public static final int REJECTED = 2;
+
+    public static final int PERIODIC_RUNS = 3;
+
+    private static final int RESULT_LENGTH = 4;
+
+    private static final long PERIOD_MILLIS = 1;
+
+    // the weak executors only keep commands weakly, locals may be collected before the end of run
+    private static volatile Object[] commands;
+
+    private ChurnApplication() {
+    }
+
+    /**
+     * @param tasks number of tasks submitted to the executor
+     * @param timeoutMillis maximum time to wait for the tasks
+     * @return measures indexed by {@link #SUBMITTED}, {@link #ELAPSED_NANOS}, {@link #REJECTED} and {@link #PERIODIC_RUNS}
+     */
+    public static long[] run(final VestigeCoreContext vestigeCoreContext, final int tasks, final long timeoutMillis) throws Exception {
+        LogbackEnhancer.enhance(vestigeCoreContext).getApplicationReaper().setReapKey(ChurnApplication.class);
+        ExecutorService executorService = ExecutorServiceUtil.newExecutorService();
+        ScheduledExecutorService scheduledExecutorService = ExecutorServiceUtil.newScheduledExecutorService();
+
+        final AtomicLong periodicRuns = new AtomicLong();
+        Runnable periodicCommand = new Runnable() {
+
+            @Override
+            public void run() {
+                periodicRuns.incrementAndGet();
+            }
+        };
+        // never cancelled, it must stop with the application
+        ScheduledFuture<?> periodicFuture = scheduledExecutorService.scheduleAtFixedRate(periodicCommand, 0, PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+
+        final CountDownLatch done = new CountDownLatch(tasks);
+        Runnable command = new Runnable() {
+
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        };
+        commands = new Object[] {periodicCommand, command};
+        long rejected = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < tasks; i++) {
+            boolean submitted = false;
+            while (!submitted) {
+                try {
+                    executorService.execute(command);
+                    submitted = true;
+                } catch (RejectedExecutionException e) {
+                    // the default pool has no queue, wait for a thread
+                    rejected++;
+                    Thread.yield();
+                }
+            }
+        }
+        if (!done.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+            throw new IllegalStateException(done.getCount() + " tasks not run after " + timeoutMillis + " ms");
+        }
+        long elapsed = System.nanoTime() - start;
+
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (periodicRuns.get() == 0) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException("Periodic task not run after " + timeoutMillis + " ms");
+            }
+            Thread.sleep(PERIOD_MILLIS);
+        }
+        if (periodicFuture.isDone()) {
+            throw new IllegalStateException("Periodic task stopped while its command is reachable");
+        }
+
+        commands = null;
+
+        long[] result = new long[RESULT_LENGTH];
+        result[SUBMITTED] = tasks;
+        result[ELAPSED_NANOS] = elapsed;
+        result[REJECTED] = rejected;
+        result[PERIODIC_RUNS] = periodicRuns.get();
+        return result;
+    }
+
+}
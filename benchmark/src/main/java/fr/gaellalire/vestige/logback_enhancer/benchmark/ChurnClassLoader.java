@@ -0,0 +1,97 @@
+/*
+ * This file is part of Vestige.
+ *
+ * Vestige is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Vestige is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Vestige.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.gaellalire.vestige.logback_enhancer.benchmark;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+
+/**
+ * Child first class loader standing for a deployed application: logback, the enhancer and {@link ChurnApplication} are loaded again by each instance, while the
+ * JDK and vestige core classes come from the parent, like in a Vestige JVM. With a shared enhancer, logback and the enhancer come from the parent too, only
+ * the application is loaded again.
+ * @author Gael Lalire
+ */
+public class ChurnClassLoader extends URLClassLoader {
+
+    private static final String[] PARENT_FIRST_PREFIXES = {"java.", "javax.", "sun.", "jdk.", "fr.gaellalire.vestige.core."};
+
+    private static final String[] SHARED_ENHANCER_PREFIXES = {"ch.qos.logback.", "fr.gaellalire.vestige.logback_enhancer."};
+
+    private static final String APPLICATION_PREFIX = ChurnClassLoader.class.getPackage().getName() + ".";
+
+    private final boolean sharedEnhancer;
+
+    public ChurnClassLoader(final URL[] urls, final ClassLoader parent) {
+        this(urls, parent, false);
+    }
+
+    /**
+     * @param sharedEnhancer true to load logback and the enhancer from parent
+     */
+    public ChurnClassLoader(final URL[] urls, final ClassLoader parent, final boolean sharedEnhancer) {
+        super(urls, parent);
+        this.sharedEnhancer = sharedEnhancer;
+    }
+
+    private static boolean startsWith(final String name, final String[] prefixes) {
+        for (String prefix : prefixes) {
+            if (name.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isParentFirst(final String name) {
+        if (startsWith(name, PARENT_FIRST_PREFIXES)) {
+            return true;
+        }
+        return sharedEnhancer && startsWith(name, SHARED_ENHANCER_PREFIXES) && !name.startsWith(APPLICATION_PREFIX);
+    }
+
+    @Override
+    protected Class<?> loadClass(final String name, final boolean resolve) throws ClassNotFoundException {
+        if (isParentFirst(name)) {
+            return super.loadClass(name, resolve);
+        }
+        synchronized (getClassLoadingLock(name)) {
+            Class<?> loadedClass = findLoadedClass(name);
+            if (loadedClass == null) {
+                try {
+                    loadedClass = findClass(name);
+                } catch (ClassNotFoundException e) {
+                    return super.loadClass(name, resolve);
+                }
+            }
+            if (resolve) {
+                resolveClass(loadedClass);
+            }
+            return loadedClass;
+        }
+    }
+
+    @Override
+    public URL getResource(final String name) {
+        URL resource = findResource(name);
+        if (resource == null) {
+            return super.getResource(name);
+        }
+        return resource;
+    }
+
+}
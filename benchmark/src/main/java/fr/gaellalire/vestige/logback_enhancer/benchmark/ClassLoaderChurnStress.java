@@ -0,0 +1,223 @@
+/*
+ * This file is part of Vestige.
+ *
+ * Vestige is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Vestige is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Vestige.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.gaellalire.vestige.logback_enhancer.benchmark;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import fr.gaellalire.vestige.core.VestigeCoreContext;
+import fr.gaellalire.vestige.logback_enhancer.GlobalThreadBudget;
+import fr.gaellalire.vestige.logback_enhancer.SharedScheduler;
+import fr.gaellalire.vestige.logback_enhancer.ThreadAccounting;
+
+/**
+ * Leak and stress test of the weak executors under class loader churn. Each cycle deploys {@link ChurnApplication} in a new {@link ChurnClassLoader} sharing
+ * one {@link VestigeCoreContext}, then drops it and checks that, within the timeout, the class loader is collected and no logback thread is left. A collected
+ * class loader means the enhancer and logback classes, and so the executors built with them, are gone; the thread count means the reaper shut down the JDK
+ * delegates. The throughput of each cycle is reported, it must not degrade as deployments pile up.
+ * <p>
+ * With a shared enhancer, logback and the enhancer are loaded once by the parent class loader and only {@link ChurnApplication} is deployed again. The
+ * executors are then made of shared classes and must be reaped with the application, and the shared state of the enhancer (thread accountings, global
+ * thread budget, shared scheduler references) must come back to its value before the deployment.
+ * <p>
+ * Arguments, all optional: cycles (50), tasks per cycle (10000), timeout in milliseconds (10000), minimum ratio of the last quarter throughput to the first
+ * quarter one (0.5), shared enhancer (false). Executor system properties (vestige.logback.*) apply to each deployment. Exits with status 1 on failure.
+ * @author Gael Lalire
+ */
+public final class ClassLoaderChurnStress {
+
+    private static final int DEFAULT_CYCLES = 50;
+
+    private static final int DEFAULT_TASKS = 10000;
+
+    private static final long DEFAULT_TIMEOUT_MILLIS = 10000;
+
+    private static final double DEFAULT_MIN_THROUGHPUT_RATIO = 0.5;
+
+    private static final long GC_INTERVAL_MILLIS = 50;
+
+    private static final int QUARTER = 4;
+
+    private static final long BYTES_PER_KIB = 1024;
+
+    private static final String LOGBACK_THREAD_PREFIX = "logback-";
+
+    private ClassLoaderChurnStress() {
+    }
+
+    private static URL[] getClassPath() throws MalformedURLException {
+        String[] entries = System.getProperty("java.class.path").split(File.pathSeparator);
+        URL[] urls = new URL[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            urls[i] = new File(entries[i]).toURI().toURL();
+        }
+        return urls;
+    }
+
+    static int countLogbackThreads() {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith(LOGBACK_THREAD_PREFIX)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Kept apart from the cycle loop so that no reference to the class loader survives in the caller frame.
+     */
+    private static long[] deploy(final ClassLoader classLoader, final VestigeCoreContext vestigeCoreContext, final int tasks, final long timeoutMillis)
+            throws Exception {
+        Thread currentThread = Thread.currentThread();
+        ClassLoader contextClassLoader = currentThread.getContextClassLoader();
+        currentThread.setContextClassLoader(classLoader);
+        try {
+            Method run = classLoader.loadClass(ChurnApplication.class.getName()).getMethod("run", VestigeCoreContext.class, int.class, long.class);
+            return (long[]) run.invoke(null, vestigeCoreContext, tasks, timeoutMillis);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw e;
+        } finally {
+            currentThread.setContextClassLoader(contextClassLoader);
+        }
+    }
+
+    /**
+     * @return the thread accountings, the used global thread budget and the shared scheduler references, the state the applications share in the enhancer
+     */
+    static int[] getSharedState() {
+        return new int[] {ThreadAccounting.getInstances().size(), GlobalThreadBudget.getInstance().getUsed(), SharedScheduler.getReferenceCount()};
+    }
+
+    private static boolean isSharedStateLeaked(final int[] baselineSharedState) {
+        return baselineSharedState != null && !Arrays.equals(getSharedState(), baselineSharedState);
+    }
+
+    /**
+     * @param baselineSharedState null if the enhancer is not shared
+     * @return false if the class loader is still reachable at deadline
+     */
+    private static boolean awaitUnloaded(final WeakReference<ClassLoader> classLoaderReference, final int baselineThreads, final int[] baselineSharedState,
+            final long deadline) throws InterruptedException {
+        while (classLoaderReference.get() != null || countLogbackThreads() > baselineThreads || isSharedStateLeaked(baselineSharedState)) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            System.gc();
+            Thread.sleep(GC_INTERVAL_MILLIS);
+        }
+        return true;
+    }
+
+    private static double average(final List<Double> values, final int from, final int to) {
+        double sum = 0;
+        for (int i = from; i < to; i++) {
+            sum += values.get(i);
+        }
+        return sum / (to - from);
+    }
+
+    private static String format(final String format, final Object... args) {
+        return String.format(Locale.ROOT, format, args);
+    }
+
+    public static void main(final String[] args) throws Exception {
+        int cycles = DEFAULT_CYCLES;
+        int tasks = DEFAULT_TASKS;
+        long timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+        double minThroughputRatio = DEFAULT_MIN_THROUGHPUT_RATIO;
+        if (args.length > 0) {
+            cycles = Integer.parseInt(args[0]);
+        }
+        if (args.length > 1) {
+            tasks = Integer.parseInt(args[1]);
+        }
+        if (args.length > 2) {
+            timeoutMillis = Long.parseLong(args[2]);
+        }
+        if (args.length > 3) {
+            minThroughputRatio = Double.parseDouble(args[3]);
+        }
+        boolean sharedEnhancer = false;
+        if (args.length > 4) {
+            sharedEnhancer = Boolean.parseBoolean(args[4]);
+        }
+
+        VestigeCoreContext vestigeCoreContext = VestigeCoreContext.buildDefaultInstance();
+        URL[] classPath = getClassPath();
+        ClassLoader parent = ClassLoaderChurnStress.class.getClassLoader();
+        int baselineThreads = countLogbackThreads();
+        int[] baselineSharedState = null;
+        if (sharedEnhancer) {
+            baselineSharedState = getSharedState();
+        }
+        List<Double> throughputs = new ArrayList<Double>(cycles);
+
+        for (int cycle = 1; cycle <= cycles; cycle++) {
+            ChurnClassLoader classLoader = new ChurnClassLoader(classPath, parent, sharedEnhancer);
+            long[] result = deploy(classLoader, vestigeCoreContext, tasks, timeoutMillis);
+            WeakReference<ClassLoader> classLoaderReference = new WeakReference<ClassLoader>(classLoader);
+            classLoader = null;
+
+            long unloadStart = System.nanoTime();
+            if (!awaitUnloaded(classLoaderReference, baselineThreads, baselineSharedState, System.currentTimeMillis() + timeoutMillis)) {
+                String leaked;
+                if (classLoaderReference.get() != null) {
+                    leaked = "class loader still reachable";
+                } else if (countLogbackThreads() > baselineThreads) {
+                    leaked = (countLogbackThreads() - baselineThreads) + " logback threads still alive";
+                } else {
+                    leaked = "shared state " + Arrays.toString(getSharedState()) + " instead of " + Arrays.toString(baselineSharedState);
+                }
+                System.out.println(format("cycle %d: LEAK, %s after %d ms", cycle, leaked, timeoutMillis));
+                System.exit(1);
+            }
+            long unloadMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - unloadStart);
+
+            double throughput = result[ChurnApplication.SUBMITTED] * (double) TimeUnit.SECONDS.toNanos(1) / result[ChurnApplication.ELAPSED_NANOS];
+            throughputs.add(throughput);
+            long heapUsed = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+            System.out.println(format("cycle %d: %.0f tasks/s, %d rejections retried, %d periodic runs, unloaded in %d ms, heap used %d KiB", cycle, throughput,
+                    result[ChurnApplication.REJECTED], result[ChurnApplication.PERIODIC_RUNS], unloadMillis, heapUsed / BYTES_PER_KIB));
+        }
+
+        int quarter = Math.max(1, cycles / QUARTER);
+        double first = average(throughputs, 0, quarter);
+        double last = average(throughputs, cycles - quarter, cycles);
+        System.out.println(format("%d cycles unloaded, throughput first quarter %.0f tasks/s, last quarter %.0f tasks/s", cycles, first, last));
+        if (last < first * minThroughputRatio) {
+            System.out.println(format("FAILURE, throughput degraded below %.2f of the first quarter", minThroughputRatio));
+            System.exit(1);
+        }
+    }
+
+}
@@ -0,0 +1,77 @@
+/*
+ * This file is part of Vestige.
+ *
+ * Vestige is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Vestige is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Vestige.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.gaellalire.vestige.logback_enhancer.benchmark;
+
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Already completed future, used to measure the cost of the handling wrappers without any executor.
+ * @author Gael Lalire
+ */
+public class DoneFuture<T> implements ScheduledFuture<T> {
+
+    private T value;
+
+    public DoneFuture(final T value) {
+        this.value = value;
+    }
+
+    @Override
+    public boolean cancel(final boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+
+    @Override
+    public boolean isDone() {
+        return true;
+    }
+
+    @Override
+    public T get() {
+        return value;
+    }
+
+    @Override
+    public T get(final long timeout, final TimeUnit unit) {
+        return value;
+    }
+
+    @Override
+    public long getDelay(final TimeUnit unit) {
+        return 0;
+    }
+
+    @Override
+    public int compareTo(final Delayed o) {
+        long diff = -o.getDelay(TimeUnit.NANOSECONDS);
+        if (diff < 0) {
+            return -1;
+        } else if (diff > 0) {
+            return 1;
+        }
+        return 0;
+    }
+
+}
@@ -0,0 +1,206 @@
+/*
+ * This file is part of Vestige.
+ *
+ * Vestige is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Vestige is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Vestige.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.gaellalire.vestige.logback_enhancer.benchmark;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fr.gaellalire.vestige.logback_enhancer.EventDispatcher;
+import fr.gaellalire.vestige.logback_enhancer.WaitStrategy;
+import fr.gaellalire.vestige.logback_enhancer.WeakThreadPoolExecutor;
+
+/**
+ * Compare the hand-off of an event through {@link EventDispatcher} with the {@link ArrayBlockingQueue} and dedicated consumer thread of the logback
+ * AsyncAppender. The throughput benchmarks measure the caller side, run them with <code>-prof gc</code> to check the dispatcher allocates nothing per event,
+ * the latency benchmarks sample the publication alone and the round trip until the consumer has handled the event.
+ * @author Gael Lalire
+ */
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EventDispatcherBenchmark {
+
+    public static final int RING_SIZE = 1024;
+
+    public static final int PRODUCERS = 4;
+
+    /**
+     * @author Gael Lalire
+     */
+    @State(Scope.Benchmark)
+    public static class DispatchState {
+
+        private static final Object EVENT = new Object();
+
+        // JMH injects parameters in public fields
+        @Param({"dispatcherPark", "dispatcherYield", "arrayBlockingQueue"})
+        public String mode;
+
+        private final AtomicLong handled = new AtomicLong();
+
+        private ThreadPoolExecutor threadPoolExecutor;
+
+        private EventDispatcher<EventSlot> dispatcher;
+
+        private BlockingQueue<Object> queue;
+
+        private Thread consumer;
+
+        private final EventDispatcher.EventTranslator<EventSlot, Object> translator = new EventDispatcher.EventTranslator<EventSlot, Object>() {
+
+            @Override
+            public void translateTo(final EventSlot slot, final Object event) {
+                slot.event = event;
+            }
+        };
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            if ("arrayBlockingQueue".equals(mode)) {
+                queue = new ArrayBlockingQueue<Object>(RING_SIZE);
+                consumer = new Thread("consumer") {
+                    @Override
+                    public void run() {
+                        try {
+                            for (;;) {
+                                queue.take();
+                                handled.lazySet(handled.get() + 1);
+                            }
+                        } catch (InterruptedException e) {
+                            // tear down
+                        }
+                    }
+                };
+                consumer.start();
+                return;
+            }
+            threadPoolExecutor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+            threadPoolExecutor.prestartAllCoreThreads();
+            WaitStrategy waitStrategy = WaitStrategy.PARK;
+            if ("dispatcherYield".equals(mode)) {
+                waitStrategy = WaitStrategy.YIELD;
+            }
+            dispatcher = new EventDispatcher<EventSlot>(new WeakThreadPoolExecutor(threadPoolExecutor), RING_SIZE, new EventDispatcher.EventFactory<EventSlot>() {
+
+                @Override
+                public EventSlot newEvent() {
+                    return new EventSlot();
+                }
+            }, new EventDispatcher.EventHandler<EventSlot>() {
+
+                @Override
+                public void onEvent(final EventSlot slot, final boolean endOfBatch) {
+                    slot.event = null;
+                    handled.lazySet(handled.get() + 1);
+                }
+            }, waitStrategy);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws InterruptedException {
+            if (consumer != null) {
+                consumer.interrupt();
+                consumer.join();
+                return;
+            }
+            dispatcher.stop(1, TimeUnit.MINUTES);
+            threadPoolExecutor.shutdown();
+            threadPoolExecutor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+
+        public void publish() throws InterruptedException {
+            if (queue != null) {
+                queue.put(EVENT);
+            } else {
+                dispatcher.publish(translator, EVENT);
+            }
+        }
+
+        /**
+         * Only meaningful with a single producer.
+         */
+        public void roundTrip() throws InterruptedException {
+            long target = handled.get() + 1;
+            publish();
+            while (handled.get() < target) {
+                Thread.yield();
+            }
+        }
+
+    }
+
+    /**
+     * Reusable slot of the ring.
+     * @author Gael Lalire
+     */
+    private static final class EventSlot {
+
+        private Object event;
+
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void publishSingleProducer(final DispatchState dispatchState) throws InterruptedException {
+        dispatchState.publish();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Threads(PRODUCERS)
+    public void publishMultiProducer(final DispatchState dispatchState) throws InterruptedException {
+        dispatchState.publish();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    @Threads(PRODUCERS)
+    public void publishLatency(final DispatchState dispatchState) throws InterruptedException {
+        dispatchState.publish();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public void roundTripLatency(final DispatchState dispatchState) throws InterruptedException {
+        dispatchState.roundTrip();
+    }
+
+}
@@ -0,0 +1,170 @@
+/*
+ * This file is part of Vestige.
+ *
+ * Vestige is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Vestige is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Vestige.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.gaellalire.vestige.logback_enhancer.benchmark;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fr.gaellalire.vestige.logback_enhancer.WeakScheduledThreadPoolExecutor;
+
+/**
+ * Compare a plain {@link ScheduledThreadPoolExecutor} with the same pool wrapped by {@link WeakScheduledThreadPoolExecutor}. The periodic benchmarks schedule then
+ * cancel a task far in the future, so they measure the insert and cancel path of the delay queue plus the handling future.
+ * @author Gael Lalire
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WeakScheduledThreadPoolExecutorBenchmark {
+
+    public static final int POOL_SIZE = 4;
+
+    /**
+     * @author Gael Lalire
+     */
+    @State(Scope.Benchmark)
+    public static class SchedulerState {
+
+        // JMH injects parameters in public fields
+        @Param({"plain", "weak", "weakCached"})
+        public String mode;
+
+        private ScheduledThreadPoolExecutor scheduledThreadPoolExecutor;
+
+        private ScheduledExecutorService scheduledExecutorService;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            scheduledThreadPoolExecutor = new ScheduledThreadPoolExecutor(POOL_SIZE);
+            // cancelled periodic tasks would otherwise accumulate in the delay queue
+            scheduledThreadPoolExecutor.setRemoveOnCancelPolicy(true);
+            scheduledThreadPoolExecutor.prestartAllCoreThreads();
+            if ("weak".equals(mode)) {
+                scheduledExecutorService = new WeakScheduledThreadPoolExecutor(scheduledThreadPoolExecutor);
+            } else if ("weakCached".equals(mode)) {
+                scheduledExecutorService = new WeakScheduledThreadPoolExecutor(scheduledThreadPoolExecutor, true);
+            } else {
+                scheduledExecutorService = scheduledThreadPoolExecutor;
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws InterruptedException {
+            scheduledThreadPoolExecutor.shutdownNow();
+            scheduledThreadPoolExecutor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+
+        public ScheduledExecutorService getScheduledExecutorService() {
+            return scheduledExecutorService;
+        }
+
+    }
+
+    /**
+     * @author Gael Lalire
+     */
+    @State(Scope.Thread)
+    public static class TaskState {
+
+        private Runnable runnable = new Runnable() {
+
+            @Override
+            public void run() {
+            }
+        };
+
+        private Callable<Integer> callable = new Callable<Integer>() {
+
+            @Override
+            public Integer call() {
+                return POOL_SIZE;
+            }
+        };
+
+        private DoneFuture<Integer> doneFuture = new DoneFuture<Integer>(POOL_SIZE);
+
+    }
+
+    @Benchmark
+    public Object scheduleRunnableSingleProducer(final SchedulerState schedulerState, final TaskState taskState) throws InterruptedException, ExecutionException {
+        return schedulerState.getScheduledExecutorService().schedule(taskState.runnable, 0, TimeUnit.NANOSECONDS).get();
+    }
+
+    @Benchmark
+    @Threads(POOL_SIZE)
+    public Object scheduleRunnableMultiProducer(final SchedulerState schedulerState, final TaskState taskState) throws InterruptedException, ExecutionException {
+        return schedulerState.getScheduledExecutorService().schedule(taskState.runnable, 0, TimeUnit.NANOSECONDS).get();
+    }
+
+    @Benchmark
+    public Integer scheduleCallableSingleProducer(final SchedulerState schedulerState, final TaskState taskState) throws InterruptedException, ExecutionException {
+        return schedulerState.getScheduledExecutorService().schedule(taskState.callable, 0, TimeUnit.NANOSECONDS).get();
+    }
+
+    @Benchmark
+    @Threads(POOL_SIZE)
+    public Integer scheduleCallableMultiProducer(final SchedulerState schedulerState, final TaskState taskState) throws InterruptedException, ExecutionException {
+        return schedulerState.getScheduledExecutorService().schedule(taskState.callable, 0, TimeUnit.NANOSECONDS).get();
+    }
+
+    @Benchmark
+    public boolean scheduleAtFixedRateAndCancel(final SchedulerState schedulerState, final TaskState taskState) {
+        return schedulerState.getScheduledExecutorService().scheduleAtFixedRate(taskState.runnable, 1, 1, TimeUnit.HOURS).cancel(false);
+    }
+
+    @Benchmark
+    @Threads(POOL_SIZE)
+    public boolean scheduleAtFixedRateAndCancelMultiProducer(final SchedulerState schedulerState, final TaskState taskState) {
+        return schedulerState.getScheduledExecutorService().scheduleAtFixedRate(taskState.runnable, 1, 1, TimeUnit.HOURS).cancel(false);
+    }
+
+    @Benchmark
+    public boolean scheduleWithFixedDelayAndCancel(final SchedulerState schedulerState, final TaskState taskState) {
+        return schedulerState.getScheduledExecutorService().scheduleWithFixedDelay(taskState.runnable, 1, 1, TimeUnit.HOURS).cancel(false);
+    }
+
+    /**
+     * Cost of the scheduled handling future alone.
+     */
+    @Benchmark
+    public ScheduledFuture<Integer> allocateHandlingScheduleFuture(final TaskState taskState) {
+        return WeakScheduledThreadPoolExecutor.getHandlingScheduleFuture(taskState.doneFuture, taskState.runnable);
+    }
+
+}
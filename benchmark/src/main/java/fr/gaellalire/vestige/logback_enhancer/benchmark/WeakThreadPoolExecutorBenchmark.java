@@ -0,0 +1,242 @@
+/*
+ * This file is part of Vestige.
+ *
+ * Vestige is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Vestige is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Vestige.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.gaellalire.vestige.logback_enhancer.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fr.gaellalire.vestige.core.weak.WeakCallable;
+import fr.gaellalire.vestige.core.weak.WeakRunnable;
+import fr.gaellalire.vestige.logback_enhancer.BatchingExecutorService;
+import fr.gaellalire.vestige.logback_enhancer.OverflowPolicy;
+import fr.gaellalire.vestige.logback_enhancer.RingBufferExecutorService;
+import fr.gaellalire.vestige.logback_enhancer.WaitStrategy;
+import fr.gaellalire.vestige.logback_enhancer.WeakThreadPoolExecutor;
+
+/**
+ * Compare a plain {@link ThreadPoolExecutor} with the same pool wrapped by {@link WeakThreadPoolExecutor}. Run with <code>-prof gc</code> to see the allocation added
+ * by the weak wrapping.
+ * @author Gael Lalire
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WeakThreadPoolExecutorBenchmark {
+
+    public static final int BATCH_SIZE = 64;
+
+    public static final int POOL_SIZE = 4;
+
+    public static final int RING_BUFFER_CAPACITY = 1024;
+
+    /**
+     * @author Gael Lalire
+     */
+    @State(Scope.Benchmark)
+    public static class ExecutorState {
+
+        // JMH injects parameters in public fields
+        @Param({"plain", "weak", "weakCached", "weakBatching", "weakRingBuffer"})
+        public String mode;
+
+        private ThreadPoolExecutor threadPoolExecutor;
+
+        private ExecutorService executorService;
+
+        private RingBufferExecutorService ringBufferExecutorService;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            threadPoolExecutor = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+            threadPoolExecutor.prestartAllCoreThreads();
+            if ("weak".equals(mode)) {
+                executorService = new WeakThreadPoolExecutor(threadPoolExecutor);
+            } else if ("weakCached".equals(mode)) {
+                executorService = new WeakThreadPoolExecutor(threadPoolExecutor, true);
+            } else if ("weakRingBuffer".equals(mode)) {
+                ringBufferExecutorService = new RingBufferExecutorService(Executors.defaultThreadFactory(), POOL_SIZE, RING_BUFFER_CAPACITY, WaitStrategy.YIELD,
+                        OverflowPolicy.BLOCK);
+                executorService = new WeakThreadPoolExecutor(ringBufferExecutorService);
+            } else if ("weakBatching".equals(mode)) {
+                executorService = new WeakThreadPoolExecutor(new BatchingExecutorService(threadPoolExecutor, BATCH_SIZE, 0, POOL_SIZE));
+            } else {
+                executorService = threadPoolExecutor;
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws InterruptedException {
+            if (ringBufferExecutorService != null) {
+                ringBufferExecutorService.shutdown();
+                ringBufferExecutorService.awaitTermination(1, TimeUnit.MINUTES);
+            }
+            threadPoolExecutor.shutdown();
+            threadPoolExecutor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+
+        public ExecutorService getExecutorService() {
+            return executorService;
+        }
+
+    }
+
+    /**
+     * @author Gael Lalire
+     */
+    @State(Scope.Thread)
+    public static class TaskState {
+
+        private Runnable runnable = new Runnable() {
+
+            @Override
+            public void run() {
+            }
+        };
+
+        private Callable<Integer> callable = new Callable<Integer>() {
+
+            @Override
+            public Integer call() {
+                return BATCH_SIZE;
+            }
+        };
+
+        // the weak modes only hold the command weakly, it must stay reachable until the batch is done
+        private final Runnable batchRunnable = new Runnable() {
+
+            @Override
+            public void run() {
+                batchLatch.countDown();
+            }
+        };
+
+        private volatile CountDownLatch batchLatch;
+
+        private List<Callable<Integer>> callables;
+
+        private List<Future<Integer>> doneFutures;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            callables = new ArrayList<Callable<Integer>>(BATCH_SIZE);
+            doneFutures = new ArrayList<Future<Integer>>(BATCH_SIZE);
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                callables.add(callable);
+                doneFutures.add(new DoneFuture<Integer>(i));
+            }
+        }
+
+    }
+
+    private static void executeBatch(final ExecutorService executorService, final TaskState taskState) throws InterruptedException {
+        CountDownLatch countDownLatch = new CountDownLatch(BATCH_SIZE);
+        taskState.batchLatch = countDownLatch;
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            executorService.execute(taskState.batchRunnable);
+        }
+        countDownLatch.await();
+    }
+
+    @Benchmark
+    public void executeSingleProducer(final ExecutorState executorState, final TaskState taskState) throws InterruptedException {
+        executeBatch(executorState.getExecutorService(), taskState);
+    }
+
+    @Benchmark
+    @Threads(POOL_SIZE)
+    public void executeMultiProducer(final ExecutorState executorState, final TaskState taskState) throws InterruptedException {
+        executeBatch(executorState.getExecutorService(), taskState);
+    }
+
+    @Benchmark
+    public Object submitRunnableSingleProducer(final ExecutorState executorState, final TaskState taskState) throws InterruptedException, ExecutionException {
+        return executorState.getExecutorService().submit(taskState.runnable).get();
+    }
+
+    @Benchmark
+    @Threads(POOL_SIZE)
+    public Object submitRunnableMultiProducer(final ExecutorState executorState, final TaskState taskState) throws InterruptedException, ExecutionException {
+        return executorState.getExecutorService().submit(taskState.runnable).get();
+    }
+
+    @Benchmark
+    public Integer submitCallableSingleProducer(final ExecutorState executorState, final TaskState taskState) throws InterruptedException, ExecutionException {
+        return executorState.getExecutorService().submit(taskState.callable).get();
+    }
+
+    @Benchmark
+    @Threads(POOL_SIZE)
+    public Integer submitCallableMultiProducer(final ExecutorState executorState, final TaskState taskState) throws InterruptedException, ExecutionException {
+        return executorState.getExecutorService().submit(taskState.callable).get();
+    }
+
+    @Benchmark
+    public List<Future<Integer>> invokeAll(final ExecutorState executorState, final TaskState taskState) throws InterruptedException {
+        return executorState.getExecutorService().invokeAll(taskState.callables);
+    }
+
+    /**
+     * Cost of the wrapping alone, without any thread handoff.
+     */
+    @Benchmark
+    public Runnable allocateWeakRunnable(final TaskState taskState) {
+        return new WeakRunnable(taskState.runnable);
+    }
+
+    @Benchmark
+    public Callable<Integer> allocateWeakCallable(final TaskState taskState) {
+        return new WeakCallable<Integer>(taskState.callable);
+    }
+
+    @Benchmark
+    public Future<Integer> allocateHandlingFuture(final TaskState taskState) {
+        return WeakThreadPoolExecutor.getHandlingFuture(taskState.doneFutures.get(0), taskState.callable);
+    }
+
+    @Benchmark
+    public List<Future<Integer>> allocateHandlingFutures(final TaskState taskState) {
+        return WeakThreadPoolExecutor.getHandlingFutures(taskState.doneFutures, taskState.callables);
+    }
+
+}
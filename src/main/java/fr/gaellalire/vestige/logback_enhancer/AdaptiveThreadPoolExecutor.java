@@ -0,0 +1,211 @@
+/*
+ * This file is part of Vestige.
+ *
+ * Vestige is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Vestige is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Vestige.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.gaellalire.vestige.logback_enhancer;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link ThreadPoolExecutor} whose core size follows the load. The mean queue wait and the throughput are sampled on task submission, at most once per
+ * interval: the pool grows by one thread while tasks wait longer than the target and the last growth did not lower the throughput, it shrinks by one thread
+ * when tasks barely wait and threads are idle. Core threads are taken from a {@link GlobalThreadBudget} and time out after keepAlive.
+ * @author Gael Lalire
+ */
+public class AdaptiveThreadPoolExecutor extends ThreadPoolExecutor {
+
+    private static final int SHRINK_WAIT_DIVISOR = 4;
+
+    private final int maxCoreSize;
+
+    private final long targetWaitNanos;
+
+    private final long intervalNanos;
+
+    private final GlobalThreadBudget budget;
+
+    private final AtomicLong waitSum = new AtomicLong();
+
+    private final AtomicLong waitCount = new AtomicLong();
+
+    private final AtomicLong nextSampleNanos;
+
+    private final AtomicLong resizeCount = new AtomicLong();
+
+    // released by the budget if this pool is collected before it terminates
+    private final AtomicInteger budgetThreads;
+
+    private final Object resizeLock = new Object();
+
+    // following fields are guarded by resizeLock
+
+    private long lastCompletedTaskCount;
+
+    private long lastSampleNanos;
+
+    // completed tasks per nanosecond, samples are not evenly spaced as they are taken on submission
+    private double lastThroughput;
+
+    private boolean grown;
+
+    private volatile long lastMeanWaitNanos;
+
+    /**
+     * @param maxCoreSize the core size never exceeds it, nor the maximum pool size
+     * @param targetWaitNanos the pool grows while tasks wait longer in the queue
+     * @param intervalNanos minimum time between two resizes
+     */
+    public AdaptiveThreadPoolExecutor(final int maxCoreSize, final int maximumPoolSize, final long keepAliveTime, final TimeUnit unit,
+            final BlockingQueue<Runnable> workQueue, final ThreadFactory threadFactory, final RejectedExecutionHandler handler, final long targetWaitNanos,
+            final long intervalNanos, final GlobalThreadBudget budget) {
+        super(1, Math.max(1, maximumPoolSize), keepAliveTime, unit, workQueue, threadFactory, handler);
+        this.maxCoreSize = Math.max(1, Math.min(maxCoreSize, getMaximumPoolSize()));
+        this.targetWaitNanos = targetWaitNanos;
+        this.intervalNanos = intervalNanos;
+        this.budget = budget;
+        this.budgetThreads = budget.hold(this);
+        this.lastSampleNanos = System.nanoTime();
+        this.nextSampleNanos = new AtomicLong(lastSampleNanos + intervalNanos);
+        budget.acquire();
+        budgetThreads.set(1);
+        if (keepAliveTime > 0) {
+            allowCoreThreadTimeOut(true);
+        }
+    }
+
+    public long getResizeCount() {
+        return resizeCount.get();
+    }
+
+    public long getLastMeanWaitNanos() {
+        return lastMeanWaitNanos;
+    }
+
+    @Override
+    public void execute(final Runnable command) {
+        if (command == null) {
+            throw new NullPointerException();
+        }
+        long now = System.nanoTime();
+        long next = nextSampleNanos.get();
+        if (now - next >= 0 && nextSampleNanos.compareAndSet(next, now + intervalNanos)) {
+            resize(now);
+        }
+        super.execute(new TimestampedRunnable(command, now));
+    }
+
+    @Override
+    protected void beforeExecute(final Thread t, final Runnable r) {
+        if (r instanceof TimestampedRunnable) {
+            waitSum.addAndGet(System.nanoTime() - ((TimestampedRunnable) r).submitNanos);
+            waitCount.incrementAndGet();
+        }
+        super.beforeExecute(t, r);
+    }
+
+    private void resize(final long now) {
+        synchronized (resizeLock) {
+            if (isShutdown()) {
+                return;
+            }
+            long count = waitCount.getAndSet(0);
+            long sum = waitSum.getAndSet(0);
+            long meanWait = 0;
+            if (count != 0) {
+                meanWait = sum / count;
+            }
+            lastMeanWaitNanos = meanWait;
+            long completedTaskCount = getCompletedTaskCount();
+            double throughput = (double) (completedTaskCount - lastCompletedTaskCount) / Math.max(1, now - lastSampleNanos);
+            lastCompletedTaskCount = completedTaskCount;
+            lastSampleNanos = now;
+            int coreSize = getCorePoolSize();
+            boolean wasGrown = grown;
+            grown = false;
+            if (wasGrown && throughput < lastThroughput) {
+                // the last thread did not help, contention
+                shrink(coreSize);
+            } else if (meanWait > targetWaitNanos && !getQueue().isEmpty()) {
+                if (coreSize < maxCoreSize && budget.tryAcquire()) {
+                    budgetThreads.incrementAndGet();
+                    setCorePoolSize(coreSize + 1);
+                    resizeCount.incrementAndGet();
+                    grown = true;
+                    if (isTerminated()) {
+                        // terminated meanwhile, terminated() may have missed this thread
+                        budget.release(budgetThreads.getAndSet(0));
+                    }
+                }
+            } else if (meanWait < targetWaitNanos / SHRINK_WAIT_DIVISOR && getQueue().isEmpty() && getActiveCount() < coreSize - 1) {
+                shrink(coreSize);
+            }
+            lastThroughput = throughput;
+        }
+    }
+
+    private void shrink(final int coreSize) {
+        if (coreSize > 1) {
+            setCorePoolSize(coreSize - 1);
+            resizeCount.incrementAndGet();
+            int threads;
+            do {
+                threads = budgetThreads.get();
+                if (threads == 0) {
+                    // already released by terminated()
+                    return;
+                }
+            } while (!budgetThreads.compareAndSet(threads, threads - 1));
+            budget.release(1);
+        }
+    }
+
+    /**
+     * Called with the lock of the pool, resizeLock must not be taken here.
+     */
+    @Override
+    protected void terminated() {
+        budget.release(budgetThreads.getAndSet(0));
+        super.terminated();
+    }
+
+    /**
+     * @author Gael Lalire
+     */
+    private static final class TimestampedRunnable implements Runnable {
+
+        private final Runnable command;
+
+        private final long submitNanos;
+
+        TimestampedRunnable(final Runnable command, final long submitNanos) {
+            this.command = command;
+            this.submitNanos = submitNanos;
+        }
+
+        @Override
+        public void run() {
+            command.run();
+        }
+
+    }
+
+}
@@ -0,0 +1,89 @@
+/*
+ * This file is part of Vestige.
+ *
+ * Vestige is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Vestige is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Vestige.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.gaellalire.vestige.logback_enhancer;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+
+import ch.qos.logback.core.util.ExecutorServiceFactory;
+
+/**
+ * {@link ExecutorServiceFactory} of several applications sharing the same logback classes. Each application has its own
+ * {@link VestigeExecutorServiceFactory}, chosen with the application of the calling thread. Threads inherit the application of the thread which created
+ * them, logback asks for its executors from the threads of the application.
+ * @author Gael Lalire
+ */
+public class ApplicationExecutorServiceFactory implements ExecutorServiceFactory {
+
+    // String values, an inherited value must not reference enhancer classes
+    private static final InheritableThreadLocal<String> CURRENT_APPLICATION = new InheritableThreadLocal<String>();
+
+    private final ConcurrentMap<String, VestigeExecutorServiceFactory> executorServiceFactories = new ConcurrentHashMap<String, VestigeExecutorServiceFactory>();
+
+    private volatile VestigeExecutorServiceFactory defaultExecutorServiceFactory;
+
+    /**
+     * @param applicationName must be unique, threads of the application are told apart by this name only
+     * @param executorServiceFactory the first one added serves the threads without application
+     */
+    public void addApplication(final String applicationName, final VestigeExecutorServiceFactory executorServiceFactory) {
+        if (executorServiceFactories.putIfAbsent(applicationName, executorServiceFactory) != null) {
+            throw new IllegalArgumentException("Application " + applicationName + " is already added");
+        }
+        synchronized (this) {
+            if (defaultExecutorServiceFactory == null) {
+                defaultExecutorServiceFactory = executorServiceFactory;
+            }
+        }
+    }
+
+    /**
+     * @param applicationName application of the current thread and of the threads it will create
+     */
+    public static void setCurrentApplication(final String applicationName) {
+        CURRENT_APPLICATION.set(applicationName);
+    }
+
+    public static String getCurrentApplication() {
+        return CURRENT_APPLICATION.get();
+    }
+
+    public VestigeExecutorServiceFactory getExecutorServiceFactory() {
+        String applicationName = CURRENT_APPLICATION.get();
+        if (applicationName != null) {
+            VestigeExecutorServiceFactory executorServiceFactory = executorServiceFactories.get(applicationName);
+            if (executorServiceFactory != null) {
+                return executorServiceFactory;
+            }
+        }
+        return defaultExecutorServiceFactory;
+    }
+
+    @Override
+    public ScheduledExecutorService newScheduledExecutorService() {
+        return getExecutorServiceFactory().newScheduledExecutorService();
+    }
+
+    @Override
+    public ExecutorService newExecutorService() {
+        return getExecutorServiceFactory().newExecutorService();
+    }
+
+}
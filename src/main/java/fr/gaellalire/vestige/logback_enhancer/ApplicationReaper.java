@@ -0,0 +1,110 @@
+/*
+ * This file is part of Vestige.
+ *
+ * Vestige is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Vestige is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Vestige.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.gaellalire.vestige.logback_enhancer;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import ch.qos.logback.core.util.ExecutorServiceUtil;
+import fr.gaellalire.vestige.core.weak.ExecutorServiceReaperHelper;
+import fr.gaellalire.vestige.core.weak.ReaperHelper;
+import fr.gaellalire.vestige.core.weak.VestigeReaper;
+
+/**
+ * Registers the reaper helpers of an application. The vestige reaper keeps a helper until the class loader of its key is collected, a helper reaching an
+ * object whose class is loaded by that class loader, or by one of its descendants, would keep it alive forever and is not registered. This is the case of
+ * every enhancer object when the enhancer is loaded with the application, but not when it is shared by the applications from a parent class loader.
+ * @author Gael Lalire
+ */
+public class ApplicationReaper {
+
+    private final VestigeReaper vestigeReaper;
+
+    // weak, an executor factory kept by logback classes shared by the applications must not keep the application loaded
+    private volatile WeakReference<Class<?>> reapKey = new WeakReference<Class<?>>(ExecutorServiceUtil.class);
+
+    public ApplicationReaper(final VestigeReaper vestigeReaper) {
+        this.vestigeReaper = vestigeReaper;
+    }
+
+    /**
+     * @return null if the reap key is collected
+     */
+    public Class<?> getReapKey() {
+        return reapKey.get();
+    }
+
+    /**
+     * @param reapKey a class of the application, such as its main class, helpers registered from now on are reaped when its class loader is collected. Logback
+     *            classes are the default key, they are never collected when logback is shared by the applications.
+     */
+    public void setReapKey(final Class<?> reapKey) {
+        this.reapKey = new WeakReference<Class<?>>(reapKey);
+    }
+
+    /**
+     * @return true if object would keep the class loader of the reap key alive
+     */
+    public boolean keepsLoaded(final Object object) {
+        Class<?> key = reapKey.get();
+        if (key == null) {
+            return false;
+        }
+        ClassLoader reapClassLoader = key.getClassLoader();
+        ClassLoader classLoader = object.getClass().getClassLoader();
+        while (classLoader != null) {
+            if (classLoader == reapClassLoader) {
+                return true;
+            }
+            classLoader = classLoader.getParent();
+        }
+        return false;
+    }
+
+    /**
+     * @param reachableObjects objects reachable from reaperHelper which may keep the application loaded, null elements are ignored
+     * @return false if reaperHelper is not registered because it would keep the application loaded, or because the application is already collected
+     */
+    public boolean addReapable(final ReaperHelper reaperHelper, final Object... reachableObjects) {
+        Class<?> key = reapKey.get();
+        if (key == null || keepsLoaded(reaperHelper)) {
+            return false;
+        }
+        for (Object reachableObject : reachableObjects) {
+            if (reachableObject != null && keepsLoaded(reachableObject)) {
+                return false;
+            }
+        }
+        vestigeReaper.addReapable(key, reaperHelper);
+        return true;
+    }
+
+    /**
+     * @return false if executorService is not registered because it, or its rejection handler, would keep the application loaded
+     */
+    public boolean addReapable(final ExecutorService executorService) {
+        RejectedExecutionHandler rejectedExecutionHandler = null;
+        if (executorService instanceof ThreadPoolExecutor) {
+            rejectedExecutionHandler = ((ThreadPoolExecutor) executorService).getRejectedExecutionHandler();
+        }
+        return addReapable(new ExecutorServiceReaperHelper(executorService), executorService, rejectedExecutionHandler);
+    }
+
+}
@@ -0,0 +1,253 @@
+/*
+ * This file is part of Vestige.
+ *
+ * Vestige is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Vestige is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Vestige.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.gaellalire.vestige.logback_enhancer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Queue small tasks and let the threads of the delegate drain them by batches. A thread of the delegate is only woken when the queue becomes non empty or when a
+ * full batch is waiting, other submissions are a lock free offer. A drainer waits up to the batch window for more tasks before running them, and a new drainer
+ * is started for each full batch up to maxDrainers. Tasks run one after the other in a drainer, so this executor should not be used for long running tasks.
+ * @author Gael Lalire
+ */
+public class BatchingExecutorService extends AbstractExecutorService {
+
+    private final ExecutorService delegate;
+
+    private final int batchSize;
+
+    private final long batchWindowNanos;
+
+    private final int maxDrainers;
+
+    private final Queue<Runnable> queue = new ConcurrentLinkedQueue<Runnable>();
+
+    private final AtomicInteger pending = new AtomicInteger();
+
+    private final AtomicInteger activeDrainers = new AtomicInteger();
+
+    // drainer waiting for its batch window to end, woken when a batch is full
+    private volatile Thread windowWaiter;
+
+    private volatile boolean shutdown;
+
+    /**
+     * @param delegate runs the drainers
+     * @param batchSize number of tasks a drainer runs before giving its thread back, and which ends the batch window
+     * @param batchWindowNanos time a drainer waits for a batch to fill, 0 to run tasks as soon as a drainer is started
+     * @param maxDrainers maximum number of tasks of the delegate draining this executor at the same time
+     */
+    public BatchingExecutorService(final ExecutorService delegate, final int batchSize, final long batchWindowNanos, final int maxDrainers) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize must be positive");
+        }
+        if (maxDrainers <= 0) {
+            throw new IllegalArgumentException("maxDrainers must be positive");
+        }
+        this.delegate = delegate;
+        this.batchSize = batchSize;
+        this.batchWindowNanos = batchWindowNanos;
+        this.maxDrainers = maxDrainers;
+    }
+
+    public int getPendingCount() {
+        return pending.get();
+    }
+
+    public int getActiveDrainerCount() {
+        return activeDrainers.get();
+    }
+
+    @Override
+    public void execute(final Runnable command) {
+        if (command == null) {
+            throw new NullPointerException();
+        }
+        if (shutdown) {
+            throw new RejectedExecutionException("Executor is shut down");
+        }
+        queue.offer(command);
+        int count = pending.incrementAndGet();
+        if (count == 1) {
+            startDrainer(command);
+        } else if (count % batchSize == 0) {
+            Thread waiter = windowWaiter;
+            if (waiter != null) {
+                LockSupport.unpark(waiter);
+            }
+            startDrainer(command);
+        }
+    }
+
+    /**
+     * @param command removed from the queue if no drainer can run it
+     */
+    private void startDrainer(final Runnable command) {
+        int drainers;
+        do {
+            drainers = activeDrainers.get();
+            if (drainers >= maxDrainers) {
+                return;
+            }
+        } while (!activeDrainers.compareAndSet(drainers, drainers + 1));
+        try {
+            delegate.execute(new Drainer());
+        } catch (RejectedExecutionException e) {
+            if (activeDrainers.decrementAndGet() == 0 && queue.remove(command)) {
+                pending.decrementAndGet();
+                tryTerminate();
+                throw e;
+            }
+            // an active drainer will run the command
+        }
+    }
+
+    private void tryTerminate() {
+        if (shutdown && activeDrainers.get() == 0 && queue.isEmpty()) {
+            delegate.shutdown();
+        }
+    }
+
+    private void waitBatchWindow() {
+        if (batchWindowNanos <= 0 || shutdown || pending.get() >= batchSize) {
+            return;
+        }
+        Thread currentThread = Thread.currentThread();
+        windowWaiter = currentThread;
+        try {
+            long deadline = System.nanoTime() + batchWindowNanos;
+            long remaining = batchWindowNanos;
+            while (remaining > 0 && pending.get() < batchSize && !shutdown) {
+                LockSupport.parkNanos(this, remaining);
+                remaining = deadline - System.nanoTime();
+            }
+        } finally {
+            if (windowWaiter == currentThread) {
+                windowWaiter = null;
+            }
+        }
+    }
+
+    private void drain() {
+        waitBatchWindow();
+        for (;;) {
+            int run = 0;
+            Runnable command = queue.poll();
+            while (command != null) {
+                pending.decrementAndGet();
+                try {
+                    command.run();
+                } catch (Throwable e) {
+                    // unlike a pool thread, a failing task does not stop the drainer
+                    Thread currentThread = Thread.currentThread();
+                    currentThread.getUncaughtExceptionHandler().uncaughtException(currentThread, e);
+                }
+                run++;
+                if (run == batchSize) {
+                    break;
+                }
+                command = queue.poll();
+            }
+            if (command != null && !queue.isEmpty()) {
+                // give the thread back to the delegate, another drainer continues
+                try {
+                    delegate.execute(new Drainer());
+                    return;
+                } catch (RejectedExecutionException e) {
+                    // keep draining in this thread
+                    continue;
+                }
+            }
+            activeDrainers.decrementAndGet();
+            if (queue.isEmpty()) {
+                tryTerminate();
+                return;
+            }
+            // a task was queued while this drainer was leaving
+            int drainers;
+            do {
+                drainers = activeDrainers.get();
+                if (drainers >= maxDrainers) {
+                    return;
+                }
+            } while (!activeDrainers.compareAndSet(drainers, drainers + 1));
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        shutdown = true;
+        Thread waiter = windowWaiter;
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+        tryTerminate();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        shutdown = true;
+        List<Runnable> notRun = new ArrayList<Runnable>();
+        Runnable command = queue.poll();
+        while (command != null) {
+            pending.decrementAndGet();
+            notRun.add(command);
+            command = queue.poll();
+        }
+        delegate.shutdownNow();
+        return notRun;
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return delegate.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException {
+        return delegate.awaitTermination(timeout, unit);
+    }
+
+    /**
+     * Task of the delegate running a batch.
+     * @author Gael Lalire
+     */
+    private final class Drainer implements Runnable {
+
+        @Override
+        public void run() {
+            drain();
+        }
+
+    }
+
+}
@@ -0,0 +1,176 @@
+/*
+ * This file is part of Vestige.
+ *
+ * Vestige is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Vestige is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Vestige.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.gaellalire.vestige.logback_enhancer;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+
+import ch.qos.logback.core.util.ExecutorServiceFactory;
+
+/**
+ * Class data sharing archive of the enhanced launch. A training run, with {@link LogbackExecutorConfiguration#CDS_TRAINING_PROPERTY}, loads the classes of a
+ * first executor submission before the main method and dumps the loaded classes at exit, with the VM.cds diagnostic command (JDK 17+). The JVM only maps an
+ * archive given on its command line, so later launches must add -XX:SharedArchiveFile, they print this option on the error stream when the archive exists but
+ * is not used.
+ * <p>
+ * Only classes of the boot, platform and application class loaders are archived: classes loaded by vestige class loaders are loaded as before.
+ * @author Gael Lalire
+ */
+public final class CdsArchive {
+
+    private static final String DIAGNOSTIC_COMMAND = "com.sun.management:type=DiagnosticCommand";
+
+    private static final String HOTSPOT_DIAGNOSTIC = "com.sun.management:type=HotSpotDiagnostic";
+
+    private static final String[] STRING_ARRAY_SIGNATURE = new String[] {String[].class.getName()};
+
+    private static final long WARM_UP_TIMEOUT_SECONDS = 10;
+
+    private CdsArchive() {
+    }
+
+    /**
+     * Start the training or check the archive, as configured by the system properties. Called by the main methods of the enhancers.
+     */
+    public static void install() {
+        String archive = System.getProperty(LogbackExecutorConfiguration.CDS_ARCHIVE_PROPERTY);
+        if (archive == null) {
+            return;
+        }
+        final String archivePath = new File(archive).getAbsolutePath();
+        if (Boolean.getBoolean(LogbackExecutorConfiguration.CDS_TRAINING_PROPERTY)) {
+            Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    StartupTimer.print(dump(archivePath));
+                }
+            }, "logback-cds-dump"));
+        } else if (new File(archivePath).isFile() && !archivePath.equals(getSharedArchiveFile())) {
+            StartupTimer.print("add -XX:SharedArchiveFile=" + archivePath + " to the java options to use the class data sharing archive");
+        }
+    }
+
+    /**
+     * Load the classes of a first executor submission, scheduled or not.
+     */
+    public static void warmUp(final ExecutorServiceFactory executorServiceFactory) {
+        Runnable noop = new Runnable() {
+
+            @Override
+            public void run() {
+                // only classes are wanted
+            }
+        };
+        ExecutorService executorService = executorServiceFactory.newExecutorService();
+        ScheduledExecutorService scheduledExecutorService = executorServiceFactory.newScheduledExecutorService();
+        try {
+            executorService.submit(noop).get(WARM_UP_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            scheduledExecutorService.schedule(noop, 0, TimeUnit.MILLISECONDS).get(WARM_UP_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // a noop does not fail
+        } catch (TimeoutException e) {
+            // classes are loaded even if the task waits
+        } finally {
+            executorService.shutdown();
+            scheduledExecutorService.shutdown();
+        }
+    }
+
+    /**
+     * @return the SharedArchiveFile option of the JVM, null if not a HotSpot JVM
+     */
+    private static String getSharedArchiveFile() {
+        try {
+            // an MXBean returns open types
+            CompositeData vmOption = (CompositeData) ManagementFactory.getPlatformMBeanServer().invoke(new ObjectName(HOTSPOT_DIAGNOSTIC), "getVMOption",
+                    new Object[] {"SharedArchiveFile"}, new String[] {String.class.getName()});
+            return (String) vmOption.get("value");
+        } catch (JMException e) {
+            // no such option
+            return null;
+        }
+    }
+
+    /**
+     * @return the output of the command, or of its failure
+     */
+    private static String vmCds(final String... arguments) {
+        try {
+            Object result = ManagementFactory.getPlatformMBeanServer().invoke(new ObjectName(DIAGNOSTIC_COMMAND), "vmCds", new Object[] {arguments},
+                    STRING_ARRAY_SIGNATURE);
+            if (result == null) {
+                return "";
+            }
+            return result.toString().trim();
+        } catch (JMException e) {
+            // no VM.cds command before JDK 17
+            return e.toString();
+        } catch (RuntimeException e) {
+            // the command failed
+            Throwable cause = e;
+            while (cause.getCause() != null) {
+                cause = cause.getCause();
+            }
+            return cause.getMessage();
+        }
+    }
+
+    /**
+     * A dynamic archive needs -XX:+RecordDynamicDumpInfo and is layered on the JDK archive, a static archive is built by a child JVM otherwise. The archive is
+     * written next to the previous one, which is only replaced once the dump succeeded.
+     * @return what was done, for the error stream
+     */
+    static String dump(final String archivePath) {
+        File archiveFile = new File(archivePath);
+        File dumpFile = new File(archivePath + ".tmp");
+        String dumpPath = dumpFile.getPath();
+        if (dumpFile.isFile() && !dumpFile.delete()) {
+            return "class data sharing archive " + dumpPath + " cannot be replaced";
+        }
+        String kind;
+        String dynamicFailure = vmCds("dynamic_dump", dumpPath);
+        if (dumpFile.isFile()) {
+            kind = "dynamic";
+        } else {
+            String staticFailure = vmCds("static_dump", dumpPath);
+            if (!dumpFile.isFile()) {
+                String failure = dynamicFailure + " / " + staticFailure;
+                return "no class data sharing archive written (" + failure + "), train with -XX:ArchiveClassesAtExit=" + archivePath + " instead";
+            }
+            kind = "static";
+        }
+        // rename replaces the archive on POSIX systems, not on Windows
+        if (!dumpFile.renameTo(archiveFile) && !(archiveFile.delete() && dumpFile.renameTo(archiveFile))) {
+            return kind + " class data sharing archive written to " + dumpPath + ", it cannot replace " + archivePath;
+        }
+        return kind + " class data sharing archive written to " + archivePath;
+    }
+
+}
@@ -0,0 +1,32 @@
+/*
+ * This file is part of Vestige.
+ *
+ * Vestige is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Vestige is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Vestige.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.gaellalire.vestige.logback_enhancer;
+
+/**
+ * Cache of {@link EnhancedMainMethods} stored in the main class itself, so it does not prevent the class from being unloaded. Only instantiated by reflection
+ * when running on Java 7 or later.
+ * @author Gael Lalire
+ */
+public class ClassValueEnhancedMainCache extends ClassValue<EnhancedMainMethods> {
+
+    @Override
+    protected EnhancedMainMethods computeValue(final Class<?> type) {
+        return new EnhancedMainMethods(type);
+    }
+
+}
@@ -0,0 +1,107 @@
+/*
+ * This file is part of Vestige.
+ *
+ * Vestige is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Vestige is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Vestige.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.gaellalire.vestige.logback_enhancer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+
+/**
+ * Number of processors the JVM can really use. Old JVMs report the cores of the host in a container, so the CFS quota of cgroup v2 (cpu.max) or v1
+ * (cpu.cfs_quota_us / cpu.cfs_period_us) is read as well.
+ * @author Gael Lalire
+ */
+public final class CpuQuota {
+
+    private static final String CGROUP_V2_CPU_MAX = "/sys/fs/cgroup/cpu.max";
+
+    private static final String CGROUP_V1_CFS_QUOTA = "/sys/fs/cgroup/cpu/cpu.cfs_quota_us";
+
+    private static final String CGROUP_V1_CFS_PERIOD = "/sys/fs/cgroup/cpu/cpu.cfs_period_us";
+
+    private static final int EFFECTIVE_PROCESSORS = computeEffectiveProcessors();
+
+    private CpuQuota() {
+    }
+
+    public static int getEffectiveProcessors() {
+        return EFFECTIVE_PROCESSORS;
+    }
+
+    private static String readFirstLine(final String path) {
+        File file = new File(path);
+        if (!file.canRead()) {
+            return null;
+        }
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(file));
+            try {
+                return reader.readLine();
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return processors allowed by the quota, 0 if there is no quota
+     */
+    static int quotaProcessors(final long quota, final long period) {
+        if (quota <= 0 || period <= 0) {
+            return 0;
+        }
+        // a quota of 1.5 processor allows 2 threads to run
+        return (int) Math.max(1, (quota + period - 1) / period);
+    }
+
+    private static int readQuotaProcessors() {
+        try {
+            String cpuMax = readFirstLine(CGROUP_V2_CPU_MAX);
+            if (cpuMax != null) {
+                String[] fields = cpuMax.trim().split(" ");
+                if (fields.length == 2 && !"max".equals(fields[0])) {
+                    return quotaProcessors(Long.parseLong(fields[0]), Long.parseLong(fields[1]));
+                }
+                return 0;
+            }
+            String quota = readFirstLine(CGROUP_V1_CFS_QUOTA);
+            String period = readFirstLine(CGROUP_V1_CFS_PERIOD);
+            if (quota != null && period != null) {
+                return quotaProcessors(Long.parseLong(quota.trim()), Long.parseLong(period.trim()));
+            }
+        } catch (NumberFormatException e) {
+            // unexpected content, ignore the quota
+        } catch (SecurityException e) {
+            // not allowed to read cgroup files
+        }
+        return 0;
+    }
+
+    private static int computeEffectiveProcessors() {
+        int processors = Runtime.getRuntime().availableProcessors();
+        int quotaProcessors = readQuotaProcessors();
+        if (quotaProcessors > 0 && quotaProcessors < processors) {
+            return quotaProcessors;
+        }
+        return processors;
+    }
+
+}
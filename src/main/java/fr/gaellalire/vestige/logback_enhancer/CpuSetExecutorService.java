@@ -0,0 +1,156 @@
+/*
+ * This file is part of Vestige.
+ *
+ * Vestige is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Vestige is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Vestige.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.gaellalire.vestige.logback_enhancer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Restrict the threads of the delegate to a set of CPUs, with the taskset command of Linux. A thread is pinned by the first task it runs, because the native
+ * id of a thread is only known from the thread itself. Pinning forks a process, so it is done once per thread, not per task: a pool whose idle threads stop
+ * pays it again for each new thread. Pinning is best effort: on other systems, or without taskset, tasks run unpinned.
+ * @author Gael Lalire
+ */
+public class CpuSetExecutorService extends AbstractExecutorService {
+
+    // the first field is the native id of the reading thread
+    private static final String THREAD_SELF_STAT = "/proc/thread-self/stat";
+
+    private static final int BUFFER_SIZE = 256;
+
+    // Boolean values, the thread locals of pool threads must not reference enhancer classes
+    private static final ThreadLocal<Boolean> PINNED = new ThreadLocal<Boolean>();
+
+    private final ExecutorService delegate;
+
+    private final String cpuSet;
+
+    /**
+     * @param cpuSet CPU list in the taskset format, for instance 0,2-3
+     */
+    public CpuSetExecutorService(final ExecutorService delegate, final String cpuSet) {
+        this.delegate = delegate;
+        this.cpuSet = cpuSet;
+    }
+
+    public String getCpuSet() {
+        return cpuSet;
+    }
+
+    /**
+     * @return true if the current thread is now restricted to cpuSet
+     */
+    public static boolean pinCurrentThread(final String cpuSet) {
+        File threadSelfStat = new File(THREAD_SELF_STAT);
+        if (!threadSelfStat.exists()) {
+            return false;
+        }
+        try {
+            String tid = readTid(threadSelfStat);
+            if (tid == null) {
+                return false;
+            }
+            Process process = new ProcessBuilder("taskset", "-p", "-c", cpuSet, tid).redirectErrorStream(true).start();
+            InputStream inputStream = process.getInputStream();
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                while (inputStream.read(buffer) != -1) {
+                    // output is not used
+                    continue;
+                }
+            } finally {
+                inputStream.close();
+            }
+            return process.waitFor() == 0;
+        } catch (IOException e) {
+            // no taskset
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * The link /proc/thread-self is not resolved with {@link File#getCanonicalFile()}, the canonicalization cache may return the id of another thread.
+     * @return null if the stat file is not as expected
+     */
+    private static String readTid(final File threadSelfStat) throws IOException {
+        StringBuilder tid = new StringBuilder();
+        InputStream inputStream = new FileInputStream(threadSelfStat);
+        try {
+            int c = inputStream.read();
+            while (c >= '0' && c <= '9') {
+                tid.append((char) c);
+                c = inputStream.read();
+            }
+            if (c != ' ' || tid.length() == 0) {
+                return null;
+            }
+        } finally {
+            inputStream.close();
+        }
+        return tid.toString();
+    }
+
+    @Override
+    public void execute(final Runnable command) {
+        delegate.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                if (PINNED.get() == null) {
+                    PINNED.set(Boolean.valueOf(pinCurrentThread(cpuSet)));
+                }
+                command.run();
+            }
+        });
+    }
+
+    @Override
+    public void shutdown() {
+        delegate.shutdown();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        return delegate.shutdownNow();
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return delegate.isShutdown();
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return delegate.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException {
+        return delegate.awaitTermination(timeout, unit);
+    }
+
+}
@@ -0,0 +1,270 @@
+/*
+ * This file is part of Vestige.
+ *
+ * Vestige is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Vestige is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Vestige.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.gaellalire.vestige.logback_enhancer;
+
+import java.lang.reflect.Method;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import ch.qos.logback.core.Appender;
+import ch.qos.logback.core.UnsynchronizedAppenderBase;
+import ch.qos.logback.core.spi.AppenderAttachable;
+import ch.qos.logback.core.spi.AppenderAttachableImpl;
+import ch.qos.logback.core.spi.DeferredProcessingAware;
+import ch.qos.logback.core.util.ExecutorServiceUtil;
+
+/**
+ * Asynchronous appender handing events to its attached appenders through an {@link EventDispatcher}. Unlike the logback AsyncAppender there is no blocking
+ * queue and no dedicated worker thread: the caller fills a preallocated slot, and the slots are drained by a task of the executor returned by
+ * {@link ExecutorServiceUtil#newExecutorService()}, that is a logback thread of the enhancer when the application is enhanced.
+ * @param <E> type of the logged events
+ * @author Gael Lalire
+ */
+public class DispatchingAppender<E> extends UnsynchronizedAppenderBase<E> implements AppenderAttachable<E> {
+
+    public static final int DEFAULT_RING_SIZE = 1024;
+
+    public static final int DEFAULT_MAX_FLUSH_TIME = 1000;
+
+    private final AppenderAttachableImpl<E> appenders = new AppenderAttachableImpl<E>();
+
+    private final EventDispatcher.EventTranslator<EventSlot<E>, E> translator = new EventDispatcher.EventTranslator<EventSlot<E>, E>() {
+
+        @Override
+        public void translateTo(final EventSlot<E> slot, final E event) {
+            slot.event = event;
+        }
+    };
+
+    private final EventDispatcher.EventHandler<EventSlot<E>> handler = new EventDispatcher.EventHandler<EventSlot<E>>() {
+
+        @Override
+        public void onEvent(final EventSlot<E> slot, final boolean endOfBatch) {
+            E event = slot.event;
+            // the slot must not keep the event until its next lap
+            slot.event = null;
+            appenders.appendLoopOnAppenders(event);
+        }
+    };
+
+    private int ringSize = DEFAULT_RING_SIZE;
+
+    private boolean neverBlock;
+
+    private boolean includeCallerData;
+
+    /**
+     * getCallerData method of the last event class, looked up by name since this appender does not depend on logback-classic.
+     */
+    private volatile Method callerDataMethod;
+
+    private WaitStrategy waitStrategy = WaitStrategy.YIELD;
+
+    private int maxFlushTime = DEFAULT_MAX_FLUSH_TIME;
+
+    private ExecutorService executorService;
+
+    private EventDispatcher<EventSlot<E>> dispatcher;
+
+    @Override
+    public void start() {
+        if (isStarted()) {
+            return;
+        }
+        if (!appenders.iteratorForAppenders().hasNext()) {
+            addError("No attached appenders found.");
+            return;
+        }
+        if (ringSize < 1) {
+            addError("Invalid ring size [" + ringSize + "]");
+            return;
+        }
+        executorService = ExecutorServiceUtil.newExecutorService();
+        dispatcher = new EventDispatcher<EventSlot<E>>(executorService, ringSize, new EventDispatcher.EventFactory<EventSlot<E>>() {
+
+            @Override
+            public EventSlot<E> newEvent() {
+                return new EventSlot<E>();
+            }
+        }, handler, waitStrategy);
+        super.start();
+    }
+
+    @Override
+    public void stop() {
+        if (!isStarted()) {
+            return;
+        }
+        super.stop();
+        if (!dispatcher.stop(maxFlushTime, TimeUnit.MILLISECONDS)) {
+            addWarn("Max flush time (" + maxFlushTime + " ms) exceeded, " + dispatcher.getBacklog() + " events may be discarded");
+        }
+        executorService.shutdown();
+        appenders.detachAndStopAllAppenders();
+    }
+
+    /**
+     * Called in the caller thread before the event is published: the thread name, the MDC and, if requested, the caller data are only correct in that thread.
+     */
+    protected void preprocess(final E event) {
+        if (event instanceof DeferredProcessingAware) {
+            ((DeferredProcessingAware) event).prepareForDeferredProcessing();
+        }
+        if (includeCallerData) {
+            captureCallerData(event);
+        }
+    }
+
+    private void captureCallerData(final E event) {
+        Method method = callerDataMethod;
+        if (method == null || method.getDeclaringClass() != event.getClass()) {
+            try {
+                method = event.getClass().getMethod("getCallerData");
+            } catch (NoSuchMethodException e) {
+                // not a logging event, it has no caller data
+                return;
+            }
+            callerDataMethod = method;
+        }
+        try {
+            method.invoke(event);
+        } catch (Exception e) {
+            addWarn("Unable to capture caller data", e);
+        }
+    }
+
+    @Override
+    protected void append(final E event) {
+        preprocess(event);
+        if (neverBlock) {
+            dispatcher.tryPublish(translator, event);
+        } else {
+            dispatcher.publish(translator, event);
+        }
+    }
+
+    public int getRingSize() {
+        return ringSize;
+    }
+
+    public void setRingSize(final int ringSize) {
+        this.ringSize = ringSize;
+    }
+
+    public boolean isNeverBlock() {
+        return neverBlock;
+    }
+
+    /**
+     * @param neverBlock true to drop events while the ring is full instead of waiting
+     */
+    public void setNeverBlock(final boolean neverBlock) {
+        this.neverBlock = neverBlock;
+    }
+
+    public boolean isIncludeCallerData() {
+        return includeCallerData;
+    }
+
+    /**
+     * @param includeCallerData true to compute the caller data in the caller thread, it is expensive and lost otherwise
+     */
+    public void setIncludeCallerData(final boolean includeCallerData) {
+        this.includeCallerData = includeCallerData;
+    }
+
+    public WaitStrategy getWaitStrategy() {
+        return waitStrategy;
+    }
+
+    /**
+     * @param waitStrategy how long the drainer waits for new events before giving its thread back, and how a blocked caller waits
+     */
+    public void setWaitStrategy(final WaitStrategy waitStrategy) {
+        this.waitStrategy = waitStrategy;
+    }
+
+    public int getMaxFlushTime() {
+        return maxFlushTime;
+    }
+
+    public void setMaxFlushTime(final int maxFlushTime) {
+        this.maxFlushTime = maxFlushTime;
+    }
+
+    public int getBacklog() {
+        if (dispatcher == null) {
+            return 0;
+        }
+        return dispatcher.getBacklog();
+    }
+
+    public long getDroppedCount() {
+        if (dispatcher == null) {
+            return 0;
+        }
+        return dispatcher.getDroppedCount();
+    }
+
+    @Override
+    public void addAppender(final Appender<E> newAppender) {
+        appenders.addAppender(newAppender);
+    }
+
+    @Override
+    public Iterator<Appender<E>> iteratorForAppenders() {
+        return appenders.iteratorForAppenders();
+    }
+
+    @Override
+    public Appender<E> getAppender(final String name) {
+        return appenders.getAppender(name);
+    }
+
+    @Override
+    public boolean isAttached(final Appender<E> appender) {
+        return appenders.isAttached(appender);
+    }
+
+    @Override
+    public void detachAndStopAllAppenders() {
+        appenders.detachAndStopAllAppenders();
+    }
+
+    @Override
+    public boolean detachAppender(final Appender<E> appender) {
+        return appenders.detachAppender(appender);
+    }
+
+    @Override
+    public boolean detachAppender(final String name) {
+        return appenders.detachAppender(name);
+    }
+
+    /**
+     * Reusable slot of the ring.
+     * @author Gael Lalire
+     */
+    private static final class EventSlot<E> {
+
+        private E event;
+
+    }
+
+}
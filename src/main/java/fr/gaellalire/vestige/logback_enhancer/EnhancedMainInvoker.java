@@ -0,0 +1,31 @@
+/*
+ * This file is part of Vestige.
+ *
+ * Vestige is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Vestige is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Vestige.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.gaellalire.vestige.logback_enhancer;
+
+/**
+ * Invoke a resolved vestigeEnhancedCoreMain method.
+ * @author Gael Lalire
+ */
+public interface EnhancedMainInvoker {
+
+    /**
+     * Exceptions thrown by the main method are rethrown as is, they are not wrapped in an {@link java.lang.reflect.InvocationTargetException}.
+     */
+    Object invoke(Object[] args) throws Exception;
+
+}
@@ -0,0 +1,71 @@
+/*
+ * This file is part of Vestige.
+ *
+ * Vestige is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Vestige is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Vestige.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.gaellalire.vestige.logback_enhancer;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The vestigeEnhancedCoreMain methods of a main class, found without relying on {@link NoSuchMethodException}. Invokers are created on first use and kept.
+ * @author Gael Lalire
+ */
+public final class EnhancedMainMethods {
+
+    public static final String METHOD_NAME = "vestigeEnhancedCoreMain";
+
+    private final Method[] methods;
+
+    private final AtomicReferenceArray<EnhancedMainInvoker> invokers;
+
+    public EnhancedMainMethods(final Class<?> mainClass) {
+        List<Method> methodList = new ArrayList<Method>();
+        for (Method method : mainClass.getMethods()) {
+            if (METHOD_NAME.equals(method.getName()) && Modifier.isStatic(method.getModifiers())) {
+                methodList.add(method);
+            }
+        }
+        methods = methodList.toArray(new Method[methodList.size()]);
+        invokers = new AtomicReferenceArray<EnhancedMainInvoker>(methods.length);
+    }
+
+    public boolean isEmpty() {
+        return methods.length == 0;
+    }
+
+    /**
+     * @return null if the main class has no vestigeEnhancedCoreMain method with these exact parameter types
+     */
+    public EnhancedMainInvoker getInvoker(final Class<?>... parameterTypes) {
+        for (int i = 0; i < methods.length; i++) {
+            if (Arrays.equals(methods[i].getParameterTypes(), parameterTypes)) {
+                EnhancedMainInvoker invoker = invokers.get(i);
+                if (invoker == null) {
+                    invoker = EnhancedMainResolver.createInvoker(methods[i]);
+                    invokers.compareAndSet(i, null, invoker);
+                }
+                return invoker;
+            }
+        }
+        return null;
+    }
+
+}
@@ -0,0 +1,86 @@
+/*
+ * This file is part of Vestige.
+ *
+ * Vestige is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Vestige is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Vestige.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.gaellalire.vestige.logback_enhancer;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Find the vestigeEnhancedCoreMain entry point of a main class. On Java 7 and later the resolution is cached per main class in a ClassValue and the method is
+ * invoked through a method handle, so relaunching the same application skips the reflection. On Java 6 the resolution is done at each launch.
+ * @author Gael Lalire
+ */
+public final class EnhancedMainResolver {
+
+    private static final Object CLASS_VALUE_CACHE;
+
+    private static final Constructor<?> METHOD_HANDLE_INVOKER_CONSTRUCTOR;
+
+    static {
+        Object classValueCache = null;
+        Constructor<?> methodHandleInvokerConstructor = null;
+        try {
+            Class.forName("java.lang.ClassValue");
+            classValueCache = Class.forName(EnhancedMainResolver.class.getPackage().getName() + ".ClassValueEnhancedMainCache").getConstructor().newInstance();
+            Class.forName("java.lang.invoke.MethodHandle");
+            methodHandleInvokerConstructor = Class.forName(EnhancedMainResolver.class.getPackage().getName() + ".MethodHandleEnhancedMainInvoker").getConstructor(
+                    Method.class);
+        } catch (Exception e) {
+            // java 6
+        } catch (LinkageError e) {
+            // java 6
+        }
+        CLASS_VALUE_CACHE = classValueCache;
+        METHOD_HANDLE_INVOKER_CONSTRUCTOR = methodHandleInvokerConstructor;
+    }
+
+    private EnhancedMainResolver() {
+    }
+
+    public static EnhancedMainMethods getEnhancedMainMethods(final Class<?> mainClass) {
+        if (CLASS_VALUE_CACHE != null) {
+            return ((ClassValueEnhancedMainCache) CLASS_VALUE_CACHE).get(mainClass);
+        }
+        return new EnhancedMainMethods(mainClass);
+    }
+
+    /**
+     * @return null if mainClass has no vestigeEnhancedCoreMain method with these exact parameter types
+     */
+    public static EnhancedMainInvoker resolve(final Class<?> mainClass, final Class<?>... parameterTypes) {
+        return getEnhancedMainMethods(mainClass).getInvoker(parameterTypes);
+    }
+
+    static EnhancedMainInvoker createInvoker(final Method method) {
+        if (METHOD_HANDLE_INVOKER_CONSTRUCTOR != null) {
+            try {
+                return (EnhancedMainInvoker) METHOD_HANDLE_INVOKER_CONSTRUCTOR.newInstance(method);
+            } catch (InvocationTargetException e) {
+                // lookup refused the access, reflection may still be allowed
+                return new ReflectEnhancedMainInvoker(method);
+            } catch (InstantiationException e) {
+                return new ReflectEnhancedMainInvoker(method);
+            } catch (IllegalAccessException e) {
+                return new ReflectEnhancedMainInvoker(method);
+            }
+        }
+        return new ReflectEnhancedMainInvoker(method);
+    }
+
+}
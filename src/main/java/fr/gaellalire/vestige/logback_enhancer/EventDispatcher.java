@@ -0,0 +1,327 @@
+/*
+ * This file is part of Vestige.
+ *
+ * Vestige is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Vestige is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Vestige.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.gaellalire.vestige.logback_enhancer;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hands events over to a single consumer through a ring of slots allocated once. Publishing claims a sequence with a CAS, fills the slot of the sequence in
+ * place and publishes it, nothing is allocated and no lock is taken. The consumer is not a thread of its own: a drainer task is given to the executor when the
+ * ring leaves its idle state and returns once the ring stays empty for the tries of the {@link WaitStrategy}, so under steady traffic publishing never touches
+ * the executor, and no thread waits in this class while the application is idle.
+ * @param <E> type of the slots
+ * @author Gael Lalire
+ */
+public class EventDispatcher<E> {
+
+    private static final long FULL_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(10);
+
+    private static final long FLUSH_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final Executor executor;
+
+    private final EventHandler<? super E> handler;
+
+    private final WaitStrategy waitStrategy;
+
+    private final int mask;
+
+    private final Object[] slots;
+
+    // sequence published in each slot, a slot is readable when it holds the sequence the consumer waits for
+    private final AtomicLongArray published;
+
+    private final AtomicLong claimed = new AtomicLong(-1);
+
+    private final AtomicLong consumed = new AtomicLong(-1);
+
+    private final AtomicBoolean draining = new AtomicBoolean();
+
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    private final Runnable drainer = new Runnable() {
+
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    private volatile boolean stopped;
+
+    /**
+     * @param executor runs the drainer, a logback executor so the drainer runs in a logback thread
+     * @param capacity rounded up to a power of two
+     * @param eventFactory creates the slots
+     * @param handler called by the drainer for each event, in publication order
+     */
+    public EventDispatcher(final Executor executor, final int capacity, final EventFactory<E> eventFactory, final EventHandler<? super E> handler,
+            final WaitStrategy waitStrategy) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.executor = executor;
+        this.handler = handler;
+        this.waitStrategy = waitStrategy;
+        mask = size - 1;
+        slots = new Object[size];
+        published = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            slots[i] = eventFactory.newEvent();
+            published.set(i, -1);
+        }
+    }
+
+    public int capacity() {
+        return slots.length;
+    }
+
+    /**
+     * @return number of events published and not handled yet
+     */
+    public int getBacklog() {
+        long backlog = claimed.get() - consumed.get();
+        if (backlog < 0) {
+            return 0;
+        }
+        return (int) backlog;
+    }
+
+    /**
+     * @return number of events refused because the ring was full or stopped
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    private long tryClaim() {
+        for (;;) {
+            long current = claimed.get();
+            long next = current + 1;
+            if (next - slots.length > consumed.get()) {
+                return -1;
+            }
+            if (claimed.compareAndSet(current, next)) {
+                return next;
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private <A> void publish(final long sequence, final EventTranslator<? super E, A> translator, final A argument) {
+        int index = (int) sequence & mask;
+        try {
+            translator.translateTo((E) slots[index], argument);
+        } finally {
+            // the sequence must be published even if the translator failed, the consumer would wait for it forever
+            published.set(index, sequence);
+        }
+        startDrainer();
+    }
+
+    /**
+     * Publish without waiting.
+     * @return false, and the event is dropped, if the ring is full or stopped
+     */
+    public <A> boolean tryPublish(final EventTranslator<? super E, A> translator, final A argument) {
+        if (stopped) {
+            droppedCount.incrementAndGet();
+            return false;
+        }
+        long sequence = tryClaim();
+        if (sequence == -1) {
+            droppedCount.incrementAndGet();
+            return false;
+        }
+        publish(sequence, translator, argument);
+        return true;
+    }
+
+    /**
+     * Publish, waiting for a free slot while the ring is full.
+     * @return false, and the event is dropped, if the ring is stopped
+     */
+    public <A> boolean publish(final EventTranslator<? super E, A> translator, final A argument) {
+        int tries = 0;
+        for (;;) {
+            if (stopped) {
+                droppedCount.incrementAndGet();
+                return false;
+            }
+            long sequence = tryClaim();
+            if (sequence != -1) {
+                publish(sequence, translator, argument);
+                return true;
+            }
+            // the drainer may have been refused by the executor
+            startDrainer();
+            if (tries < waitStrategy.getTries()) {
+                tries++;
+                waitStrategy.backOff();
+            } else {
+                LockSupport.parkNanos(this, FULL_PARK_NANOS);
+            }
+        }
+    }
+
+    private void startDrainer() {
+        if (draining.get() || !draining.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            executor.execute(drainer);
+        } catch (RejectedExecutionException e) {
+            // drain what is there in the caller thread, like CALLER_RUNS, the next publication tries the executor again
+            drainOnce();
+        }
+    }
+
+    private boolean isAvailable(final long sequence) {
+        return published.get((int) sequence & mask) == sequence;
+    }
+
+    /**
+     * Run the handler until the ring is empty, at most one lap.
+     */
+    @SuppressWarnings("unchecked")
+    private void handleAvailable() {
+        long sequence = consumed.get() + 1;
+        long end = sequence + slots.length;
+        while (sequence != end && isAvailable(sequence)) {
+            boolean endOfBatch = !isAvailable(sequence + 1);
+            try {
+                handler.onEvent((E) slots[(int) sequence & mask], endOfBatch);
+            } catch (Throwable e) {
+                // a failing event does not stop the drainer
+                Thread currentThread = Thread.currentThread();
+                currentThread.getUncaughtExceptionHandler().uncaughtException(currentThread, e);
+            }
+            // the slot can be claimed again
+            consumed.set(sequence);
+            sequence++;
+        }
+    }
+
+    private void drainOnce() {
+        try {
+            handleAvailable();
+        } finally {
+            draining.set(false);
+        }
+    }
+
+    void drain() {
+        for (;;) {
+            handleAvailable();
+            int tries = 0;
+            while (tries < waitStrategy.getTries() && !isAvailable(consumed.get() + 1)) {
+                tries++;
+                waitStrategy.backOff();
+            }
+            if (isAvailable(consumed.get() + 1)) {
+                continue;
+            }
+            draining.set(false);
+            // a publisher which saw draining true before the reset relies on this check
+            if (!isAvailable(consumed.get() + 1) || !draining.compareAndSet(false, true)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Wait until the events published before this call are handled.
+     * @return false if the timeout elapsed before
+     */
+    public boolean flush(final long timeout, final TimeUnit unit) {
+        long target = claimed.get();
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (consumed.get() < target) {
+            if (!draining.get() && isAvailable(consumed.get() + 1)) {
+                startDrainer();
+                continue;
+            }
+            if (deadline - System.nanoTime() <= 0) {
+                return false;
+            }
+            LockSupport.parkNanos(this, FLUSH_PARK_NANOS);
+        }
+        return true;
+    }
+
+    /**
+     * Refuse new events, then flush.
+     * @return false if events were still pending after the timeout
+     */
+    public boolean stop(final long timeout, final TimeUnit unit) {
+        stopped = true;
+        return flush(timeout, unit);
+    }
+
+    public boolean isStopped() {
+        return stopped;
+    }
+
+    /**
+     * Creates the slots of the ring.
+     * @param <E> type of the slots
+     * @author Gael Lalire
+     */
+    public interface EventFactory<E> {
+
+        E newEvent();
+
+    }
+
+    /**
+     * Fills a slot with the published data, the same translator instance can be used for all events so the caller allocates nothing.
+     * @param <E> type of the slots
+     * @param <A> type of the published data
+     * @author Gael Lalire
+     */
+    public interface EventTranslator<E, A> {
+
+        void translateTo(E event, A argument);
+
+    }
+
+    /**
+     * Consumes the events, always from a single thread at a time.
+     * @param <E> type of the slots
+     * @author Gael Lalire
+     */
+    public interface EventHandler<E> {
+
+        /**
+         * @param endOfBatch true if no other event is available yet, a good time to flush
+         */
+        void onEvent(E event, boolean endOfBatch) throws Exception;
+
+    }
+
+}
@@ -0,0 +1,185 @@
+/*
+ * This file is part of Vestige.
+ *
+ * Vestige is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Vestige is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Vestige.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.gaellalire.vestige.logback_enhancer;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import fr.gaellalire.vestige.core.weak.WeakRunnable;
+
+/**
+ * Active cleanup of weak executors. A {@link ReferenceQueue} is polled periodically and, soon after the GC clears them, the delegate of an unreachable weak
+ * executor is shut down and the periodic tasks whose command is unreachable are cancelled. Without it, these delegates and tasks live until the application is
+ * reaped. The cleaner has no thread of its own: a thread waiting in enhancer code would keep the application class loader reachable, so polling is scheduled on
+ * a JDK executor through a {@link WeakRunnable}, which does nothing once the cleaner is collected.
+ * @author Gael Lalire
+ */
+public class ExecutorCleaner {
+
+    public static final long POLL_INTERVAL_MILLIS = 100;
+
+    private final ReferenceQueue<Object> referenceQueue = new ReferenceQueue<Object>();
+
+    // cleaner references must stay reachable to be enqueued
+    private final Set<CleanerReference> references = Collections.newSetFromMap(new ConcurrentHashMap<CleanerReference, Boolean>());
+
+    private final AtomicLong shutdownCount = new AtomicLong();
+
+    private final AtomicLong cancelledCount = new AtomicLong();
+
+    // only weakly referenced by the polling executor
+    private final Runnable poller = new Runnable() {
+
+        @Override
+        public void run() {
+            clean();
+        }
+    };
+
+    /**
+     * @param pollingExecutor must be reaped with the application, it only sees a {@link WeakRunnable}
+     */
+    public void start(final ScheduledExecutorService pollingExecutor) {
+        pollingExecutor.scheduleWithFixedDelay(new WeakRunnable(poller), POLL_INTERVAL_MILLIS, POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Process the references cleared since the last call.
+     */
+    public void clean() {
+        Reference<?> reference = referenceQueue.poll();
+        while (reference != null) {
+            CleanerReference cleanerReference = (CleanerReference) reference;
+            references.remove(cleanerReference);
+            try {
+                cleanerReference.clean();
+            } catch (RuntimeException e) {
+                Thread currentThread = Thread.currentThread();
+                currentThread.getUncaughtExceptionHandler().uncaughtException(currentThread, e);
+            }
+            reference = referenceQueue.poll();
+        }
+    }
+
+    /**
+     * @param weakExecutor the executor given to logback
+     * @param delegate shut down when weakExecutor is collected
+     */
+    public void shutdownWhenCollected(final Object weakExecutor, final ExecutorService delegate) {
+        references.add(new ShutdownReference(weakExecutor, referenceQueue, delegate));
+    }
+
+    /**
+     * @param command the task held weakly by the delegate
+     * @param future cancelled when command is collected
+     * @param pool purged after the cancel, may be null
+     * @param collectedCount incremented if the future is cancelled
+     */
+    public void cancelWhenCollected(final Object command, final Future<?> future, final ThreadPoolExecutor pool, final AtomicLong collectedCount) {
+        references.add(new CancelReference(command, referenceQueue, future, pool, collectedCount));
+    }
+
+    public int getTrackedCount() {
+        return references.size();
+    }
+
+    public long getShutdownCount() {
+        return shutdownCount.get();
+    }
+
+    public long getCancelledCount() {
+        return cancelledCount.get();
+    }
+
+    /**
+     * @author Gael Lalire
+     */
+    private abstract static class CleanerReference extends WeakReference<Object> {
+
+        CleanerReference(final Object referent, final ReferenceQueue<Object> referenceQueue) {
+            super(referent, referenceQueue);
+        }
+
+        abstract void clean();
+
+    }
+
+    /**
+     * @author Gael Lalire
+     */
+    private final class ShutdownReference extends CleanerReference {
+
+        private final ExecutorService delegate;
+
+        ShutdownReference(final Object referent, final ReferenceQueue<Object> referenceQueue, final ExecutorService delegate) {
+            super(referent, referenceQueue);
+            this.delegate = delegate;
+        }
+
+        @Override
+        void clean() {
+            // callers may still wait on the futures of queued tasks, let them run, periodic tasks are dropped by the shutdown
+            delegate.shutdown();
+            shutdownCount.incrementAndGet();
+        }
+
+    }
+
+    /**
+     * @author Gael Lalire
+     */
+    private final class CancelReference extends CleanerReference {
+
+        private final Future<?> future;
+
+        private final ThreadPoolExecutor pool;
+
+        private final AtomicLong collectedCount;
+
+        CancelReference(final Object referent, final ReferenceQueue<Object> referenceQueue, final Future<?> future, final ThreadPoolExecutor pool,
+                final AtomicLong collectedCount) {
+            super(referent, referenceQueue);
+            this.future = future;
+            this.pool = pool;
+            this.collectedCount = collectedCount;
+        }
+
+        @Override
+        void clean() {
+            if (future.cancel(false)) {
+                cancelledCount.incrementAndGet();
+                collectedCount.incrementAndGet();
+                if (pool != null) {
+                    pool.purge();
+                }
+            }
+        }
+
+    }
+
+}
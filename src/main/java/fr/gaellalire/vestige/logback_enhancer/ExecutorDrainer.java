@@ -0,0 +1,295 @@
+/*
+ * This file is part of Vestige.
+ *
+ * Vestige is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Vestige is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Vestige.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.gaellalire.vestige.logback_enhancer;
+
+import java.lang.ref.WeakReference;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import fr.gaellalire.vestige.core.function.Function;
+import fr.gaellalire.vestige.core.weak.ReaperHelper;
+
+/**
+ * Runs the pending tasks of the logback executors of an application when it stops. All executors are shut down at once so they flush in parallel, those
+ * still running at the deadline are shut down now and their queued tasks are counted as dropped. Executors are held weakly, an executor already collected
+ * has nothing left to run.
+ * <p>
+ * The stop helpers (MBeans, watchdog) are reaped by the shutdown hook whatever the drain timeout, the hook only drains when the timeout is positive.
+ * @author Gael Lalire
+ */
+public class ExecutorDrainer {
+
+    // guarded by itself
+    private final List<WeakReference<ExecutorService>> executorServices = new ArrayList<WeakReference<ExecutorService>>();
+
+    // guarded by executorServices
+    private final List<ReaperHelper> stopHelpers = new ArrayList<ReaperHelper>();
+
+    // guarded by executorServices
+    private Thread shutdownHook;
+
+    // guarded by executorServices, null for a runtime hook
+    private Function<Thread, Void, RuntimeException> removeShutdownHook;
+
+    // guarded by executorServices, the runtime hook waiting for the first stop helper
+    private Thread pendingShutdownHook;
+
+    public void register(final ExecutorService executorService) {
+        synchronized (executorServices) {
+            Iterator<WeakReference<ExecutorService>> iterator = executorServices.iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().get() == null) {
+                    iterator.remove();
+                }
+            }
+            executorServices.add(new WeakReference<ExecutorService>(executorService));
+        }
+    }
+
+    /**
+     * @param reaperHelper reaped by the shutdown hook once executors are drained, the vestige reaper would only reap it when the application is collected
+     */
+    public void addStopHelper(final ReaperHelper reaperHelper) {
+        synchronized (executorServices) {
+            stopHelpers.add(reaperHelper);
+            if (pendingShutdownHook != null) {
+                shutdownHook = pendingShutdownHook;
+                pendingShutdownHook = null;
+                Runtime.getRuntime().addShutdownHook(shutdownHook);
+            }
+        }
+    }
+
+    /**
+     * Register the hook stopping the executors now, replacing the previous one.
+     * @param addShutdownHook the function of vestige registering the hooks of the application, null to use the runtime, which keeps the application
+     *            loaded until the JVM exits
+     */
+    public void addShutdownHook(final Function<Thread, Void, RuntimeException> addShutdownHook, final Function<Thread, Void, RuntimeException> removeShutdownHook,
+            final long drainTimeoutMillis) {
+        Thread hook = createShutdownHook(drainTimeoutMillis);
+        synchronized (executorServices) {
+            removeShutdownHook();
+            if (addShutdownHook != null) {
+                addShutdownHook.apply(hook);
+                this.removeShutdownHook = removeShutdownHook;
+            } else {
+                Runtime.getRuntime().addShutdownHook(hook);
+            }
+            shutdownHook = hook;
+        }
+    }
+
+    /**
+     * Register the hook stopping the executors to the runtime with the first stop helper, replacing the previous one. Until then nothing keeps the
+     * application loaded, after that its MBeans already do.
+     */
+    public void addRuntimeShutdownHookWithStopHelpers(final long drainTimeoutMillis) {
+        Thread hook = createShutdownHook(drainTimeoutMillis);
+        synchronized (executorServices) {
+            removeShutdownHook();
+            if (stopHelpers.isEmpty()) {
+                pendingShutdownHook = hook;
+            } else {
+                Runtime.getRuntime().addShutdownHook(hook);
+                shutdownHook = hook;
+            }
+        }
+    }
+
+    // guarded by executorServices
+    private void removeShutdownHook() {
+        pendingShutdownHook = null;
+        Thread hook = shutdownHook;
+        Function<Thread, Void, RuntimeException> remove = removeShutdownHook;
+        shutdownHook = null;
+        removeShutdownHook = null;
+        if (hook == null || hook == Thread.currentThread()) {
+            return;
+        }
+        if (remove != null) {
+            remove.apply(hook);
+        } else {
+            try {
+                Runtime.getRuntime().removeShutdownHook(hook);
+            } catch (IllegalStateException e) {
+                // shutdown in progress, the hook stops the executors too
+            }
+        }
+    }
+
+    private List<ExecutorService> getExecutorServices() {
+        List<ExecutorService> result = new ArrayList<ExecutorService>();
+        synchronized (executorServices) {
+            for (WeakReference<ExecutorService> reference : executorServices) {
+                ExecutorService executorService = reference.get();
+                if (executorService != null) {
+                    result.add(executorService);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Shut down all registered executors and wait for them until the deadline. A {@link java.util.concurrent.ForkJoinPool} does not return its queued tasks
+     * on shutdownNow, they are not counted.
+     */
+    public Result drain(final long timeout, final TimeUnit unit) throws InterruptedException {
+        long start = System.nanoTime();
+        long deadline = start + unit.toNanos(timeout);
+        List<ExecutorService> executors = getExecutorServices();
+        for (ExecutorService executorService : executors) {
+            executorService.shutdown();
+        }
+        List<ExecutorService> late = new ArrayList<ExecutorService>();
+        for (ExecutorService executorService : executors) {
+            if (!executorService.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                late.add(executorService);
+            }
+        }
+        int droppedTaskCount = 0;
+        int runningCount = 0;
+        for (ExecutorService executorService : late) {
+            droppedTaskCount += executorService.shutdownNow().size();
+            if (!executorService.isTerminated()) {
+                // a task ignores the interruption, its daemon thread does not delay the exit
+                runningCount++;
+            }
+        }
+        return new Result(executors.size(), droppedTaskCount, runningCount, System.nanoTime() - start);
+    }
+
+    /**
+     * Drain the executors, then reap the stop helpers. The shutdown hook is removed.
+     */
+    public Result stop(final long timeout, final TimeUnit unit) throws InterruptedException {
+        try {
+            return drain(timeout, unit);
+        } finally {
+            reapStopHelpers();
+        }
+    }
+
+    /**
+     * Reap the stop helpers without draining the executors. The shutdown hook is removed.
+     */
+    public void reapStopHelpers() {
+        List<ReaperHelper> helpers;
+        synchronized (executorServices) {
+            removeShutdownHook();
+            helpers = new ArrayList<ReaperHelper>(stopHelpers);
+            stopHelpers.clear();
+        }
+        for (ReaperHelper reaperHelper : helpers) {
+            reaperHelper.reap();
+        }
+    }
+
+    /**
+     * @param timeoutMillis the executors are not drained if it is not positive, the stop helpers are reaped anyway
+     * @return a hook which stops the executors and prints what was dropped, for the shutdown hooks of the application
+     */
+    public Thread createShutdownHook(final long timeoutMillis) {
+        final Runnable drain = new Runnable() {
+
+            @Override
+            public void run() {
+                if (timeoutMillis <= 0) {
+                    reapStopHelpers();
+                    return;
+                }
+                try {
+                    Result result = stop(timeoutMillis, TimeUnit.MILLISECONDS);
+                    if (result.getDroppedTaskCount() != 0 || result.getRunningCount() != 0) {
+                        StartupTimer.print(result.toString());
+                    }
+                } catch (InterruptedException e) {
+                    StartupTimer.print("logback executors drain interrupted");
+                }
+            }
+        };
+        // created by the application, the hook would keep its context class loader and, in its access control context, its protection domains; logback
+        // keeps the hook through its executor factory, so the application would stay loaded if logback is shared
+        return AccessController.doPrivileged(new PrivilegedAction<Thread>() {
+
+            @Override
+            public Thread run() {
+                Thread hook = new Thread(drain, "logback-drain");
+                hook.setContextClassLoader(ClassLoader.getSystemClassLoader());
+                return hook;
+            }
+        });
+    }
+
+    /**
+     * @author Gael Lalire
+     */
+    public static final class Result {
+
+        private final int executorCount;
+
+        private final int droppedTaskCount;
+
+        private final int runningCount;
+
+        private final long elapsedNanos;
+
+        Result(final int executorCount, final int droppedTaskCount, final int runningCount, final long elapsedNanos) {
+            this.executorCount = executorCount;
+            this.droppedTaskCount = droppedTaskCount;
+            this.runningCount = runningCount;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public int getExecutorCount() {
+            return executorCount;
+        }
+
+        /**
+         * @return tasks still queued at the deadline
+         */
+        public int getDroppedTaskCount() {
+            return droppedTaskCount;
+        }
+
+        /**
+         * @return executors with a task still running after the deadline
+         */
+        public int getRunningCount() {
+            return runningCount;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return executorCount + " logback executors drained in " + StartupTimer.formatMillis(elapsedNanos) + ", " + droppedTaskCount + " tasks dropped, "
+                    + runningCount + " executors still running";
+        }
+
+    }
+
+}
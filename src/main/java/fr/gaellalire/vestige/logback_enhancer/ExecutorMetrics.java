@@ -0,0 +1,238 @@
+/*
+ * This file is part of Vestige.
+ *
+ * Vestige is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Vestige is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Vestige.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.gaellalire.vestige.logback_enhancer;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of an executor used by logback. Counters are lock free so recording does not add contention to the executor. The pool is weakly referenced, the
+ * MBean server must not keep it alive.
+ * @author Gael Lalire
+ */
+public class ExecutorMetrics implements ExecutorMetricsMBean {
+
+    private static final double P99 = 0.99;
+
+    private final WeakReference<ThreadPoolExecutor> poolReference;
+
+    private final AtomicLong submittedCount = new AtomicLong();
+
+    private final AtomicLong completedCount = new AtomicLong();
+
+    private final AtomicLong failedCount = new AtomicLong();
+
+    private final AtomicLong rejectedCount;
+
+    private final AtomicLong droppedCount;
+
+    private final LatencyHistogram queueWait = new LatencyHistogram();
+
+    private final LatencyHistogram runTime = new LatencyHistogram();
+
+    private final LatencyHistogram scheduleDrift = new LatencyHistogram();
+
+    private final AtomicLong purgedCount;
+
+    /**
+     * @param pool pool to read thread and queue sizes from, may be null
+     */
+    public ExecutorMetrics(final ThreadPoolExecutor pool) {
+        this(pool, new AtomicLong());
+    }
+
+    /**
+     * @param purgedCount counter of the periodic tasks cancelled because their command was collected
+     */
+    public ExecutorMetrics(final ThreadPoolExecutor pool, final AtomicLong purgedCount) {
+        this(pool, purgedCount, new AtomicLong(), new AtomicLong());
+    }
+
+    /**
+     * @param rejectedCount counter of the rejections, shared with the {@link OverflowExecutorService} of pool
+     * @param droppedCount counter of the tasks dropped by a {@link CountingDiscardPolicy}, shared with the {@link OverflowExecutorService} of pool
+     */
+    public ExecutorMetrics(final ThreadPoolExecutor pool, final AtomicLong purgedCount, final AtomicLong rejectedCount, final AtomicLong droppedCount) {
+        poolReference = new WeakReference<ThreadPoolExecutor>(pool);
+        this.purgedCount = purgedCount;
+        this.rejectedCount = rejectedCount;
+        this.droppedCount = droppedCount;
+    }
+
+    public void taskSubmitted() {
+        submittedCount.incrementAndGet();
+    }
+
+    public void taskRejected() {
+        rejectedCount.incrementAndGet();
+    }
+
+    public void taskStarted(final long queueWaitNanos) {
+        queueWait.record(queueWaitNanos);
+    }
+
+    public void taskScheduledStarted(final long driftNanos) {
+        scheduleDrift.record(driftNanos);
+    }
+
+    public void taskEnded(final long runTimeNanos, final boolean failed) {
+        runTime.record(runTimeNanos);
+        if (failed) {
+            failedCount.incrementAndGet();
+        } else {
+            completedCount.incrementAndGet();
+        }
+    }
+
+    @Override
+    public int getActiveCount() {
+        ThreadPoolExecutor pool = poolReference.get();
+        if (pool == null) {
+            return 0;
+        }
+        return pool.getActiveCount();
+    }
+
+    @Override
+    public int getPoolSize() {
+        ThreadPoolExecutor pool = poolReference.get();
+        if (pool == null) {
+            return 0;
+        }
+        return pool.getPoolSize();
+    }
+
+    @Override
+    public int getLargestPoolSize() {
+        ThreadPoolExecutor pool = poolReference.get();
+        if (pool == null) {
+            return 0;
+        }
+        return pool.getLargestPoolSize();
+    }
+
+    @Override
+    public int getQueueSize() {
+        ThreadPoolExecutor pool = poolReference.get();
+        if (pool == null) {
+            return 0;
+        }
+        return pool.getQueue().size();
+    }
+
+    @Override
+    public long getSubmittedCount() {
+        return submittedCount.get();
+    }
+
+    @Override
+    public long getCompletedCount() {
+        return completedCount.get();
+    }
+
+    @Override
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    @Override
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    @Override
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    @Override
+    public long getPurgedCount() {
+        return purgedCount.get();
+    }
+
+    @Override
+    public long getQueueWaitMean() {
+        return queueWait.getMeanNanos();
+    }
+
+    @Override
+    public long getQueueWaitP99() {
+        return queueWait.getPercentileNanos(P99);
+    }
+
+    @Override
+    public long getQueueWaitMax() {
+        return queueWait.getMaxNanos();
+    }
+
+    @Override
+    public long getRunTimeMean() {
+        return runTime.getMeanNanos();
+    }
+
+    @Override
+    public long getRunTimeP99() {
+        return runTime.getPercentileNanos(P99);
+    }
+
+    @Override
+    public long getRunTimeMax() {
+        return runTime.getMaxNanos();
+    }
+
+    @Override
+    public long getScheduleDriftMean() {
+        return scheduleDrift.getMeanNanos();
+    }
+
+    @Override
+    public long getScheduleDriftP99() {
+        return scheduleDrift.getPercentileNanos(P99);
+    }
+
+    @Override
+    public long getScheduleDriftMax() {
+        return scheduleDrift.getMaxNanos();
+    }
+
+    public LatencyHistogram getQueueWait() {
+        return queueWait;
+    }
+
+    public LatencyHistogram getRunTime() {
+        return runTime;
+    }
+
+    public LatencyHistogram getScheduleDrift() {
+        return scheduleDrift;
+    }
+
+    @Override
+    public void reset() {
+        submittedCount.set(0);
+        completedCount.set(0);
+        failedCount.set(0);
+        rejectedCount.set(0);
+        droppedCount.set(0);
+        queueWait.reset();
+        runTime.reset();
+        scheduleDrift.reset();
+    }
+
+}
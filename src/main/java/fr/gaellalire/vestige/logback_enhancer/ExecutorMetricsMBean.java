@@ -0,0 +1,69 @@
+/*
+ * This file is part of Vestige.
+ *
+ * Vestige is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Vestige is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Vestige.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.gaellalire.vestige.logback_enhancer;
+
+/**
+ * JMX view of {@link ExecutorMetrics}, durations are in nanoseconds.
+ * @author Gael Lalire
+ */
+public interface ExecutorMetricsMBean {
+
+    int getActiveCount();
+
+    int getPoolSize();
+
+    int getLargestPoolSize();
+
+    int getQueueSize();
+
+    long getSubmittedCount();
+
+    long getCompletedCount();
+
+    long getFailedCount();
+
+    long getRejectedCount();
+
+    /**
+     * @return number of rejected tasks silently dropped by the DROP_COUNTING policy
+     */
+    long getDroppedCount();
+
+    long getPurgedCount();
+
+    long getQueueWaitMean();
+
+    long getQueueWaitP99();
+
+    long getQueueWaitMax();
+
+    long getRunTimeMean();
+
+    long getRunTimeP99();
+
+    long getRunTimeMax();
+
+    long getScheduleDriftMean();
+
+    long getScheduleDriftP99();
+
+    long getScheduleDriftMax();
+
+    void reset();
+
+}
@@ -0,0 +1,56 @@
+/*
+ * This file is part of Vestige.
+ *
+ * Vestige is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Vestige is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Vestige.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.gaellalire.vestige.logback_enhancer;
+
+/**
+ * Kind of {@link java.util.concurrent.ExecutorService} returned by newExecutorService.
+ * @author Gael Lalire
+ */
+public enum ExecutorType {
+
+    /**
+     * {@link java.util.concurrent.ThreadPoolExecutor} of platform threads.
+     */
+    POOL,
+
+    /**
+     * One virtual thread per task, falls back to {@link #POOL} before JDK 21.
+     */
+    VIRTUAL,
+
+    /**
+     * {@link BatchingExecutorService} on a {@link java.util.concurrent.ThreadPoolExecutor}, for short tasks submitted at a high rate.
+     */
+    BATCHING,
+
+    /**
+     * {@link RingBufferExecutorService}, lock free handoff between the logging threads and the executor threads.
+     */
+    RING_BUFFER,
+
+    /**
+     * {@link AdaptiveThreadPoolExecutor}, core size follows the queue wait of tasks within a {@link GlobalThreadBudget}.
+     */
+    ADAPTIVE,
+
+    /**
+     * {@link java.util.concurrent.ForkJoinPool} in async mode, work stealing between threads, falls back to {@link #POOL} before Java 7.
+     */
+    FORK_JOIN
+
+}
@@ -0,0 +1,127 @@
+/*
+ * This file is part of Vestige.
+ *
+ * Vestige is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Vestige is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Vestige.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.gaellalire.vestige.logback_enhancer;
+
+import java.lang.Thread.UncaughtExceptionHandler;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Access to the Java 7 {@link java.util.concurrent.ForkJoinPool} by reflection, this project is compiled for Java 6.
+ * @author Gael Lalire
+ */
+public final class ForkJoinPools {
+
+    private static final Constructor<?> FORK_JOIN_POOL_CONSTRUCTOR;
+
+    private static final Constructor<?> WORKER_THREAD_FACTORY_CONSTRUCTOR;
+
+    private static final Method NEW_WEAK_WORKER_THREAD_FACTORY_METHOD;
+
+    static {
+        Constructor<?> forkJoinPoolConstructor = null;
+        Constructor<?> workerThreadFactoryConstructor = null;
+        Method newWeakWorkerThreadFactoryMethod = null;
+        try {
+            Class<?> forkJoinPoolClass = Class.forName("java.util.concurrent.ForkJoinPool");
+            Class<?> workerThreadFactoryClass = Class.forName("java.util.concurrent.ForkJoinPool$ForkJoinWorkerThreadFactory");
+            forkJoinPoolConstructor = forkJoinPoolClass.getConstructor(int.class, workerThreadFactoryClass, UncaughtExceptionHandler.class, boolean.class);
+            workerThreadFactoryConstructor = Class.forName(ForkJoinPools.class.getPackage().getName() + ".VestigeForkJoinWorkerThreadFactory").getConstructor(
+                    ThreadFactory.class, ThreadAccounting.class);
+            newWeakWorkerThreadFactoryMethod = Class.forName(ForkJoinPools.class.getPackage().getName() + ".JdkProxies").getMethod(
+                    "newWeakForkJoinWorkerThreadFactory", workerThreadFactoryClass);
+        } catch (Exception e) {
+            // java 6
+            forkJoinPoolConstructor = null;
+        } catch (LinkageError e) {
+            // java 6
+            forkJoinPoolConstructor = null;
+        }
+        FORK_JOIN_POOL_CONSTRUCTOR = forkJoinPoolConstructor;
+        WORKER_THREAD_FACTORY_CONSTRUCTOR = workerThreadFactoryConstructor;
+        NEW_WEAK_WORKER_THREAD_FACTORY_METHOD = newWeakWorkerThreadFactoryMethod;
+    }
+
+    private ForkJoinPools() {
+    }
+
+    public static boolean isAvailable() {
+        return FORK_JOIN_POOL_CONSTRUCTOR != null;
+    }
+
+    /**
+     * @param threadFactory creates the threads which construct the workers
+     * @param threadAccounting accounts the workers in place of the threads which construct them, may be null
+     * @return a {@link VestigeForkJoinWorkerThreadFactory}
+     * @throws UnsupportedOperationException if ForkJoinPool is not available
+     */
+    public static Object newWorkerThreadFactory(final ThreadFactory threadFactory, final ThreadAccounting threadAccounting) {
+        if (FORK_JOIN_POOL_CONSTRUCTOR == null) {
+            throw new UnsupportedOperationException("ForkJoinPool requires Java 7");
+        }
+        return newInstance(WORKER_THREAD_FACTORY_CONSTRUCTOR, threadFactory, threadAccounting);
+    }
+
+    /**
+     * @param workerThreadFactory only weakly referenced by the returned factory, the caller must keep it while pools use the returned factory
+     * @return a worker thread factory made of JDK classes, so a pool using it can be reaped, workerThreadFactory itself if the JDK refused the proxy
+     */
+    public static Object newWeakWorkerThreadFactory(final Object workerThreadFactory) {
+        try {
+            return NEW_WEAK_WORKER_THREAD_FACTORY_METHOD.invoke(null, workerThreadFactory);
+        } catch (Exception e) {
+            // the pool will keep the enhancer loaded
+            return workerThreadFactory;
+        }
+    }
+
+    /**
+     * @param workerThreadFactory a worker thread factory returned by this class
+     * @return a ForkJoinPool in async mode (FIFO for tasks never joined)
+     * @throws UnsupportedOperationException if ForkJoinPool is not available
+     */
+    public static ExecutorService newAsyncForkJoinPool(final int parallelism, final Object workerThreadFactory) {
+        if (FORK_JOIN_POOL_CONSTRUCTOR == null) {
+            throw new UnsupportedOperationException("ForkJoinPool requires Java 7");
+        }
+        return (ExecutorService) newInstance(FORK_JOIN_POOL_CONSTRUCTOR, parallelism, workerThreadFactory, null, true);
+    }
+
+    private static Object newInstance(final Constructor<?> constructor, final Object... arguments) {
+        try {
+            return constructor.newInstance(arguments);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        } catch (InstantiationException e) {
+            throw new IllegalStateException(e);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
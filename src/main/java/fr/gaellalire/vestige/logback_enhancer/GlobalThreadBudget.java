@@ -0,0 +1,125 @@
+/*
+ * This file is part of Vestige.
+ *
+ * Vestige is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Vestige is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Vestige.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.gaellalire.vestige.logback_enhancer;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Cap on the core threads of all {@link AdaptiveThreadPoolExecutor} loaded by the same class loader, which is the JVM when the enhancer is shared by the
+ * applications. The cap is {@link LogbackExecutorConfiguration#GLOBAL_MAX_THREADS_PROPERTY}, or {@value #THREADS_PER_PROCESSOR} threads per effective
+ * processor. Threads of a holder which is collected without releasing them, such as an idle pool never shut down, are given back to the budget.
+ * @author Gael Lalire
+ */
+public final class GlobalThreadBudget {
+
+    public static final int THREADS_PER_PROCESSOR = 4;
+
+    private static final GlobalThreadBudget INSTANCE = new GlobalThreadBudget(Integer.getInteger(LogbackExecutorConfiguration.GLOBAL_MAX_THREADS_PROPERTY,
+            THREADS_PER_PROCESSOR * CpuQuota.getEffectiveProcessors()));
+
+    private final int capacity;
+
+    private final AtomicInteger used = new AtomicInteger();
+
+    private final ReferenceQueue<Object> collectedHolders = new ReferenceQueue<Object>();
+
+    private final Set<HolderReference> holders = Collections.newSetFromMap(new ConcurrentHashMap<HolderReference, Boolean>());
+
+    public GlobalThreadBudget(final int capacity) {
+        this.capacity = capacity;
+    }
+
+    public static GlobalThreadBudget getInstance() {
+        return INSTANCE;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getUsed() {
+        releaseCollectedHolders();
+        return used.get();
+    }
+
+    /**
+     * @param holder weakly referenced, the threads it still holds when it is collected are released
+     * @return the number of threads of holder, its owner must keep it equal to the threads acquired minus the threads released
+     */
+    public AtomicInteger hold(final Object holder) {
+        releaseCollectedHolders();
+        AtomicInteger threads = new AtomicInteger();
+        holders.add(new HolderReference(holder, collectedHolders, threads));
+        return threads;
+    }
+
+    private void releaseCollectedHolders() {
+        Reference<?> reference = collectedHolders.poll();
+        while (reference != null) {
+            HolderReference holderReference = (HolderReference) reference;
+            if (holders.remove(holderReference)) {
+                release(holderReference.threads.getAndSet(0));
+            }
+            reference = collectedHolders.poll();
+        }
+    }
+
+    public boolean tryAcquire() {
+        releaseCollectedHolders();
+        int current;
+        do {
+            current = used.get();
+            if (current >= capacity) {
+                return false;
+            }
+        } while (!used.compareAndSet(current, current + 1));
+        return true;
+    }
+
+    /**
+     * Take a thread even if the cap is reached, each pool keeps at least one.
+     */
+    public void acquire() {
+        used.incrementAndGet();
+    }
+
+    public void release(final int threads) {
+        used.addAndGet(-threads);
+    }
+
+    /**
+     * @author Gael Lalire
+     */
+    private static final class HolderReference extends WeakReference<Object> {
+
+        private final AtomicInteger threads;
+
+        HolderReference(final Object holder, final ReferenceQueue<Object> referenceQueue, final AtomicInteger threads) {
+            super(holder, referenceQueue);
+            this.threads = threads;
+        }
+
+    }
+
+}
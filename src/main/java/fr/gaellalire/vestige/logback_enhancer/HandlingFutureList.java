@@ -0,0 +1,58 @@
+/*
+ * This file is part of Vestige.
+ *
+ * Vestige is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Vestige is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Vestige.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.gaellalire.vestige.logback_enhancer;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.Future;
+
+/**
+ * Read only view of the futures returned by invokeAll. The list keeps all tasks strongly reachable and each {@link StrongRefFuture} is only created when the
+ * element is read.
+ * @author Gael Lalire
+ */
+public class HandlingFutureList<T> extends AbstractList<Future<T>> implements RandomAccess {
+
+    private final List<Future<T>> futures;
+
+    private final List<?> tasks;
+
+    public HandlingFutureList(final List<Future<T>> futures, final Collection<?> tasks) {
+        this.futures = futures;
+        // invokeAll returns futures in the iteration order of tasks
+        if (tasks instanceof List && tasks instanceof RandomAccess) {
+            this.tasks = (List<?>) tasks;
+        } else {
+            this.tasks = Arrays.asList(tasks.toArray());
+        }
+    }
+
+    @Override
+    public Future<T> get(final int index) {
+        return new StrongRefFuture<T>(futures.get(index), tasks.get(index));
+    }
+
+    @Override
+    public int size() {
+        return futures.size();
+    }
+
+}
@@ -18,11 +18,19 @@
 package fr.gaellalire.vestige.logback_enhancer;
 
 import java.lang.ModuleLayer.Controller;
-import java.lang.reflect.Method;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import ch.qos.logback.core.util.ExecutorServiceUtil;
 import fr.gaellalire.vestige.core.JPMSVestige;
 import fr.gaellalire.vestige.core.Vestige;
 import fr.gaellalire.vestige.core.VestigeCoreContext;
@@ -33,6 +41,10 @@ import fr.gaellalire.vestige.core.function.Function;
  */
 public class JPMSLogbackEnhancer extends LogbackEnhancer {
 
+    public static final String MULTI_OPTION = "--multi";
+
+    public static final String END_OF_MAINS = "--";
+
     private Controller controller;
 
     public JPMSLogbackEnhancer(final Class<?> mainClass, final VestigeCoreContext vestigeCoreContext, final Function<Thread, Void, RuntimeException> addShutdownHook,
@@ -43,26 +55,35 @@ public class JPMSLogbackEnhancer extends LogbackEnhancer {
     }
 
     public Object runEnhancedMain() throws Exception {
-        try {
-            Method method = getMainClass().getMethod("vestigeEnhancedCoreMain", VestigeCoreContext.class, Function.class, Function.class, List.class, Controller.class,
-                    String[].class);
-            return method.invoke(null, new Object[] {getVestigeCoreContext(), getAddShutdownHook(), getRemoveShutdownHook(), getPrivilegedClassloaders(), controller, getDargs()});
-        } catch (NoSuchMethodException e) {
+        EnhancedMainInvoker enhancedMainInvoker = EnhancedMainResolver.resolve(getMainClass(), VestigeCoreContext.class, Function.class, Function.class, List.class,
+                Controller.class, String[].class);
+        if (enhancedMainInvoker == null) {
             return super.runEnhancedMain();
         }
+        startingMain();
+        return enhancedMainInvoker
+                .invoke(new Object[] {getVestigeCoreContext(), getAddShutdownHook(), getRemoveShutdownHook(), getPrivilegedClassloaders(), controller, getDargs()});
+    }
+
+    @Override
+    protected String getApplicationName() {
+        Module module = getMainClass().getModule();
+        if (module.isNamed()) {
+            return module.getName() + "/" + getMainClass().getName();
+        }
+        return super.getApplicationName();
     }
 
     public Object runMain() throws Exception {
+        startingMain();
         return JPMSVestige.runMain(null, getMainClass(), controller, getVestigeCoreContext(), getDargs());
     }
 
-    public static Object vestigeEnhancedCoreMain(final VestigeCoreContext vestigeCoreContext, final Function<Thread, Void, RuntimeException> addShutdownHook,
-            final Function<Thread, Void, RuntimeException> removeShutdownHook, final List<? extends ClassLoader> privilegedClassloaders, final Controller controller,
-            final String[] args) throws Exception {
-        if (args.length == 0) {
-            throw new IllegalArgumentException("Expecting at least 1 arg : mainModule[/mainClass]");
-        }
-        String mainModule = args[0];
+    /**
+     * Find the main class of a mainModule[/mainClass] argument, and let this module read the module of the main class.
+     */
+    private static Class<?> resolveMainClass(final Controller controller, final String mainModuleAndClass) throws ClassNotFoundException {
+        String mainModule = mainModuleAndClass;
         String mainClass = null;
         int indexOf = mainModule.indexOf('/');
         if (indexOf != -1) {
@@ -70,8 +91,6 @@ public class JPMSLogbackEnhancer extends LogbackEnhancer {
             mainModule = mainModule.substring(0, indexOf);
         }
 
-        String[] dargs = new String[args.length - 1];
-        System.arraycopy(args, 1, dargs, 0, dargs.length);
         Optional<Module> findModule;
         if (controller == null) {
             findModule = ModuleLayer.boot().findModule(mainModule);
@@ -82,7 +101,9 @@ public class JPMSLogbackEnhancer extends LogbackEnhancer {
             throw new IllegalArgumentException("Module " + mainModule + " cannot be found");
         }
         Module module = findModule.get();
-        controller.addReads(JPMSLogbackEnhancer.class.getModule(), module);
+        if (controller != null) {
+            controller.addReads(JPMSLogbackEnhancer.class.getModule(), module);
+        }
         if (mainClass == null) {
             Optional<String> mainClassOptional = module.getDescriptor().mainClass();
             if (!mainClassOptional.isPresent()) {
@@ -90,9 +111,142 @@ public class JPMSLogbackEnhancer extends LogbackEnhancer {
             }
             mainClass = mainClassOptional.get();
         }
+        return module.getClassLoader().loadClass(mainClass);
+    }
+
+    public static Object vestigeEnhancedCoreMain(final VestigeCoreContext vestigeCoreContext, final Function<Thread, Void, RuntimeException> addShutdownHook,
+            final Function<Thread, Void, RuntimeException> removeShutdownHook, final List<? extends ClassLoader> privilegedClassloaders, final Controller controller,
+            final String[] args) throws Exception {
+        if (args.length == 0) {
+            throw new IllegalArgumentException("Expecting at least 1 arg : mainModule[/mainClass]");
+        }
+        if (MULTI_OPTION.equals(args[0])) {
+            return multiLaunch(vestigeCoreContext, addShutdownHook, removeShutdownHook, privilegedClassloaders, controller, args);
+        }
+
+        String[] dargs = new String[args.length - 1];
+        System.arraycopy(args, 1, dargs, 0, dargs.length);
+
+        return new JPMSLogbackEnhancer(resolveMainClass(controller, args[0]), vestigeCoreContext, addShutdownHook, removeShutdownHook, privilegedClassloaders,
+                controller, dargs).enhance();
+    }
+
+    /**
+     * Launch several applications of the layer: <code>--multi mainModule[/mainClass]... [-- args...]</code>, all main methods get the same args. Main classes
+     * are resolved in parallel, then each main method runs in its own thread. The executor factory of logback is installed once, each application gets its
+     * own {@link VestigeExecutorServiceFactory}, named after its module and main class, a suffix is added to the name of an application launched twice.
+     * @return the first non null result of the main methods in launch order, once they all returned
+     */
+    private static Object multiLaunch(final VestigeCoreContext vestigeCoreContext, final Function<Thread, Void, RuntimeException> addShutdownHook,
+            final Function<Thread, Void, RuntimeException> removeShutdownHook, final List<? extends ClassLoader> privilegedClassloaders, final Controller controller,
+            final String[] args) throws Exception {
+        List<String> mainModuleAndClasses = new ArrayList<String>();
+        int argIndex = 1;
+        while (argIndex < args.length && !END_OF_MAINS.equals(args[argIndex])) {
+            mainModuleAndClasses.add(args[argIndex]);
+            argIndex++;
+        }
+        if (mainModuleAndClasses.isEmpty()) {
+            throw new IllegalArgumentException("Expecting at least 1 arg after " + MULTI_OPTION + " : mainModule[/mainClass]");
+        }
+        argIndex++;
+        String[] dargs = new String[Math.max(0, args.length - argIndex)];
+        System.arraycopy(args, Math.min(argIndex, args.length), dargs, 0, dargs.length);
+
+        List<Class<?>> mainClasses = resolveMainClasses(controller, mainModuleAndClasses);
+
+        LogbackExecutorConfiguration configuration = LogbackExecutorConfiguration.fromSystemProperties();
+        ApplicationExecutorServiceFactory applicationExecutorServiceFactory = new ApplicationExecutorServiceFactory();
+        List<Thread> mainThreads = new ArrayList<Thread>();
+        // written by each main thread at its launch index, read after the joins
+        final Object[] results = new Object[mainClasses.size()];
+        final Throwable[] failures = new Throwable[mainClasses.size()];
+        Set<String> applicationNames = new HashSet<String>();
+        for (int i = 0; i < mainClasses.size(); i++) {
+            final int launchIndex = i;
+            Class<?> mainClass = mainClasses.get(i);
+            final JPMSLogbackEnhancer enhancer = new JPMSLogbackEnhancer(mainClass, vestigeCoreContext, addShutdownHook, removeShutdownHook,
+                    privilegedClassloaders, controller, dargs);
+            LogbackExecutorConfiguration applicationConfiguration = configuration.copy();
+            // one name per application, the applicationName property would be shared
+            String uniqueApplicationName = enhancer.getApplicationName();
+            int occurrence = 1;
+            while (!applicationNames.add(uniqueApplicationName)) {
+                occurrence++;
+                uniqueApplicationName = enhancer.getApplicationName() + "-" + occurrence;
+            }
+            applicationConfiguration.setApplicationName(uniqueApplicationName);
+            final String applicationName = enhancer.configure(applicationConfiguration).getApplicationName();
+            final VestigeExecutorServiceFactory executorServiceFactory = createExecutorServiceFactory(vestigeCoreContext, applicationConfiguration);
+            applicationExecutorServiceFactory.addApplication(applicationName, executorServiceFactory);
+            Thread mainThread = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    ApplicationExecutorServiceFactory.setCurrentApplication(applicationName);
+                    try {
+                        results[launchIndex] = enhancer.run(executorServiceFactory);
+                    } catch (Throwable e) {
+                        failures[launchIndex] = e;
+                    }
+                }
+            }, "main-" + applicationName);
+            mainThread.setContextClassLoader(mainClass.getClassLoader());
+            mainThreads.add(mainThread);
+        }
+        ExecutorServiceUtil.setFactory(applicationExecutorServiceFactory);
+        for (Thread mainThread : mainThreads) {
+            mainThread.start();
+        }
+        for (Thread mainThread : mainThreads) {
+            mainThread.join();
+        }
+        for (Throwable failure : failures) {
+            if (failure instanceof Exception) {
+                throw (Exception) failure;
+            }
+            if (failure != null) {
+                throw (Error) failure;
+            }
+        }
+        for (Object result : results) {
+            if (result != null) {
+                return result;
+            }
+        }
+        return null;
+    }
+
+    private static List<Class<?>> resolveMainClasses(final Controller controller, final List<String> mainModuleAndClasses) throws Exception {
+        int size = mainModuleAndClasses.size();
+        ExecutorService resolver = Executors.newFixedThreadPool(Math.min(size, Runtime.getRuntime().availableProcessors()));
+        try {
+            List<Future<Class<?>>> futures = new ArrayList<Future<Class<?>>>(size);
+            for (final String mainModuleAndClass : mainModuleAndClasses) {
+                futures.add(resolver.submit(new Callable<Class<?>>() {
 
-        return new JPMSLogbackEnhancer(module.getClassLoader().loadClass(mainClass), vestigeCoreContext, addShutdownHook, removeShutdownHook, privilegedClassloaders, controller, dargs)
-                .enhance();
+                    @Override
+                    public Class<?> call() throws Exception {
+                        return resolveMainClass(controller, mainModuleAndClass);
+                    }
+                }));
+            }
+            List<Class<?>> mainClasses = new ArrayList<Class<?>>(size);
+            for (Future<Class<?>> future : futures) {
+                try {
+                    mainClasses.add(future.get());
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof Exception) {
+                        throw (Exception) cause;
+                    }
+                    throw (Error) cause;
+                }
+            }
+            return mainClasses;
+        } finally {
+            resolver.shutdown();
+        }
     }
 
     public static Object vestigeCoreMain(final Controller controller, final VestigeCoreContext vestigeCoreContext, final String[] args) throws Exception {
@@ -104,6 +258,7 @@ public class JPMSLogbackEnhancer extends LogbackEnhancer {
     }
 
     public static void main(final String[] args) throws Exception {
+        CdsArchive.install();
         VestigeCoreContext vestigeCoreContext = VestigeCoreContext.buildDefaultInstance();
         URL.setURLStreamHandlerFactory(vestigeCoreContext.getStreamHandlerFactory());
         Vestige.runCallableLoop(vestigeCoreMain(vestigeCoreContext, args));
@@ -0,0 +1,87 @@
+/*
+ * This file is part of Vestige.
+ *
+ * Vestige is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Vestige is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Vestige.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.gaellalire.vestige.logback_enhancer;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandleProxies;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.ref.Reference;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinPool.ForkJoinWorkerThreadFactory;
+import java.util.concurrent.ForkJoinWorkerThread;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import fr.gaellalire.vestige.core.weak.ReaperHelper;
+
+/**
+ * Interface instances built from method handles, their classes are generated by the JDK in the class loader of the interface, or in the system class loader
+ * for a JDK interface, so they do not keep the enhancer loaded when it is loaded with the application. Java 7 API, only loaded by reflection.
+ * @author Gael Lalire
+ */
+public final class JdkProxies {
+
+    private JdkProxies() {
+    }
+
+    /**
+     * The proxy of an interface of the bootstrap class loader is defined in the context class loader, which may be the application one.
+     */
+    private static <T> T asInterfaceInstance(final Class<T> intfc, final MethodHandle target) {
+        Thread currentThread = Thread.currentThread();
+        ClassLoader contextClassLoader = currentThread.getContextClassLoader();
+        currentThread.setContextClassLoader(ClassLoader.getSystemClassLoader());
+        try {
+            return MethodHandleProxies.asInterfaceInstance(intfc, target);
+        } finally {
+            currentThread.setContextClassLoader(contextClassLoader);
+        }
+    }
+
+    /**
+     * @return a helper unregistering objectName from mBeanServer when reaped, ignoring an MBean already unregistered
+     */
+    public static ReaperHelper newUnregisterMBeanReaperHelper(final MBeanServer mBeanServer, final ObjectName objectName) throws ReflectiveOperationException {
+        MethodHandle unregister = MethodHandles.publicLookup().findVirtual(MBeanServer.class, "unregisterMBean", MethodType.methodType(void.class, ObjectName.class));
+        unregister = MethodHandles.insertArguments(unregister, 0, mBeanServer, objectName);
+        MethodHandle ignore = MethodHandles.dropArguments(MethodHandles.constant(Object.class, null).asType(MethodType.methodType(void.class)), 0, JMException.class);
+        return asInterfaceInstance(ReaperHelper.class, MethodHandles.catchException(unregister, JMException.class, ignore));
+    }
+
+    /**
+     * @param workerThreadFactory only weakly referenced, the caller must keep it while pools use the returned factory
+     * @return a factory delegating to workerThreadFactory, creating no worker once it is collected
+     */
+    public static ForkJoinWorkerThreadFactory newWeakForkJoinWorkerThreadFactory(final ForkJoinWorkerThreadFactory workerThreadFactory)
+            throws ReflectiveOperationException {
+        MethodHandle newThread = MethodHandles.publicLookup().findVirtual(ForkJoinWorkerThreadFactory.class, "newThread",
+                MethodType.methodType(ForkJoinWorkerThread.class, ForkJoinPool.class));
+        MethodHandle get = MethodHandles.publicLookup().findVirtual(Reference.class, "get", MethodType.methodType(Object.class))
+                .bindTo(new WeakReference<ForkJoinWorkerThreadFactory>(workerThreadFactory)).asType(MethodType.methodType(ForkJoinWorkerThreadFactory.class));
+        // a collected factory is a null receiver, the pool does not add a worker when it gets a null thread
+        MethodHandle noThread = MethodHandles.dropArguments(MethodHandles.constant(ForkJoinWorkerThread.class, null), 0, NullPointerException.class,
+                ForkJoinPool.class);
+        return asInterfaceInstance(ForkJoinWorkerThreadFactory.class, MethodHandles.catchException(MethodHandles.foldArguments(newThread, get), NullPointerException.class,
+                noThread));
+    }
+
+}
@@ -0,0 +1,107 @@
+/*
+ * This file is part of Vestige.
+ *
+ * Vestige is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Vestige is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Vestige.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.gaellalire.vestige.logback_enhancer;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free histogram of durations in nanoseconds. Bucket i counts values in [2^(i-1), 2^i), so percentiles are upper bounds with a factor 2 precision which is
+ * enough to spot latency spikes.
+ * @author Gael Lalire
+ */
+public class LatencyHistogram {
+
+    private static final int BUCKET_COUNT = 64;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+
+    private final AtomicLong count = new AtomicLong();
+
+    private final AtomicLong total = new AtomicLong();
+
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(final long nanos) {
+        long value = nanos;
+        if (value < 0) {
+            value = 0;
+        }
+        buckets.incrementAndGet(BUCKET_COUNT - Long.numberOfLeadingZeros(value));
+        count.incrementAndGet();
+        total.addAndGet(value);
+        long currentMax = max.get();
+        while (value > currentMax && !max.compareAndSet(currentMax, value)) {
+            currentMax = max.get();
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMeanNanos() {
+        long c = count.get();
+        if (c == 0) {
+            return 0;
+        }
+        return total.get() / c;
+    }
+
+    public long getMaxNanos() {
+        return max.get();
+    }
+
+    /**
+     * @param percentile between 0 and 1
+     */
+    public long getPercentileNanos(final double percentile) {
+        long c = count.get();
+        if (c == 0) {
+            return 0;
+        }
+        long target = (long) Math.ceil(c * percentile);
+        long cumulated = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            cumulated += buckets.get(i);
+            if (cumulated >= target) {
+                if (i == 0) {
+                    return 0;
+                }
+                long upperBound;
+                if (i >= BUCKET_COUNT - 1) {
+                    upperBound = Long.MAX_VALUE;
+                } else {
+                    upperBound = 1L << i;
+                }
+                return Math.min(upperBound, max.get());
+            }
+        }
+        return max.get();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets.set(i, 0);
+        }
+        count.set(0);
+        total.set(0);
+        max.set(0);
+    }
+
+}
@@ -17,30 +17,15 @@
 
 package fr.gaellalire.vestige.logback_enhancer;
 
-import java.lang.reflect.Method;
 import java.net.URL;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
-import java.util.concurrent.SynchronousQueue;
-import java.util.concurrent.ThreadFactory;
-import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
 
-import ch.qos.logback.core.CoreConstants;
-import ch.qos.logback.core.util.ExecutorServiceFactory;
 import ch.qos.logback.core.util.ExecutorServiceUtil;
 import fr.gaellalire.vestige.core.Vestige;
 import fr.gaellalire.vestige.core.VestigeCoreContext;
 import fr.gaellalire.vestige.core.executor.VestigeExecutor;
-import fr.gaellalire.vestige.core.executor.VestigeWorker;
 import fr.gaellalire.vestige.core.function.Function;
-import fr.gaellalire.vestige.core.weak.ExecutorServiceReaperHelper;
-import fr.gaellalire.vestige.core.weak.VestigeReaper;
-import fr.gaellalire.vestige.core.weak.VestigeWorkerReaperHelper;
-import fr.gaellalire.vestige.core.weak.WeakThreadFactory;
 
 /**
  * @author Gael Lalire
@@ -59,16 +44,24 @@ public class LogbackEnhancer {
 
     private Function<Thread, Void, RuntimeException> removeShutdownHook;
 
+    private StartupTimer startupTimer;
+
+    private boolean startupTiming;
+
+    private ExecutorDrainer executorDrainer;
+
     public Object runEnhancedMain() throws Exception {
-        try {
-            Method method = mainClass.getMethod("vestigeEnhancedCoreMain", VestigeCoreContext.class, Function.class, Function.class, List.class, String[].class);
-            return method.invoke(null, new Object[] {vestigeCoreContext, addShutdownHook, removeShutdownHook, privilegedClassloaders, dargs});
-        } catch (NoSuchMethodException e) {
+        EnhancedMainInvoker enhancedMainInvoker = EnhancedMainResolver.resolve(mainClass, VestigeCoreContext.class, Function.class, Function.class, List.class,
+                String[].class);
+        if (enhancedMainInvoker == null) {
             return runMain();
         }
+        startingMain();
+        return enhancedMainInvoker.invoke(new Object[] {vestigeCoreContext, addShutdownHook, removeShutdownHook, privilegedClassloaders, dargs});
     }
 
     public Object runMain() throws Exception {
+        startingMain();
         return Vestige.runMain(null, mainClass, vestigeCoreContext, dargs);
     }
 
@@ -110,65 +103,114 @@ public class LogbackEnhancer {
         return privilegedClassloaders;
     }
 
-    public static void enhance(final VestigeCoreContext vestigeCoreContext) throws Exception {
-        final VestigeReaper vestigeReaper = vestigeCoreContext.getVestigeReaper();
-
-        final ClassLoader classLoader = ClassLoader.getSystemClassLoader();
-        final VestigeWorker vestigeWorker = vestigeCoreContext.getVestigeExecutor().createWorker("logback-worker", true, 0);
-        vestigeReaper.addReapable(ExecutorServiceUtil.class, new VestigeWorkerReaperHelper(vestigeWorker));
-
-        final ThreadFactory threadFactory = new ThreadFactory() {
-
-            private final AtomicInteger threadNumber = new AtomicInteger(1);
-
-            public Thread newThread(final Runnable r) {
-                Thread thread;
-                try {
-                    thread = vestigeWorker.createThread(null, r, "logback-" + threadNumber.getAndIncrement(), 0);
-                } catch (InterruptedException e) {
-                    return null;
-                }
-
-                if (!thread.isDaemon()) {
-                    thread.setDaemon(true);
-                }
-                thread.setContextClassLoader(classLoader);
-                return thread;
-            }
-        };
+    public static VestigeExecutorServiceFactory enhance(final VestigeCoreContext vestigeCoreContext) throws Exception {
+        return enhance(vestigeCoreContext, LogbackExecutorConfiguration.fromSystemProperties());
+    }
 
-        ExecutorServiceUtil.setFactory(new ExecutorServiceFactory() {
+    /**
+     * Installs the logback executor factory. The logback worker and its thread factories are created when logback asks for its first executor. Without the
+     * addShutdownHook function of vestige, executors are stopped and their MBeans unregistered by a runtime hook, registered with the first MBean.
+     */
+    public static VestigeExecutorServiceFactory enhance(final VestigeCoreContext vestigeCoreContext, final LogbackExecutorConfiguration configuration)
+            throws Exception {
+        return enhance(vestigeCoreContext, configuration, null, null);
+    }
 
-            // prevent GC of threadFactory while this ExecutorServiceFactory is not GC
-            @SuppressWarnings("unused")
-            private ThreadFactory threadFactoryHandler = threadFactory;
+    /**
+     * @param addShutdownHook the function of vestige registering the hooks of the application, the executors are stopped and their MBeans unregistered when it
+     *            stops, null to use a runtime hook
+     */
+    public static VestigeExecutorServiceFactory enhance(final VestigeCoreContext vestigeCoreContext, final LogbackExecutorConfiguration configuration,
+            final Function<Thread, Void, RuntimeException> addShutdownHook, final Function<Thread, Void, RuntimeException> removeShutdownHook) throws Exception {
+        VestigeExecutorServiceFactory executorServiceFactory = createExecutorServiceFactory(vestigeCoreContext, configuration);
+        if (addShutdownHook != null) {
+            executorServiceFactory.getExecutorDrainer().addShutdownHook(addShutdownHook, removeShutdownHook, configuration.getDrainTimeoutMillis());
+        } else {
+            executorServiceFactory.getExecutorDrainer().addRuntimeShutdownHookWithStopHelpers(configuration.getDrainTimeoutMillis());
+        }
+        ExecutorServiceUtil.setFactory(executorServiceFactory);
+        return executorServiceFactory;
+    }
 
-            // prepare the weak reference for ThreadPoolExecutor
-            private WeakThreadFactory weakThreadFactory = new WeakThreadFactory(threadFactory);
+    /**
+     * @return an executor factory which is not installed in logback yet
+     */
+    public static VestigeExecutorServiceFactory createExecutorServiceFactory(final VestigeCoreContext vestigeCoreContext,
+            final LogbackExecutorConfiguration configuration) {
+        LogbackThreadFactories threadFactories = new LogbackThreadFactories(vestigeCoreContext, configuration);
+        return new VestigeExecutorServiceFactory(vestigeCoreContext.getVestigeReaper(), threadFactories, configuration);
+    }
 
-            @Override
-            public ScheduledExecutorService newScheduledExecutorService() {
-                final ScheduledThreadPoolExecutor delegate = new ScheduledThreadPoolExecutor(CoreConstants.SCHEDULED_EXECUTOR_POOL_SIZE, weakThreadFactory);
-                WeakScheduledThreadPoolExecutor weakScheduledThreadPoolExecutor = new WeakScheduledThreadPoolExecutor(delegate);
-                vestigeReaper.addReapable(ExecutorServiceUtil.class, new ExecutorServiceReaperHelper(delegate));
-                return weakScheduledThreadPoolExecutor;
-            }
+    /**
+     * Drain the logback executors and unregister their MBeans now instead of at shutdown, the shutdown hook is removed.
+     * @return null if the executor factory is not installed yet
+     */
+    public ExecutorDrainer.Result stopExecutors(final long timeout, final TimeUnit unit) throws InterruptedException {
+        if (executorDrainer == null) {
+            return null;
+        }
+        return executorDrainer.stop(timeout, unit);
+    }
 
-            @Override
-            public ExecutorService newExecutorService() {
-                final ThreadPoolExecutor delegate = new ThreadPoolExecutor(CoreConstants.CORE_POOL_SIZE, CoreConstants.MAX_POOL_SIZE, 0L, TimeUnit.MILLISECONDS,
-                        new SynchronousQueue<Runnable>(), weakThreadFactory);
-                final WeakThreadPoolExecutor weakThreadPoolExecutor = new WeakThreadPoolExecutor(delegate);
-                vestigeReaper.addReapable(ExecutorServiceUtil.class, new ExecutorServiceReaperHelper(delegate));
-                return weakThreadPoolExecutor;
-            }
+    /**
+     * Ends the startup timing, must be called just before the main method.
+     */
+    protected void startingMain() {
+        if (startupTimer == null) {
+            return;
+        }
+        startupTimer.mark("main resolution");
+        if (startupTiming) {
+            StartupTimer.print(startupTimer.report("main of " + mainClass.getName() + " reached"));
+        }
+        startupTimer = null;
+    }
 
-        });
+    /**
+     * @return the identity of the application in thread names and JMX
+     */
+    protected String getApplicationName() {
+        return mainClass.getName();
+    }
 
+    /**
+     * @param configuration completed with the application name if it has none
+     */
+    protected LogbackExecutorConfiguration configure(final LogbackExecutorConfiguration configuration) {
+        if (configuration.getApplicationName() == null) {
+            configuration.setApplicationName(getApplicationName());
+        }
+        startupTiming = configuration.isStartupTiming();
+        return configuration;
     }
 
     public Object enhance() throws Exception {
-        enhance(vestigeCoreContext);
+        startupTimer = new StartupTimer();
+        LogbackExecutorConfiguration configuration = configure(LogbackExecutorConfiguration.fromSystemProperties());
+        startupTimer.mark("configuration");
+        return run(enhance(vestigeCoreContext, configuration));
+    }
+
+    /**
+     * Run the main method of the application once its executor factory is installed, directly or behind an {@link ApplicationExecutorServiceFactory}.
+     */
+    public Object run(final VestigeExecutorServiceFactory executorServiceFactory) throws Exception {
+        // logback classes are never collected if logback is shared by the applications, the main class is
+        executorServiceFactory.getApplicationReaper().setReapKey(mainClass);
+        executorDrainer = executorServiceFactory.getExecutorDrainer();
+        long drainTimeoutMillis = executorServiceFactory.getConfiguration().getDrainTimeoutMillis();
+        if (addShutdownHook != null || drainTimeoutMillis > 0) {
+            // a hook registered to the runtime keeps the application loaded until the JVM exits
+            executorDrainer.addShutdownHook(addShutdownHook, removeShutdownHook, drainTimeoutMillis);
+        } else {
+            executorDrainer.addRuntimeShutdownHookWithStopHelpers(drainTimeoutMillis);
+        }
+        if (executorServiceFactory.getConfiguration().isCdsTraining()) {
+            CdsArchive.warmUp(executorServiceFactory);
+        }
+        if (startupTimer != null) {
+            startupTimer.mark("executor factory");
+        }
 
         if (addShutdownHook != null || removeShutdownHook != null || privilegedClassloaders != null) {
             return runEnhancedMain();
@@ -196,6 +238,7 @@ public class LogbackEnhancer {
     }
 
     public static void main(final String[] args) throws Exception {
+        CdsArchive.install();
         final VestigeCoreContext vestigeCoreContext = VestigeCoreContext.buildDefaultInstance();
         URL.setURLStreamHandlerFactory(vestigeCoreContext.getStreamHandlerFactory());
         Vestige.runCallableLoop(vestigeCoreMain(vestigeCoreContext, args));
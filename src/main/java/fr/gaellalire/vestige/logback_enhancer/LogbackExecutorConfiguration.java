@@ -0,0 +1,542 @@
+/*
+ * This file is part of Vestige.
+ *
+ * Vestige is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Vestige is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Vestige.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.gaellalire.vestige.logback_enhancer;
+
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import ch.qos.logback.core.CoreConstants;
+
+/**
+ * Configuration of the executors given to logback. Default values reproduce the logback ones, {@link #fromSystemProperties()} reads the
+ * <code>vestige.logback.*</code> system properties.
+ * @author Gael Lalire
+ */
+public class LogbackExecutorConfiguration implements Cloneable {
+
+    public static final String PROPERTY_PREFIX = "vestige.logback.";
+
+    public static final String EXECUTOR_TYPE_PROPERTY = PROPERTY_PREFIX + "executorType";
+
+    public static final String CORE_POOL_SIZE_PROPERTY = PROPERTY_PREFIX + "corePoolSize";
+
+    public static final String MAX_POOL_SIZE_PROPERTY = PROPERTY_PREFIX + "maxPoolSize";
+
+    public static final String KEEP_ALIVE_MILLIS_PROPERTY = PROPERTY_PREFIX + "keepAliveMillis";
+
+    public static final String QUEUE_TYPE_PROPERTY = PROPERTY_PREFIX + "queueType";
+
+    public static final String QUEUE_CAPACITY_PROPERTY = PROPERTY_PREFIX + "queueCapacity";
+
+    public static final String OVERFLOW_POLICY_PROPERTY = PROPERTY_PREFIX + "overflowPolicy";
+
+    public static final String SCHEDULER_TYPE_PROPERTY = PROPERTY_PREFIX + "schedulerType";
+
+    public static final String SCHEDULED_POOL_SIZE_PROPERTY = PROPERTY_PREFIX + "scheduledPoolSize";
+
+    /**
+     * Tick resolution of {@link SchedulerType#WHEEL}, tasks run up to one tick late.
+     */
+    public static final String WHEEL_TICK_MICROS_PROPERTY = PROPERTY_PREFIX + "wheelTickMicros";
+
+    /**
+     * Tasks run by a drainer of {@link ExecutorType#BATCHING} before it gives its thread back.
+     */
+    public static final String BATCH_SIZE_PROPERTY = PROPERTY_PREFIX + "batchSize";
+
+    /**
+     * Time a drainer of {@link ExecutorType#BATCHING} waits for its batch to fill.
+     */
+    public static final String BATCH_WINDOW_MICROS_PROPERTY = PROPERTY_PREFIX + "batchWindowMicros";
+
+    /**
+     * How idle threads of {@link ExecutorType#RING_BUFFER} wait for tasks.
+     */
+    public static final String WAIT_STRATEGY_PROPERTY = PROPERTY_PREFIX + "waitStrategy";
+
+    /**
+     * Queue wait above which {@link ExecutorType#ADAPTIVE} adds a thread.
+     */
+    public static final String TARGET_QUEUE_WAIT_MICROS_PROPERTY = PROPERTY_PREFIX + "targetQueueWaitMicros";
+
+    /**
+     * Minimum time between two resizes of {@link ExecutorType#ADAPTIVE}.
+     */
+    public static final String ADAPTIVE_INTERVAL_MILLIS_PROPERTY = PROPERTY_PREFIX + "adaptiveIntervalMillis";
+
+    /**
+     * Cap of the core threads of all {@link ExecutorType#ADAPTIVE} executors, read once.
+     */
+    public static final String GLOBAL_MAX_THREADS_PROPERTY = PROPERTY_PREFIX + "globalMaxThreads";
+
+    /**
+     * Set to true to reuse the weak wrapper of commands submitted several times.
+     */
+    public static final String CACHE_WEAK_RUNNABLE_PROPERTY = PROPERTY_PREFIX + "cacheWeakRunnable";
+
+    /**
+     * Set to true to run periodic tasks with the same command class and period from a single scheduled task.
+     */
+    public static final String COALESCE_PERIODIC_TASKS_PROPERTY = PROPERTY_PREFIX + "coalescePeriodicTasks";
+
+    /**
+     * Set to true to shut down executors and cancel periodic tasks as soon as logback no longer references them.
+     */
+    public static final String ACTIVE_CLEANUP_PROPERTY = PROPERTY_PREFIX + "activeCleanup";
+
+    /**
+     * Run time above which a task is reported by the {@link TaskTracer}, tasks are not traced if not positive.
+     */
+    public static final String SLOW_TASK_THRESHOLD_MILLIS_PROPERTY = PROPERTY_PREFIX + "slowTaskThresholdMillis";
+
+    /**
+     * Set to true to record executor metrics and expose them with JMX.
+     */
+    public static final String METRICS_PROPERTY = PROPERTY_PREFIX + "metrics";
+
+    /**
+     * Identity of the application in JMX names, the main class by default.
+     */
+    public static final String APPLICATION_NAME_PROPERTY = PROPERTY_PREFIX + "applicationName";
+
+    /**
+     * Set to true to print the startup phase durations on the error stream.
+     */
+    public static final String STARTUP_TIMING_PROPERTY = PROPERTY_PREFIX + "startupTiming";
+
+    /**
+     * Time given to the logback executors to run their pending tasks when the application stops, no drain if not positive.
+     */
+    public static final String DRAIN_TIMEOUT_MILLIS_PROPERTY = PROPERTY_PREFIX + "drainTimeoutMillis";
+
+    /**
+     * Threads of the low priority pool of each executor, which runs the tasks listed by {@link #LOW_PRIORITY_TASKS_PROPERTY}. No low priority pool if not
+     * positive, the default.
+     */
+    public static final String LOW_PRIORITY_POOL_SIZE_PROPERTY = PROPERTY_PREFIX + "lowPriorityPoolSize";
+
+    /**
+     * Comma separated class names of the tasks to run in the low priority pool, log compression and archive removal by default.
+     */
+    public static final String LOW_PRIORITY_TASKS_PROPERTY = PROPERTY_PREFIX + "lowPriorityTasks";
+
+    /**
+     * CPU list, in the taskset format, the low priority threads are restricted to (Linux only).
+     */
+    public static final String LOW_PRIORITY_CPU_SET_PROPERTY = PROPERTY_PREFIX + "lowPriorityCpuSet";
+
+    /**
+     * Class data sharing archive of the enhanced launch, see {@link CdsArchive}.
+     */
+    public static final String CDS_ARCHIVE_PROPERTY = PROPERTY_PREFIX + "cdsArchive";
+
+    /**
+     * Set to true to write the {@link #CDS_ARCHIVE_PROPERTY} archive when the JVM exits, after a warm up of the executors.
+     */
+    public static final String CDS_TRAINING_PROPERTY = PROPERTY_PREFIX + "cdsTraining";
+
+    public static final String DEFAULT_LOW_PRIORITY_TASKS = "ch.qos.logback.core.rolling.helper.CompressionRunnable,"
+            + "ch.qos.logback.core.rolling.helper.TimeBasedArchiveRemover$ArhiveRemoverRunnable";
+
+    public static final int DEFAULT_LOW_PRIORITY_POOL_SIZE = 0;
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+    public static final int DEFAULT_BATCH_SIZE = 64;
+
+    public static final long DEFAULT_WHEEL_TICK_MICROS = 1000;
+
+    public static final long DEFAULT_BATCH_WINDOW_MICROS = 100;
+
+    public static final long DEFAULT_TARGET_QUEUE_WAIT_MICROS = 1000;
+
+    public static final long DEFAULT_ADAPTIVE_INTERVAL_MILLIS = 100;
+
+    public static final long DEFAULT_IDLE_KEEP_ALIVE_MILLIS = 60000;
+
+    public static final long DEFAULT_DRAIN_TIMEOUT_MILLIS = 5000;
+
+    private static final AtomicBoolean DROP_OLDEST_WARNED = new AtomicBoolean();
+
+    private ExecutorType executorType = ExecutorType.POOL;
+
+    private int corePoolSize = CoreConstants.CORE_POOL_SIZE;
+
+    private int maxPoolSize = CoreConstants.MAX_POOL_SIZE;
+
+    private long keepAliveMillis;
+
+    private QueueType queueType = QueueType.SYNCHRONOUS;
+
+    private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+
+    private OverflowPolicy overflowPolicy = OverflowPolicy.ABORT;
+
+    private SchedulerType schedulerType = SchedulerType.POOL;
+
+    private int scheduledPoolSize = CoreConstants.SCHEDULED_EXECUTOR_POOL_SIZE;
+
+    private long wheelTickMicros = DEFAULT_WHEEL_TICK_MICROS;
+
+    private int batchSize = DEFAULT_BATCH_SIZE;
+
+    private long batchWindowMicros = DEFAULT_BATCH_WINDOW_MICROS;
+
+    private WaitStrategy waitStrategy = WaitStrategy.PARK;
+
+    private long targetQueueWaitMicros = DEFAULT_TARGET_QUEUE_WAIT_MICROS;
+
+    private long adaptiveIntervalMillis = DEFAULT_ADAPTIVE_INTERVAL_MILLIS;
+
+    private boolean cacheWeakRunnable;
+
+    private boolean coalescePeriodicTasks;
+
+    private boolean activeCleanup;
+
+    private long slowTaskThresholdMillis;
+
+    private boolean metrics;
+
+    private String applicationName;
+
+    private boolean startupTiming;
+
+    private long drainTimeoutMillis = DEFAULT_DRAIN_TIMEOUT_MILLIS;
+
+    private int lowPriorityPoolSize = DEFAULT_LOW_PRIORITY_POOL_SIZE;
+
+    private Set<String> lowPriorityTasks = parseClassNames(DEFAULT_LOW_PRIORITY_TASKS);
+
+    private String lowPriorityCpuSet;
+
+    private boolean cdsTraining;
+
+    public static LogbackExecutorConfiguration fromSystemProperties() {
+        LogbackExecutorConfiguration configuration = new LogbackExecutorConfiguration();
+        String executorTypeName = System.getProperty(EXECUTOR_TYPE_PROPERTY);
+        if (executorTypeName != null) {
+            configuration.executorType = ExecutorType.valueOf(executorTypeName.trim().toUpperCase(Locale.ROOT));
+        }
+        configuration.corePoolSize = Integer.getInteger(CORE_POOL_SIZE_PROPERTY, configuration.corePoolSize);
+        configuration.maxPoolSize = Integer.getInteger(MAX_POOL_SIZE_PROPERTY, configuration.maxPoolSize);
+        configuration.keepAliveMillis = Long.getLong(KEEP_ALIVE_MILLIS_PROPERTY, configuration.keepAliveMillis);
+        String queueTypeName = System.getProperty(QUEUE_TYPE_PROPERTY);
+        if (queueTypeName != null) {
+            configuration.queueType = QueueType.valueOf(queueTypeName.trim().toUpperCase(Locale.ROOT));
+        }
+        configuration.queueCapacity = Integer.getInteger(QUEUE_CAPACITY_PROPERTY, configuration.queueCapacity);
+        String overflowPolicyName = System.getProperty(OVERFLOW_POLICY_PROPERTY);
+        if (overflowPolicyName != null) {
+            configuration.overflowPolicy = OverflowPolicy.valueOf(overflowPolicyName.trim().toUpperCase(Locale.ROOT));
+        }
+        String schedulerTypeName = System.getProperty(SCHEDULER_TYPE_PROPERTY);
+        if (schedulerTypeName != null) {
+            configuration.schedulerType = SchedulerType.valueOf(schedulerTypeName.trim().toUpperCase(Locale.ROOT));
+        }
+        configuration.scheduledPoolSize = Integer.getInteger(SCHEDULED_POOL_SIZE_PROPERTY, configuration.scheduledPoolSize);
+        configuration.wheelTickMicros = Long.getLong(WHEEL_TICK_MICROS_PROPERTY, configuration.wheelTickMicros);
+        configuration.batchSize = Integer.getInteger(BATCH_SIZE_PROPERTY, configuration.batchSize);
+        configuration.batchWindowMicros = Long.getLong(BATCH_WINDOW_MICROS_PROPERTY, configuration.batchWindowMicros);
+        String waitStrategyName = System.getProperty(WAIT_STRATEGY_PROPERTY);
+        if (waitStrategyName != null) {
+            configuration.waitStrategy = WaitStrategy.valueOf(waitStrategyName.trim().toUpperCase(Locale.ROOT));
+        }
+        configuration.targetQueueWaitMicros = Long.getLong(TARGET_QUEUE_WAIT_MICROS_PROPERTY, configuration.targetQueueWaitMicros);
+        configuration.adaptiveIntervalMillis = Long.getLong(ADAPTIVE_INTERVAL_MILLIS_PROPERTY, configuration.adaptiveIntervalMillis);
+        configuration.cacheWeakRunnable = Boolean.getBoolean(CACHE_WEAK_RUNNABLE_PROPERTY);
+        configuration.coalescePeriodicTasks = Boolean.getBoolean(COALESCE_PERIODIC_TASKS_PROPERTY);
+        configuration.activeCleanup = Boolean.getBoolean(ACTIVE_CLEANUP_PROPERTY);
+        configuration.slowTaskThresholdMillis = Long.getLong(SLOW_TASK_THRESHOLD_MILLIS_PROPERTY, configuration.slowTaskThresholdMillis);
+        configuration.metrics = Boolean.getBoolean(METRICS_PROPERTY);
+        configuration.applicationName = System.getProperty(APPLICATION_NAME_PROPERTY);
+        configuration.startupTiming = Boolean.getBoolean(STARTUP_TIMING_PROPERTY);
+        configuration.drainTimeoutMillis = Long.getLong(DRAIN_TIMEOUT_MILLIS_PROPERTY, configuration.drainTimeoutMillis);
+        configuration.lowPriorityPoolSize = Integer.getInteger(LOW_PRIORITY_POOL_SIZE_PROPERTY, configuration.lowPriorityPoolSize);
+        String lowPriorityTaskNames = System.getProperty(LOW_PRIORITY_TASKS_PROPERTY);
+        if (lowPriorityTaskNames != null) {
+            configuration.lowPriorityTasks = parseClassNames(lowPriorityTaskNames);
+        }
+        configuration.lowPriorityCpuSet = System.getProperty(LOW_PRIORITY_CPU_SET_PROPERTY);
+        configuration.cdsTraining = System.getProperty(CDS_ARCHIVE_PROPERTY) != null && Boolean.getBoolean(CDS_TRAINING_PROPERTY);
+        return configuration;
+    }
+
+    /**
+     * @return a configuration with the same values, to configure several applications from the same system properties
+     */
+    public LogbackExecutorConfiguration copy() {
+        try {
+            return (LogbackExecutorConfiguration) clone();
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Set<String> parseClassNames(final String classNames) {
+        Set<String> result = new HashSet<String>();
+        for (String className : classNames.split(",")) {
+            String trimmed = className.trim();
+            if (trimmed.length() != 0) {
+                result.add(trimmed);
+            }
+        }
+        return result;
+    }
+
+    public ExecutorType getExecutorType() {
+        return executorType;
+    }
+
+    public void setExecutorType(final ExecutorType executorType) {
+        this.executorType = executorType;
+    }
+
+    public int getCorePoolSize() {
+        return corePoolSize;
+    }
+
+    public void setCorePoolSize(final int corePoolSize) {
+        this.corePoolSize = corePoolSize;
+    }
+
+    public int getMaxPoolSize() {
+        return maxPoolSize;
+    }
+
+    public void setMaxPoolSize(final int maxPoolSize) {
+        this.maxPoolSize = maxPoolSize;
+    }
+
+    public long getKeepAliveMillis() {
+        return keepAliveMillis;
+    }
+
+    public void setKeepAliveMillis(final long keepAliveMillis) {
+        this.keepAliveMillis = keepAliveMillis;
+    }
+
+    public QueueType getQueueType() {
+        return queueType;
+    }
+
+    public void setQueueType(final QueueType queueType) {
+        this.queueType = queueType;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public void setQueueCapacity(final int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public void setOverflowPolicy(final OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * A synchronous queue has no oldest task to drop: the JDK policy would retry the rejected task until the stack overflows, so
+     * {@link OverflowPolicy#DROP_OLDEST} falls back to {@link OverflowPolicy#DROP_COUNTING} with a warning.
+     * @param poolQueueType queue of the pool the handler is for, which may differ from the configured one
+     */
+    public RejectedExecutionHandler createRejectedExecutionHandler(final QueueType poolQueueType) {
+        if (overflowPolicy == OverflowPolicy.DROP_OLDEST && poolQueueType == QueueType.SYNCHRONOUS) {
+            if (DROP_OLDEST_WARNED.compareAndSet(false, true)) {
+                StartupTimer.print(OVERFLOW_POLICY_PROPERTY + " DROP_OLDEST needs a queue, rejected tasks of SYNCHRONOUS pools are dropped and counted instead");
+            }
+            return OverflowPolicy.DROP_COUNTING.createRejectedExecutionHandler();
+        }
+        return overflowPolicy.createRejectedExecutionHandler();
+    }
+
+    public SchedulerType getSchedulerType() {
+        return schedulerType;
+    }
+
+    public void setSchedulerType(final SchedulerType schedulerType) {
+        this.schedulerType = schedulerType;
+    }
+
+    public int getScheduledPoolSize() {
+        return scheduledPoolSize;
+    }
+
+    public void setScheduledPoolSize(final int scheduledPoolSize) {
+        this.scheduledPoolSize = scheduledPoolSize;
+    }
+
+    public long getWheelTickMicros() {
+        return wheelTickMicros;
+    }
+
+    public void setWheelTickMicros(final long wheelTickMicros) {
+        this.wheelTickMicros = wheelTickMicros;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(final int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public long getBatchWindowMicros() {
+        return batchWindowMicros;
+    }
+
+    public void setBatchWindowMicros(final long batchWindowMicros) {
+        this.batchWindowMicros = batchWindowMicros;
+    }
+
+    public WaitStrategy getWaitStrategy() {
+        return waitStrategy;
+    }
+
+    public void setWaitStrategy(final WaitStrategy waitStrategy) {
+        this.waitStrategy = waitStrategy;
+    }
+
+    public long getTargetQueueWaitMicros() {
+        return targetQueueWaitMicros;
+    }
+
+    public void setTargetQueueWaitMicros(final long targetQueueWaitMicros) {
+        this.targetQueueWaitMicros = targetQueueWaitMicros;
+    }
+
+    public long getAdaptiveIntervalMillis() {
+        return adaptiveIntervalMillis;
+    }
+
+    public void setAdaptiveIntervalMillis(final long adaptiveIntervalMillis) {
+        this.adaptiveIntervalMillis = adaptiveIntervalMillis;
+    }
+
+    public boolean isCacheWeakRunnable() {
+        return cacheWeakRunnable;
+    }
+
+    public void setCacheWeakRunnable(final boolean cacheWeakRunnable) {
+        this.cacheWeakRunnable = cacheWeakRunnable;
+    }
+
+    public boolean isCoalescePeriodicTasks() {
+        return coalescePeriodicTasks;
+    }
+
+    public void setCoalescePeriodicTasks(final boolean coalescePeriodicTasks) {
+        this.coalescePeriodicTasks = coalescePeriodicTasks;
+    }
+
+    public boolean isActiveCleanup() {
+        return activeCleanup;
+    }
+
+    public void setActiveCleanup(final boolean activeCleanup) {
+        this.activeCleanup = activeCleanup;
+    }
+
+    public long getSlowTaskThresholdMillis() {
+        return slowTaskThresholdMillis;
+    }
+
+    public void setSlowTaskThresholdMillis(final long slowTaskThresholdMillis) {
+        this.slowTaskThresholdMillis = slowTaskThresholdMillis;
+    }
+
+    public boolean isMetrics() {
+        return metrics;
+    }
+
+    public void setMetrics(final boolean metrics) {
+        this.metrics = metrics;
+    }
+
+    public String getApplicationName() {
+        return applicationName;
+    }
+
+    public void setApplicationName(final String applicationName) {
+        this.applicationName = applicationName;
+    }
+
+    public boolean isStartupTiming() {
+        return startupTiming;
+    }
+
+    public void setStartupTiming(final boolean startupTiming) {
+        this.startupTiming = startupTiming;
+    }
+
+    public long getDrainTimeoutMillis() {
+        return drainTimeoutMillis;
+    }
+
+    public void setDrainTimeoutMillis(final long drainTimeoutMillis) {
+        this.drainTimeoutMillis = drainTimeoutMillis;
+    }
+
+    public int getLowPriorityPoolSize() {
+        return lowPriorityPoolSize;
+    }
+
+    public void setLowPriorityPoolSize(final int lowPriorityPoolSize) {
+        this.lowPriorityPoolSize = lowPriorityPoolSize;
+    }
+
+    public Set<String> getLowPriorityTasks() {
+        return lowPriorityTasks;
+    }
+
+    public void setLowPriorityTasks(final Set<String> lowPriorityTasks) {
+        this.lowPriorityTasks = lowPriorityTasks;
+    }
+
+    /**
+     * @return null if low priority threads may run on any CPU
+     */
+    public String getLowPriorityCpuSet() {
+        return lowPriorityCpuSet;
+    }
+
+    public void setLowPriorityCpuSet(final String lowPriorityCpuSet) {
+        this.lowPriorityCpuSet = lowPriorityCpuSet;
+    }
+
+    /**
+     * @return true if executors are warmed up for a class data sharing archive
+     */
+    public boolean isCdsTraining() {
+        return cdsTraining;
+    }
+
+    public void setCdsTraining(final boolean cdsTraining) {
+        this.cdsTraining = cdsTraining;
+    }
+
+}
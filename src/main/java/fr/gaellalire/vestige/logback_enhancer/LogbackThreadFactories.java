@@ -0,0 +1,270 @@
+/*
+ * This file is part of Vestige.
+ *
+ * Vestige is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Vestige is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Vestige.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.gaellalire.vestige.logback_enhancer;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import fr.gaellalire.vestige.core.VestigeCoreContext;
+import fr.gaellalire.vestige.core.executor.VestigeWorker;
+import fr.gaellalire.vestige.core.weak.ReaperHelper;
+import fr.gaellalire.vestige.core.weak.VestigeWorkerReaperHelper;
+import fr.gaellalire.vestige.core.weak.WeakThreadFactory;
+
+/**
+ * Thread factories of the logback executors. The logback worker is only created, and registered to the reaper, when the first executor is requested, so
+ * applications which never start an async appender or a scheduled task do not pay for it.
+ * @author Gael Lalire
+ */
+public class LogbackThreadFactories {
+
+    // keep the priority of the logback worker
+    private static final int INHERITED_PRIORITY = 0;
+
+    private final VestigeCoreContext vestigeCoreContext;
+
+    private final LogbackExecutorConfiguration configuration;
+
+    private boolean initialized;
+
+    private ThreadAccounting threadAccounting;
+
+    private ExecutorDrainer executorDrainer;
+
+    private ApplicationReaper applicationReaper;
+
+    private String applicationName;
+
+    // prevent GC of threadFactory while this LogbackThreadFactories is not GC
+    private ThreadFactory threadFactoryHandler;
+
+    // prepare the weak reference for ThreadPoolExecutor
+    private WeakThreadFactory weakThreadFactory;
+
+    @SuppressWarnings("unused")
+    private ThreadFactory virtualThreadFactoryHandler;
+
+    @SuppressWarnings("unused")
+    private ThreadFactory lowPriorityThreadFactoryHandler;
+
+    private WeakThreadFactory weakLowPriorityThreadFactory;
+
+    private WeakThreadFactory weakVirtualThreadFactory;
+
+    // prevent GC of the fork join worker thread factory while this LogbackThreadFactories is not GC
+    @SuppressWarnings("unused")
+    private Object forkJoinWorkerThreadFactoryHandler;
+
+    private Object weakForkJoinWorkerThreadFactory;
+
+    public LogbackThreadFactories(final VestigeCoreContext vestigeCoreContext, final LogbackExecutorConfiguration configuration) {
+        this.vestigeCoreContext = vestigeCoreContext;
+        this.configuration = configuration;
+    }
+
+    /**
+     * Already created factories, nothing is done lazily.
+     * @param virtualThreadFactory may be null
+     */
+    public LogbackThreadFactories(final ThreadFactory threadFactory, final ThreadFactory virtualThreadFactory) {
+        this.vestigeCoreContext = null;
+        this.configuration = null;
+        setThreadFactories(threadFactory, virtualThreadFactory);
+        initialized = true;
+    }
+
+    private void setThreadFactories(final ThreadFactory threadFactory, final ThreadFactory virtualThreadFactory) {
+        threadFactoryHandler = threadFactory;
+        weakThreadFactory = new WeakThreadFactory(threadFactory);
+        virtualThreadFactoryHandler = virtualThreadFactory;
+        if (virtualThreadFactory != null) {
+            weakVirtualThreadFactory = new WeakThreadFactory(virtualThreadFactory);
+        }
+    }
+
+    private synchronized void init() {
+        if (initialized) {
+            return;
+        }
+        long start = System.nanoTime();
+        final ClassLoader classLoader = ClassLoader.getSystemClassLoader();
+        final VestigeWorker vestigeWorker;
+        try {
+            vestigeWorker = vestigeCoreContext.getVestigeExecutor().createWorker("logback-worker", true, 0);
+        } catch (InterruptedException e) {
+            // next executor request will try again
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while creating the logback worker", e);
+        }
+        if (applicationReaper == null) {
+            applicationReaper = new ApplicationReaper(vestigeCoreContext.getVestigeReaper());
+        }
+        applicationReaper.addReapable(new VestigeWorkerReaperHelper(vestigeWorker));
+
+        if (applicationName == null) {
+            applicationName = configuration.getApplicationName();
+            if (applicationName == null) {
+                applicationName = VestigeExecutorServiceFactory.nextApplicationName();
+            }
+        }
+        final String threadNamePrefix = "logback-" + applicationName + "-";
+        final ThreadAccounting accounting = new ThreadAccounting(applicationName);
+        accounting.register();
+        // the accounting is only reaped when the enhancer is shared, the instances of an enhancer loaded with the application go away with it
+        ReaperHelper unregisterReaperHelper = accounting.newUnregisterReaperHelper();
+        applicationReaper.addReapable(unregisterReaperHelper);
+        if (configuration.isMetrics()) {
+            // the MBean server keeps an enhancer loaded with the application until the MBean is unregistered when the application stops
+            MBeanReaperHelper mBeanReaperHelper = MBeanReaperHelper.register(accounting, "Threads", applicationName, "logback");
+            if (mBeanReaperHelper != null) {
+                if (executorDrainer != null) {
+                    // a stop helper may register a runtime shutdown hook, only the MBean requires it
+                    executorDrainer.addStopHelper(mBeanReaperHelper);
+                    executorDrainer.addStopHelper(unregisterReaperHelper);
+                }
+                applicationReaper.addReapable(mBeanReaperHelper.getJdkReaperHelper());
+            }
+        }
+        threadAccounting = accounting;
+
+        final ThreadFactory threadFactory = newThreadFactory(vestigeWorker, threadNamePrefix, INHERITED_PRIORITY, accounting, classLoader);
+        lowPriorityThreadFactoryHandler = newThreadFactory(vestigeWorker, threadNamePrefix + "low-", Thread.MIN_PRIORITY, accounting, classLoader);
+        weakLowPriorityThreadFactory = new WeakThreadFactory(lowPriorityThreadFactoryHandler);
+
+        ThreadFactory virtualThreadFactory = null;
+        if (configuration.getExecutorType() == ExecutorType.VIRTUAL && VirtualThreads.isAvailable()) {
+            // virtual threads do not belong to a thread group, no need to create them from the vestige worker
+            final ThreadFactory builderThreadFactory = VirtualThreads.newThreadFactory("logback-virtual-");
+            virtualThreadFactory = new ThreadFactory() {
+
+                public Thread newThread(final Runnable r) {
+                    Thread thread = builderThreadFactory.newThread(r);
+                    thread.setContextClassLoader(classLoader);
+                    return thread;
+                }
+            };
+        }
+        setThreadFactories(threadFactory, virtualThreadFactory);
+        initialized = true;
+        if (configuration.isStartupTiming()) {
+            StartupTimer.print("logback worker created on first executor request in " + StartupTimer.formatMillis(System.nanoTime() - start));
+        }
+    }
+
+    /**
+     * @param executorDrainer unregisters the accounting and the MBeans of the thread factories when the application stops
+     */
+    public synchronized void setExecutorDrainer(final ExecutorDrainer executorDrainer) {
+        this.executorDrainer = executorDrainer;
+    }
+
+    /**
+     * @param applicationReaper reaps the logback worker with the application
+     */
+    public synchronized void setApplicationReaper(final ApplicationReaper applicationReaper) {
+        this.applicationReaper = applicationReaper;
+    }
+
+    /**
+     * @param applicationName name of the threads and of the Threads MBean, the executor factory gives its own so that both use the same generated name
+     */
+    public synchronized void setApplicationName(final String applicationName) {
+        this.applicationName = applicationName;
+    }
+
+    private static ThreadFactory newThreadFactory(final VestigeWorker vestigeWorker, final String threadNamePrefix, final int priority,
+            final ThreadAccounting accounting, final ClassLoader classLoader) {
+        return new ThreadFactory() {
+
+            private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+            public Thread newThread(final Runnable r) {
+                Thread thread;
+                try {
+                    thread = vestigeWorker.createThread(null, r, threadNamePrefix + threadNumber.getAndIncrement(), 0);
+                } catch (InterruptedException e) {
+                    return null;
+                }
+                accounting.threadCreated(thread);
+
+                if (!thread.isDaemon()) {
+                    thread.setDaemon(true);
+                }
+                if (priority != INHERITED_PRIORITY && thread.getPriority() != priority) {
+                    thread.setPriority(priority);
+                }
+                thread.setContextClassLoader(classLoader);
+                return thread;
+            }
+        };
+    }
+
+    public synchronized boolean isInitialized() {
+        return initialized;
+    }
+
+    /**
+     * @return the accounting of the logback threads, null if factories were given or are not created yet
+     */
+    public synchronized ThreadAccounting getThreadAccounting() {
+        return threadAccounting;
+    }
+
+    public synchronized ThreadFactory getThreadFactory() {
+        init();
+        return threadFactoryHandler;
+    }
+
+    public synchronized WeakThreadFactory getWeakThreadFactory() {
+        init();
+        return weakThreadFactory;
+    }
+
+    /**
+     * @return factory of the threads of the low priority pools, the main factory if factories were given
+     */
+    public synchronized WeakThreadFactory getWeakLowPriorityThreadFactory() {
+        init();
+        if (weakLowPriorityThreadFactory == null) {
+            return weakThreadFactory;
+        }
+        return weakLowPriorityThreadFactory;
+    }
+
+    /**
+     * @return null if virtual threads are not configured or not available
+     */
+    public synchronized WeakThreadFactory getWeakVirtualThreadFactory() {
+        init();
+        return weakVirtualThreadFactory;
+    }
+
+    /**
+     * @return a ForkJoinWorkerThreadFactory made of JDK classes creating the workers from the main factory, so fork join pools can be reaped
+     * @throws UnsupportedOperationException if ForkJoinPool is not available
+     */
+    public synchronized Object getWeakForkJoinWorkerThreadFactory() {
+        init();
+        if (weakForkJoinWorkerThreadFactory == null) {
+            forkJoinWorkerThreadFactoryHandler = ForkJoinPools.newWorkerThreadFactory(weakThreadFactory, threadAccounting);
+            weakForkJoinWorkerThreadFactory = ForkJoinPools.newWeakWorkerThreadFactory(forkJoinWorkerThreadFactoryHandler);
+        }
+        return weakForkJoinWorkerThreadFactory;
+    }
+
+}
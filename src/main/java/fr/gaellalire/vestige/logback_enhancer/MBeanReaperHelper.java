@@ -0,0 +1,104 @@
+/*
+ * This file is part of Vestige.
+ *
+ * Vestige is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Vestige is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Vestige.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.gaellalire.vestige.logback_enhancer;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import fr.gaellalire.vestige.core.weak.ReaperHelper;
+
+/**
+ * Register MBeans of the enhancer in the platform MBean server and unregister them when reaped.
+ * @author Gael Lalire
+ */
+public class MBeanReaperHelper implements ReaperHelper {
+
+    public static final String DOMAIN = "fr.gaellalire.vestige.logback_enhancer";
+
+    private static final Method NEW_JDK_REAPER_HELPER_METHOD;
+
+    static {
+        Method newJdkReaperHelperMethod;
+        try {
+            newJdkReaperHelperMethod = Class.forName(MBeanReaperHelper.class.getPackage().getName() + ".JdkProxies").getMethod("newUnregisterMBeanReaperHelper",
+                    MBeanServer.class, ObjectName.class);
+        } catch (Exception e) {
+            // java 6
+            newJdkReaperHelperMethod = null;
+        } catch (LinkageError e) {
+            // java 6
+            newJdkReaperHelperMethod = null;
+        }
+        NEW_JDK_REAPER_HELPER_METHOD = newJdkReaperHelperMethod;
+    }
+
+    private final ObjectName objectName;
+
+    public MBeanReaperHelper(final ObjectName objectName) {
+        this.objectName = objectName;
+    }
+
+    /**
+     * @return a helper to reap the registered MBean, null if the registration failed (monitoring must not prevent logging)
+     */
+    public static MBeanReaperHelper register(final Object mbean, final String type, final String application, final String name) {
+        try {
+            ObjectName objectName = new ObjectName(DOMAIN + ":type=" + type + ",application=" + ObjectName.quote(application) + ",name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(mbean, objectName);
+            return new MBeanReaperHelper(objectName);
+        } catch (JMException e) {
+            return null;
+        }
+    }
+
+    public ObjectName getObjectName() {
+        return objectName;
+    }
+
+    /**
+     * @return a helper made of JDK classes unregistering the MBean, it can be given to the reaper even if the enhancer is loaded with the application. This
+     *         helper itself on Java 6.
+     */
+    public ReaperHelper getJdkReaperHelper() {
+        if (NEW_JDK_REAPER_HELPER_METHOD != null) {
+            try {
+                return (ReaperHelper) NEW_JDK_REAPER_HELPER_METHOD.invoke(null, ManagementFactory.getPlatformMBeanServer(), objectName);
+            } catch (Exception e) {
+                // the JDK refused the proxy, fall back to this helper
+            }
+        }
+        return this;
+    }
+
+    @Override
+    public void reap() {
+        MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        try {
+            if (mBeanServer.isRegistered(objectName)) {
+                mBeanServer.unregisterMBean(objectName);
+            }
+        } catch (JMException e) {
+            // already unregistered
+        }
+    }
+
+}
@@ -0,0 +1,165 @@
+/*
+ * This file is part of Vestige.
+ *
+ * Vestige is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Vestige is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Vestige.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.gaellalire.vestige.logback_enhancer;
+
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Record {@link ExecutorMetrics} of tasks executed by the delegate. Placed between a weak executor and its delegate, so it only sees weak wrappers.
+ * @author Gael Lalire
+ */
+public class MeteredExecutorService extends AbstractExecutorService {
+
+    private final ExecutorService delegate;
+
+    private final ExecutorMetrics metrics;
+
+    private final boolean countRejections;
+
+    /**
+     * @param countRejections false if delegate counts its rejections in metrics, as an {@link OverflowExecutorService} does
+     */
+    public MeteredExecutorService(final ExecutorService delegate, final ExecutorMetrics metrics, final boolean countRejections) {
+        this.delegate = delegate;
+        this.metrics = metrics;
+        this.countRejections = countRejections;
+    }
+
+    public ExecutorMetrics getMetrics() {
+        return metrics;
+    }
+
+    protected RejectedExecutionException rejected(final RejectedExecutionException e) {
+        if (countRejections) {
+            metrics.taskRejected();
+        }
+        return e;
+    }
+
+    @Override
+    public void execute(final Runnable command) {
+        metrics.taskSubmitted();
+        try {
+            delegate.execute(new MeteredRunnable(command, metrics));
+        } catch (RejectedExecutionException e) {
+            throw rejected(e);
+        }
+    }
+
+    /**
+     * The future of a submitted task catches its exception, it tells {@link MeteredRunnable} that the task failed.
+     */
+    @Override
+    protected <T> RunnableFuture<T> newTaskFor(final Callable<T> callable) {
+        return new MeteredFutureTask<T>(callable);
+    }
+
+    @Override
+    protected <T> RunnableFuture<T> newTaskFor(final Runnable runnable, final T value) {
+        return new MeteredFutureTask<T>(runnable, value);
+    }
+
+    @Override
+    public void shutdown() {
+        delegate.shutdown();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        return delegate.shutdownNow();
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return delegate.isShutdown();
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return delegate.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException {
+        return delegate.awaitTermination(timeout, unit);
+    }
+
+    /**
+     * @author Gael Lalire
+     */
+    private static final class MeteredRunnable implements Runnable {
+
+        private final Runnable command;
+
+        private final ExecutorMetrics metrics;
+
+        private final long submitNanos;
+
+        MeteredRunnable(final Runnable command, final ExecutorMetrics metrics) {
+            this.command = command;
+            this.metrics = metrics;
+            this.submitNanos = System.nanoTime();
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            metrics.taskStarted(start - submitNanos);
+            boolean failed = true;
+            try {
+                command.run();
+                failed = command instanceof MeteredFutureTask<?> && ((MeteredFutureTask<?>) command).failed;
+            } finally {
+                metrics.taskEnded(System.nanoTime() - start, failed);
+            }
+        }
+
+    }
+
+    /**
+     * @author Gael Lalire
+     */
+    private static final class MeteredFutureTask<T> extends FutureTask<T> {
+
+        // written and read by the running thread
+        private boolean failed;
+
+        MeteredFutureTask(final Callable<T> callable) {
+            super(callable);
+        }
+
+        MeteredFutureTask(final Runnable runnable, final T value) {
+            super(runnable, value);
+        }
+
+        @Override
+        protected void setException(final Throwable t) {
+            failed = true;
+            super.setException(t);
+        }
+
+    }
+
+}
@@ -0,0 +1,160 @@
+/*
+ * This file is part of Vestige.
+ *
+ * Vestige is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Vestige is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Vestige.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.gaellalire.vestige.logback_enhancer;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Also record the drift of scheduled tasks: actual start time minus expected start time.
+ * @author Gael Lalire
+ */
+public class MeteredScheduledExecutorService extends MeteredExecutorService implements ScheduledExecutorService {
+
+    private final ScheduledExecutorService delegate;
+
+    public MeteredScheduledExecutorService(final ScheduledExecutorService delegate, final ExecutorMetrics metrics, final boolean countRejections) {
+        super(delegate, metrics, countRejections);
+        this.delegate = delegate;
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(final Runnable command, final long delay, final TimeUnit unit) {
+        getMetrics().taskSubmitted();
+        try {
+            return delegate.schedule(new MeteredScheduledRunnable(command, getMetrics(), unit.toNanos(delay), 0, false), delay, unit);
+        } catch (RejectedExecutionException e) {
+            throw rejected(e);
+        }
+    }
+
+    @Override
+    public <V> ScheduledFuture<V> schedule(final Callable<V> callable, final long delay, final TimeUnit unit) {
+        getMetrics().taskSubmitted();
+        try {
+            return delegate.schedule(new MeteredScheduledCallable<V>(callable, getMetrics(), unit.toNanos(delay)), delay, unit);
+        } catch (RejectedExecutionException e) {
+            throw rejected(e);
+        }
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleAtFixedRate(final Runnable command, final long initialDelay, final long period, final TimeUnit unit) {
+        getMetrics().taskSubmitted();
+        try {
+            return delegate.scheduleAtFixedRate(new MeteredScheduledRunnable(command, getMetrics(), unit.toNanos(initialDelay), unit.toNanos(period), true), initialDelay,
+                    period, unit);
+        } catch (RejectedExecutionException e) {
+            throw rejected(e);
+        }
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleWithFixedDelay(final Runnable command, final long initialDelay, final long delay, final TimeUnit unit) {
+        getMetrics().taskSubmitted();
+        try {
+            return delegate.scheduleWithFixedDelay(new MeteredScheduledRunnable(command, getMetrics(), unit.toNanos(initialDelay), unit.toNanos(delay), false),
+                    initialDelay, delay, unit);
+        } catch (RejectedExecutionException e) {
+            throw rejected(e);
+        }
+    }
+
+    /**
+     * @author Gael Lalire
+     */
+    private static final class MeteredScheduledRunnable implements Runnable {
+
+        private final Runnable command;
+
+        private final ExecutorMetrics metrics;
+
+        private final long period;
+
+        private final boolean fixedRate;
+
+        // only read and written by the running thread, the executor orders runs
+        private long expectedNanos;
+
+        MeteredScheduledRunnable(final Runnable command, final ExecutorMetrics metrics, final long initialDelay, final long period, final boolean fixedRate) {
+            this.command = command;
+            this.metrics = metrics;
+            this.period = period;
+            this.fixedRate = fixedRate;
+            this.expectedNanos = System.nanoTime() + initialDelay;
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            metrics.taskScheduledStarted(start - expectedNanos);
+            boolean failed = true;
+            long end;
+            try {
+                command.run();
+                failed = false;
+            } finally {
+                end = System.nanoTime();
+                metrics.taskEnded(end - start, failed);
+            }
+            if (fixedRate) {
+                expectedNanos += period;
+            } else {
+                expectedNanos = end + period;
+            }
+        }
+
+    }
+
+    /**
+     * @author Gael Lalire
+     */
+    private static final class MeteredScheduledCallable<V> implements Callable<V> {
+
+        private final Callable<V> callable;
+
+        private final ExecutorMetrics metrics;
+
+        private final long expectedNanos;
+
+        MeteredScheduledCallable(final Callable<V> callable, final ExecutorMetrics metrics, final long delay) {
+            this.callable = callable;
+            this.metrics = metrics;
+            this.expectedNanos = System.nanoTime() + delay;
+        }
+
+        @Override
+        public V call() throws Exception {
+            long start = System.nanoTime();
+            metrics.taskScheduledStarted(start - expectedNanos);
+            boolean failed = true;
+            try {
+                V result = callable.call();
+                failed = false;
+                return result;
+            } finally {
+                metrics.taskEnded(System.nanoTime() - start, failed);
+            }
+        }
+
+    }
+
+}
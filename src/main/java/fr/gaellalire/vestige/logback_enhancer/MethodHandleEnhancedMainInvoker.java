@@ -0,0 +1,53 @@
+/*
+ * This file is part of Vestige.
+ *
+ * Vestige is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Vestige is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Vestige.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.gaellalire.vestige.logback_enhancer;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Method;
+
+/**
+ * {@link EnhancedMainInvoker} using a {@link MethodHandle}. Only instantiated by reflection when running on Java 7 or later.
+ * @author Gael Lalire
+ */
+public class MethodHandleEnhancedMainInvoker implements EnhancedMainInvoker {
+
+    private final MethodHandle methodHandle;
+
+    /**
+     * @throws IllegalAccessException if the lookup cannot access the method, {@link ReflectEnhancedMainInvoker} should be used instead
+     */
+    public MethodHandleEnhancedMainInvoker(final Method method) throws IllegalAccessException {
+        MethodHandle handle = MethodHandles.publicLookup().unreflect(method);
+        methodHandle = handle.asSpreader(Object[].class, method.getParameterTypes().length);
+    }
+
+    @Override
+    public Object invoke(final Object[] args) throws Exception {
+        try {
+            return methodHandle.invokeWithArguments(new Object[] {args});
+        } catch (Exception e) {
+            throw e;
+        } catch (Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
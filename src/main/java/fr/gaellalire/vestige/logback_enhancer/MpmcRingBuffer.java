@@ -0,0 +1,133 @@
+/*
+ * This file is part of Vestige.
+ *
+ * Vestige is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Vestige is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Vestige.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.gaellalire.vestige.logback_enhancer;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded lock free multi-producer / multi-consumer queue (Dmitry Vyukov algorithm). Each slot has a sequence number telling whether it can be written for
+ * the current lap or read, so producers and consumers only contend with a CAS on their own position.
+ * @author Gael Lalire
+ */
+public final class MpmcRingBuffer<E> {
+
+    private final int mask;
+
+    private final Object[] buffer;
+
+    // writing a sequence publishes the slot content
+    private final AtomicLongArray sequences;
+
+    private final AtomicLong head = new AtomicLong();
+
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * @param capacity rounded up to a power of two
+     */
+    public MpmcRingBuffer(final int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        mask = size - 1;
+        buffer = new Object[size];
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    public int capacity() {
+        return buffer.length;
+    }
+
+    /**
+     * @return false if the buffer is full
+     */
+    public boolean offer(final E element) {
+        if (element == null) {
+            throw new NullPointerException();
+        }
+        long position = tail.get();
+        for (;;) {
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    buffer[index] = element;
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                return false;
+            } else {
+                // another producer took this slot
+                position = tail.get();
+            }
+        }
+    }
+
+    /**
+     * @return null if the buffer is empty
+     */
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        long position = head.get();
+        for (;;) {
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - (position + 1);
+            if (difference == 0) {
+                if (head.compareAndSet(position, position + 1)) {
+                    E element = (E) buffer[index];
+                    buffer[index] = null;
+                    // slot is writable for the next lap
+                    sequences.set(index, position + mask + 1);
+                    return element;
+                }
+                position = head.get();
+            } else if (difference < 0) {
+                return null;
+            } else {
+                // another consumer took this slot
+                position = head.get();
+            }
+        }
+    }
+
+    public int size() {
+        long size = tail.get() - head.get();
+        if (size < 0) {
+            return 0;
+        }
+        if (size > buffer.length) {
+            return buffer.length;
+        }
+        return (int) size;
+    }
+
+    public boolean isEmpty() {
+        return tail.get() == head.get();
+    }
+
+}
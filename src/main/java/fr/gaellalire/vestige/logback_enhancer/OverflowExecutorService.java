@@ -0,0 +1,116 @@
+/*
+ * This file is part of Vestige.
+ *
+ * Vestige is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Vestige is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Vestige.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.gaellalire.vestige.logback_enhancer;
+
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Apply the rejection handler of an {@link OverflowPolicy} in front of a pool which keeps the JDK {@link ThreadPoolExecutor.AbortPolicy}. The pool is then made
+ * of JDK classes only, whatever the policy, and can be reaped with the application. Rejections and dropped tasks are counted in external counters.
+ * @author Gael Lalire
+ */
+public class OverflowExecutorService extends AbstractExecutorService {
+
+    private final ThreadPoolExecutor pool;
+
+    private final RejectedExecutionHandler rejectedExecutionHandler;
+
+    private final boolean dropOldest;
+
+    private final boolean dropCounting;
+
+    private final AtomicLong rejectedCount;
+
+    private final AtomicLong droppedCount;
+
+    /**
+     * @param pool must throw a {@link RejectedExecutionException} when it rejects a task
+     * @param rejectedCount incremented each time the pool rejects a task
+     * @param droppedCount incremented each time a rejected task is dropped by a {@link CountingDiscardPolicy}
+     */
+    public OverflowExecutorService(final ThreadPoolExecutor pool, final RejectedExecutionHandler rejectedExecutionHandler, final AtomicLong rejectedCount,
+            final AtomicLong droppedCount) {
+        this.pool = pool;
+        this.rejectedExecutionHandler = rejectedExecutionHandler;
+        this.dropOldest = rejectedExecutionHandler instanceof ThreadPoolExecutor.DiscardOldestPolicy;
+        this.dropCounting = rejectedExecutionHandler instanceof CountingDiscardPolicy;
+        this.rejectedCount = rejectedCount;
+        this.droppedCount = droppedCount;
+    }
+
+    public ThreadPoolExecutor getPool() {
+        return pool;
+    }
+
+    @Override
+    public void execute(final Runnable command) {
+        if (command == null) {
+            throw new NullPointerException();
+        }
+        while (true) {
+            try {
+                pool.execute(command);
+                return;
+            } catch (RejectedExecutionException e) {
+                rejectedCount.incrementAndGet();
+                if (dropOldest && !pool.isShutdown()) {
+                    // as DiscardOldestPolicy, but its retry must come back here
+                    pool.getQueue().poll();
+                    continue;
+                }
+                if (dropCounting) {
+                    droppedCount.incrementAndGet();
+                }
+                rejectedExecutionHandler.rejectedExecution(command, pool);
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        return pool.shutdownNow();
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return pool.isShutdown();
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return pool.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException {
+        return pool.awaitTermination(timeout, unit);
+    }
+
+}
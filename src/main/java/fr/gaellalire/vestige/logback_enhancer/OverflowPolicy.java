@@ -0,0 +1,81 @@
+/*
+ * This file is part of Vestige.
+ *
+ * Vestige is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Vestige is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Vestige.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.gaellalire.vestige.logback_enhancer;
+
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * What to do with a task when the queue is full and the pool has reached its maximum size.
+ * @author Gael Lalire
+ */
+public enum OverflowPolicy {
+
+    /**
+     * Throw a {@link java.util.concurrent.RejectedExecutionException} (JDK default).
+     */
+    ABORT {
+        @Override
+        public RejectedExecutionHandler createRejectedExecutionHandler() {
+            return new ThreadPoolExecutor.AbortPolicy();
+        }
+    },
+
+    /**
+     * Block the submitter until the queue accepts the task.
+     */
+    BLOCK {
+        @Override
+        public RejectedExecutionHandler createRejectedExecutionHandler() {
+            return new BlockingPolicy();
+        }
+    },
+
+    /**
+     * Run the task in the submitter thread.
+     */
+    CALLER_RUNS {
+        @Override
+        public RejectedExecutionHandler createRejectedExecutionHandler() {
+            return new ThreadPoolExecutor.CallerRunsPolicy();
+        }
+    },
+
+    /**
+     * Drop the oldest queued task and retry.
+     */
+    DROP_OLDEST {
+        @Override
+        public RejectedExecutionHandler createRejectedExecutionHandler() {
+            return new ThreadPoolExecutor.DiscardOldestPolicy();
+        }
+    },
+
+    /**
+     * Drop the task and count it.
+     */
+    DROP_COUNTING {
+        @Override
+        public RejectedExecutionHandler createRejectedExecutionHandler() {
+            return new CountingDiscardPolicy();
+        }
+    };
+
+    public abstract RejectedExecutionHandler createRejectedExecutionHandler();
+
+}
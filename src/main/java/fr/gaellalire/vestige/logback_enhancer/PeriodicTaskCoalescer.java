@@ -0,0 +1,317 @@
+/*
+ * This file is part of Vestige.
+ *
+ * Vestige is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Vestige is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Vestige.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.gaellalire.vestige.logback_enhancer;
+
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import fr.gaellalire.vestige.core.weak.WeakRunnable;
+
+/**
+ * Periodic tasks with the same command class, period and kind (fixed rate or fixed delay) share a single delegate task, which runs each live command in turn.
+ * A command joining an existing group keeps the schedule of the group, its own initial delay is ignored. Commands are held weakly, like the
+ * {@link WeakRunnable} of a plain periodic task, and leave the group when collected, cancelled, or when they throw.
+ * @author Gael Lalire
+ */
+public final class PeriodicTaskCoalescer {
+
+    private static final long DONE_POLL_MILLIS = 100;
+
+    private final ScheduledExecutorService delegate;
+
+    private final ThreadPoolExecutor pool;
+
+    private final AtomicLong collectedCount;
+
+    // guarded by itself
+    private final Map<GroupKey, Group> groups = new HashMap<GroupKey, Group>();
+
+    /**
+     * @param pool purged when a delegate task is cancelled, null if the delegate removes cancelled tasks by itself
+     * @param collectedCount incremented when a command leaves its group because it is collected
+     */
+    public PeriodicTaskCoalescer(final ScheduledExecutorService delegate, final ThreadPoolExecutor pool, final AtomicLong collectedCount) {
+        this.delegate = delegate;
+        this.pool = pool;
+        this.collectedCount = collectedCount;
+    }
+
+    /**
+     * @return the future of the command alone, cancelling it does not affect the other commands of its group
+     */
+    public ScheduledFuture<?> schedule(final Runnable command, final long initialDelay, final long period, final TimeUnit unit, final boolean fixedRate) {
+        GroupKey groupKey = new GroupKey(command.getClass(), unit.toNanos(period), fixedRate);
+        synchronized (groups) {
+            Group group = groups.get(groupKey);
+            if (group == null || group.timer.isDone()) {
+                group = new Group(groupKey);
+                WeakRunnable weakGroup = new WeakRunnable(group);
+                if (fixedRate) {
+                    group.timer = delegate.scheduleAtFixedRate(weakGroup, initialDelay, period, unit);
+                } else {
+                    group.timer = delegate.scheduleWithFixedDelay(weakGroup, initialDelay, period, unit);
+                }
+                groups.put(groupKey, group);
+            }
+            Member member = new Member(command, group);
+            group.members.add(member);
+            return member;
+        }
+    }
+
+    /**
+     * @return number of delegate tasks, each one running a group of commands
+     */
+    public int getGroupCount() {
+        synchronized (groups) {
+            return groups.size();
+        }
+    }
+
+    void removeMember(final Group group, final Member member) {
+        group.members.remove(member);
+        if (!group.members.isEmpty()) {
+            return;
+        }
+        synchronized (groups) {
+            if (!group.members.isEmpty()) {
+                // a command joined in the meantime
+                return;
+            }
+            if (groups.get(group.groupKey) == group) {
+                groups.remove(group.groupKey);
+            }
+            if (group.timer.cancel(false) && pool != null) {
+                pool.purge();
+            }
+        }
+    }
+
+    /**
+     * @author Gael Lalire
+     */
+    private static final class GroupKey {
+
+        private static final int PRIME = 31;
+
+        private final Class<?> commandClass;
+
+        private final long periodNanos;
+
+        private final boolean fixedRate;
+
+        GroupKey(final Class<?> commandClass, final long periodNanos, final boolean fixedRate) {
+            this.commandClass = commandClass;
+            this.periodNanos = periodNanos;
+            this.fixedRate = fixedRate;
+        }
+
+        @Override
+        public int hashCode() {
+            return (commandClass.hashCode() * PRIME + Long.valueOf(periodNanos).hashCode()) * PRIME + Boolean.valueOf(fixedRate).hashCode();
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof GroupKey)) {
+                return false;
+            }
+            GroupKey other = (GroupKey) obj;
+            return commandClass == other.commandClass && periodNanos == other.periodNanos && fixedRate == other.fixedRate;
+        }
+
+    }
+
+    /**
+     * The delegate only knows the {@link WeakRunnable} of a group, the coalescer keeps the group reachable.
+     * @author Gael Lalire
+     */
+    private final class Group implements Runnable {
+
+        private final GroupKey groupKey;
+
+        private final List<Member> members = new CopyOnWriteArrayList<Member>();
+
+        private volatile ScheduledFuture<?> timer;
+
+        Group(final GroupKey groupKey) {
+            this.groupKey = groupKey;
+        }
+
+        @Override
+        public void run() {
+            for (Member member : members) {
+                Runnable command = member.command.get();
+                if (command == null) {
+                    if (member.finish(Member.COLLECTED, null)) {
+                        collectedCount.incrementAndGet();
+                    }
+                    continue;
+                }
+                if (member.isDone()) {
+                    continue;
+                }
+                try {
+                    command.run();
+                } catch (Throwable e) {
+                    // like a periodic task of the JDK, a failing command is no longer run
+                    member.finish(Member.FAILED, e);
+                }
+            }
+        }
+
+    }
+
+    /**
+     * @author Gael Lalire
+     */
+    private final class Member implements ScheduledFuture<Object> {
+
+        private static final int RUNNING = 0;
+
+        private static final int CANCELLED = 1;
+
+        private static final int FAILED = 2;
+
+        private static final int COLLECTED = 3;
+
+        private final WeakReference<Runnable> command;
+
+        private final Group group;
+
+        // guarded by this
+        private int state = RUNNING;
+
+        private Throwable failure;
+
+        Member(final Runnable command, final Group group) {
+            this.command = new WeakReference<Runnable>(command);
+            this.group = group;
+        }
+
+        boolean finish(final int finalState, final Throwable cause) {
+            synchronized (this) {
+                if (state != RUNNING) {
+                    return false;
+                }
+                state = finalState;
+                failure = cause;
+                notifyAll();
+            }
+            removeMember(group, this);
+            return true;
+        }
+
+        /**
+         * The run of a group is shared, so it is never interrupted.
+         */
+        @Override
+        public boolean cancel(final boolean mayInterruptIfRunning) {
+            return finish(CANCELLED, null);
+        }
+
+        @Override
+        public boolean isCancelled() {
+            synchronized (this) {
+                if (state != RUNNING) {
+                    return state == CANCELLED;
+                }
+            }
+            // the delegate task is cancelled when the delegate is shut down
+            return group.timer.isCancelled();
+        }
+
+        @Override
+        public boolean isDone() {
+            synchronized (this) {
+                if (state != RUNNING) {
+                    return true;
+                }
+            }
+            return group.timer.isDone();
+        }
+
+        private Object report() throws ExecutionException {
+            synchronized (this) {
+                if (state == FAILED) {
+                    throw new ExecutionException(failure);
+                }
+            }
+            throw new CancellationException();
+        }
+
+        @Override
+        public Object get() throws InterruptedException, ExecutionException {
+            synchronized (this) {
+                // the end of the delegate task is not notified, so it is polled
+                while (!isDone()) {
+                    wait(DONE_POLL_MILLIS);
+                }
+            }
+            return report();
+        }
+
+        @Override
+        public Object get(final long timeout, final TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            synchronized (this) {
+                while (!isDone()) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        throw new TimeoutException();
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(this, Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(DONE_POLL_MILLIS)));
+                }
+            }
+            return report();
+        }
+
+        @Override
+        public long getDelay(final TimeUnit unit) {
+            return group.timer.getDelay(unit);
+        }
+
+        @Override
+        public int compareTo(final Delayed o) {
+            long diff = getDelay(TimeUnit.NANOSECONDS) - o.getDelay(TimeUnit.NANOSECONDS);
+            if (diff < 0) {
+                return -1;
+            } else if (diff > 0) {
+                return 1;
+            }
+            return 0;
+        }
+
+    }
+
+}
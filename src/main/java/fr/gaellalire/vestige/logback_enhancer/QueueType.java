@@ -0,0 +1,66 @@
+/*
+ * This file is part of Vestige.
+ *
+ * Vestige is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Vestige is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Vestige.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.gaellalire.vestige.logback_enhancer;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+
+/**
+ * Work queue of the logback {@link java.util.concurrent.ThreadPoolExecutor}.
+ * @author Gael Lalire
+ */
+public enum QueueType {
+
+    /**
+     * Direct handoff, a thread is created for each task until the maximum pool size is reached.
+     */
+    SYNCHRONOUS {
+        @Override
+        public BlockingQueue<Runnable> createQueue(final int capacity) {
+            return new SynchronousQueue<Runnable>();
+        }
+    },
+
+    /**
+     * Bounded array queue, tasks wait in the queue once core threads are busy.
+     */
+    ARRAY {
+        @Override
+        public BlockingQueue<Runnable> createQueue(final int capacity) {
+            return new ArrayBlockingQueue<Runnable>(capacity);
+        }
+    },
+
+    /**
+     * Linked queue, unbounded if capacity is not positive.
+     */
+    LINKED {
+        @Override
+        public BlockingQueue<Runnable> createQueue(final int capacity) {
+            if (capacity <= 0) {
+                return new LinkedBlockingQueue<Runnable>();
+            }
+            return new LinkedBlockingQueue<Runnable>(capacity);
+        }
+    };
+
+    public abstract BlockingQueue<Runnable> createQueue(int capacity);
+
+}
@@ -0,0 +1,349 @@
+/*
+ * This file is part of Vestige.
+ *
+ * Vestige is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Vestige is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Vestige.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.gaellalire.vestige.logback_enhancer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Executor whose threads take their tasks from a {@link MpmcRingBuffer}. Submitting a task is a CAS when a thread is already waiting, threads are only unparked
+ * when they have exhausted the tries of their {@link WaitStrategy}. Threads are started on demand, up to maxThreads, and stop when idle for the keep alive
+ * time: an idle thread waits in this class, it would otherwise keep the application class loader reachable forever.
+ * @author Gael Lalire
+ */
+public class RingBufferExecutorService extends AbstractExecutorService {
+
+    private final MpmcRingBuffer<Runnable> ringBuffer;
+
+    private final ThreadFactory threadFactory;
+
+    private final int maxThreads;
+
+    private final WaitStrategy waitStrategy;
+
+    private final OverflowPolicy overflowPolicy;
+
+    private final long keepAliveNanos;
+
+    private final AtomicInteger threadCount = new AtomicInteger();
+
+    private final AtomicInteger idleThreadCount = new AtomicInteger();
+
+    private final ConcurrentLinkedQueue<Thread> parkedThreads = new ConcurrentLinkedQueue<Thread>();
+
+    private final Set<Thread> threads = Collections.newSetFromMap(new ConcurrentHashMap<Thread, Boolean>());
+
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    private final Object terminationLock = new Object();
+
+    private volatile boolean shutdown;
+
+    private volatile boolean stopped;
+
+    public RingBufferExecutorService(final ThreadFactory threadFactory, final int maxThreads, final int capacity, final WaitStrategy waitStrategy,
+            final OverflowPolicy overflowPolicy) {
+        this(threadFactory, maxThreads, capacity, waitStrategy, overflowPolicy, 0);
+    }
+
+    /**
+     * @param keepAliveNanos time after which an idle thread stops, threads never stop before shutdown if not positive
+     */
+    public RingBufferExecutorService(final ThreadFactory threadFactory, final int maxThreads, final int capacity, final WaitStrategy waitStrategy,
+            final OverflowPolicy overflowPolicy, final long keepAliveNanos) {
+        if (maxThreads <= 0) {
+            throw new IllegalArgumentException("maxThreads must be positive");
+        }
+        this.ringBuffer = new MpmcRingBuffer<Runnable>(capacity);
+        this.threadFactory = threadFactory;
+        this.maxThreads = maxThreads;
+        this.waitStrategy = waitStrategy;
+        this.overflowPolicy = overflowPolicy;
+        this.keepAliveNanos = keepAliveNanos;
+    }
+
+    public int getQueueSize() {
+        return ringBuffer.size();
+    }
+
+    public int getThreadCount() {
+        return threadCount.get();
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    @Override
+    public void execute(final Runnable command) {
+        if (command == null) {
+            throw new NullPointerException();
+        }
+        if (shutdown) {
+            throw new RejectedExecutionException("Executor is shut down");
+        }
+        if (ringBuffer.offer(command)) {
+            signalWork();
+            return;
+        }
+        switch (overflowPolicy) {
+        case CALLER_RUNS:
+            command.run();
+            break;
+        case BLOCK:
+            int tries = 0;
+            while (!ringBuffer.offer(command)) {
+                if (shutdown) {
+                    throw new RejectedExecutionException("Executor is shut down");
+                }
+                if (tries < waitStrategy.getTries()) {
+                    waitStrategy.backOff();
+                    tries++;
+                } else {
+                    LockSupport.parkNanos(this, TimeUnit.MICROSECONDS.toNanos(1));
+                    if (Thread.interrupted()) {
+                        Thread.currentThread().interrupt();
+                        throw new RejectedExecutionException("Interrupted while waiting for room in the ring buffer");
+                    }
+                }
+            }
+            signalWork();
+            break;
+        case DROP_OLDEST:
+            while (!ringBuffer.offer(command)) {
+                if (ringBuffer.poll() != null) {
+                    droppedCount.incrementAndGet();
+                }
+            }
+            signalWork();
+            break;
+        case DROP_COUNTING:
+            droppedCount.incrementAndGet();
+            break;
+        default:
+            throw new RejectedExecutionException("Ring buffer is full");
+        }
+    }
+
+    private void signalWork() {
+        if (idleThreadCount.get() == 0 && startThread()) {
+            return;
+        }
+        Thread parkedThread = parkedThreads.poll();
+        if (parkedThread != null) {
+            LockSupport.unpark(parkedThread);
+        }
+    }
+
+    private boolean startThread() {
+        int count;
+        do {
+            count = threadCount.get();
+            if (count >= maxThreads) {
+                return false;
+            }
+        } while (!threadCount.compareAndSet(count, count + 1));
+        Thread thread = threadFactory.newThread(new Worker());
+        if (thread == null) {
+            // weak thread factory of a collected application, tasks will be discarded with this executor
+            threadExited();
+            return false;
+        }
+        threads.add(thread);
+        thread.start();
+        return true;
+    }
+
+    private void threadExited() {
+        threadCount.decrementAndGet();
+        synchronized (terminationLock) {
+            terminationLock.notifyAll();
+        }
+    }
+
+    /**
+     * @return null on shutdown or when idle for the keep alive time
+     */
+    private Runnable awaitTask() {
+        int tries = 0;
+        Thread currentThread = Thread.currentThread();
+        long deadline = System.nanoTime() + keepAliveNanos;
+        for (;;) {
+            Runnable task = ringBuffer.poll();
+            if (task != null || shutdown) {
+                return task;
+            }
+            if (tries < waitStrategy.getTries()) {
+                waitStrategy.backOff();
+                tries++;
+                continue;
+            }
+            parkedThreads.offer(currentThread);
+            // a producer which did not see this thread in parkedThreads has already published its task
+            task = ringBuffer.poll();
+            if (task != null || shutdown) {
+                parkedThreads.remove(currentThread);
+                return task;
+            }
+            if (keepAliveNanos > 0) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    parkedThreads.remove(currentThread);
+                    return null;
+                }
+                LockSupport.parkNanos(this, remaining);
+            } else {
+                LockSupport.park(this);
+            }
+            parkedThreads.remove(currentThread);
+        }
+    }
+
+    private void runTask(final Runnable task) {
+        if (!stopped) {
+            // clear interrupt set by a previous task
+            Thread.interrupted();
+        }
+        try {
+            task.run();
+        } catch (Throwable e) {
+            Thread currentThread = Thread.currentThread();
+            currentThread.getUncaughtExceptionHandler().uncaughtException(currentThread, e);
+        }
+    }
+
+    private void work() {
+        for (;;) {
+            Runnable task = ringBuffer.poll();
+            if (task == null && !shutdown) {
+                idleThreadCount.incrementAndGet();
+                try {
+                    task = awaitTask();
+                } finally {
+                    idleThreadCount.decrementAndGet();
+                }
+            }
+            if (task != null) {
+                runTask(task);
+            } else {
+                // shutdown or idle
+                threads.remove(Thread.currentThread());
+                threadExited();
+                if (ringBuffer.isEmpty()) {
+                    return;
+                }
+                // a task was offered while this thread was leaving
+                int count;
+                do {
+                    count = threadCount.get();
+                    if (count >= maxThreads) {
+                        return;
+                    }
+                } while (!threadCount.compareAndSet(count, count + 1));
+                threads.add(Thread.currentThread());
+            }
+        }
+    }
+
+    private void wakeAll() {
+        Thread parkedThread = parkedThreads.poll();
+        while (parkedThread != null) {
+            LockSupport.unpark(parkedThread);
+            parkedThread = parkedThreads.poll();
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        shutdown = true;
+        wakeAll();
+        synchronized (terminationLock) {
+            terminationLock.notifyAll();
+        }
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        shutdown = true;
+        stopped = true;
+        List<Runnable> notRun = new ArrayList<Runnable>();
+        Runnable task = ringBuffer.poll();
+        while (task != null) {
+            notRun.add(task);
+            task = ringBuffer.poll();
+        }
+        for (Thread thread : threads) {
+            thread.interrupt();
+        }
+        wakeAll();
+        synchronized (terminationLock) {
+            terminationLock.notifyAll();
+        }
+        return notRun;
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return shutdown && threadCount.get() == 0 && ringBuffer.isEmpty();
+    }
+
+    @Override
+    public boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException {
+        long remaining = unit.toNanos(timeout);
+        long deadline = System.nanoTime() + remaining;
+        synchronized (terminationLock) {
+            while (!isTerminated()) {
+                if (remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(terminationLock, remaining);
+                remaining = deadline - System.nanoTime();
+            }
+            return true;
+        }
+    }
+
+    /**
+     * @author Gael Lalire
+     */
+    private final class Worker implements Runnable {
+
+        @Override
+        public void run() {
+            work();
+        }
+
+    }
+
+}
@@ -0,0 +1,42 @@
+/*
+ * This file is part of Vestige.
+ *
+ * Vestige is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Vestige is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Vestige.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.gaellalire.vestige.logback_enhancer;
+
+/**
+ * Kind of {@link java.util.concurrent.ScheduledExecutorService} returned by newScheduledExecutorService.
+ * @author Gael Lalire
+ */
+public enum SchedulerType {
+
+    /**
+     * A new {@link java.util.concurrent.ScheduledThreadPoolExecutor} for each call.
+     */
+    POOL,
+
+    /**
+     * A view on the JVM wide {@link SharedScheduler}.
+     */
+    SHARED,
+
+    /**
+     * A {@link TimingWheelScheduledExecutorService} for each call, O(1) schedule and cancel, runs tasks on a
+     * {@link java.util.concurrent.ScheduledThreadPoolExecutor}.
+     */
+    WHEEL
+
+}
@@ -0,0 +1,345 @@
+/*
+ * This file is part of Vestige.
+ *
+ * Vestige is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Vestige is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Vestige.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.gaellalire.vestige.logback_enhancer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RunnableScheduledFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import fr.gaellalire.vestige.core.weak.ReaperHelper;
+
+/**
+ * What a logback context sees of the {@link SharedScheduler}. Shutting down a view only cancels the tasks it scheduled, the view releases its reference on the
+ * engine once terminated.
+ * @author Gael Lalire
+ */
+public class SharedScheduledExecutorView extends AbstractExecutorService implements ScheduledExecutorService {
+
+    private final SharedScheduler sharedScheduler;
+
+    private final ScheduledThreadPoolExecutor engine;
+
+    private final ThreadFactory threadFactory;
+
+    private final Set<ViewFuture<?>> futures = Collections.newSetFromMap(new ConcurrentHashMap<ViewFuture<?>, Boolean>());
+
+    private final Object lock = new Object();
+
+    private volatile boolean shutdown;
+
+    private boolean released;
+
+    SharedScheduledExecutorView(final SharedScheduler sharedScheduler, final ScheduledThreadPoolExecutor engine, final ThreadFactory threadFactory) {
+        this.sharedScheduler = sharedScheduler;
+        this.engine = engine;
+        this.threadFactory = threadFactory;
+    }
+
+    private void checkShutdown() {
+        if (shutdown) {
+            throw new RejectedExecutionException("Executor is shut down");
+        }
+    }
+
+    public int getTaskCount() {
+        return futures.size();
+    }
+
+    @Override
+    public void execute(final Runnable command) {
+        schedule(command, 0, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(final Runnable command, final long delay, final TimeUnit unit) {
+        checkShutdown();
+        return engine.schedule(new ViewRunnable(command), delay, unit);
+    }
+
+    @Override
+    public <V> ScheduledFuture<V> schedule(final Callable<V> callable, final long delay, final TimeUnit unit) {
+        checkShutdown();
+        return engine.schedule(new ViewCallable<V>(callable), delay, unit);
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleAtFixedRate(final Runnable command, final long initialDelay, final long period, final TimeUnit unit) {
+        checkShutdown();
+        return engine.scheduleAtFixedRate(new ViewRunnable(command), initialDelay, period, unit);
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleWithFixedDelay(final Runnable command, final long initialDelay, final long delay, final TimeUnit unit) {
+        checkShutdown();
+        return engine.scheduleWithFixedDelay(new ViewRunnable(command), initialDelay, delay, unit);
+    }
+
+    /**
+     * Like {@link ScheduledThreadPoolExecutor#shutdown()}, periodic tasks are cancelled and delayed tasks still run.
+     */
+    @Override
+    public void shutdown() {
+        shutdown = true;
+        for (ViewFuture<?> future : futures) {
+            if (future.isPeriodic()) {
+                future.cancel(false);
+            }
+        }
+        releaseIfIdle();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        shutdown = true;
+        List<Runnable> notRun = new ArrayList<Runnable>();
+        for (ViewFuture<?> future : futures) {
+            if (future.cancel(true)) {
+                notRun.add(future);
+            }
+        }
+        release();
+        return notRun;
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    @Override
+    public boolean isTerminated() {
+        synchronized (lock) {
+            return released;
+        }
+    }
+
+    @Override
+    public boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException {
+        long remaining = unit.toNanos(timeout);
+        long deadline = System.nanoTime() + remaining;
+        synchronized (lock) {
+            while (!released) {
+                if (remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+                remaining = deadline - System.nanoTime();
+            }
+            return true;
+        }
+    }
+
+    /**
+     * @return a helper detaching this view from the engine when the application is reaped, without waiting for its delayed tasks
+     */
+    public ReaperHelper newDetachReaperHelper() {
+        return new DetachReaperHelper(this);
+    }
+
+    private void releaseIfIdle() {
+        if (shutdown && futures.isEmpty()) {
+            release();
+        }
+    }
+
+    private void release() {
+        synchronized (lock) {
+            if (released) {
+                return;
+            }
+            released = true;
+            lock.notifyAll();
+        }
+        sharedScheduler.release(threadFactory);
+    }
+
+    void taskRemoved(final ViewFuture<?> future) {
+        if (futures.remove(future)) {
+            releaseIfIdle();
+        }
+    }
+
+    <V> RunnableScheduledFuture<V> register(final RunnableScheduledFuture<V> task) {
+        ViewFuture<V> viewFuture = new ViewFuture<V>(task);
+        futures.add(viewFuture);
+        if (shutdown) {
+            // shutdown happened between checkShutdown and now
+            viewFuture.cancel(false);
+        }
+        return viewFuture;
+    }
+
+    /**
+     * Marks tasks submitted through a view, so the engine can decorate them.
+     * @author Gael Lalire
+     */
+    interface ViewTask {
+
+        <V> RunnableScheduledFuture<V> decorate(RunnableScheduledFuture<V> task);
+
+    }
+
+    /**
+     * @author Gael Lalire
+     */
+    private final class ViewRunnable implements Runnable, ViewTask {
+
+        private final Runnable command;
+
+        ViewRunnable(final Runnable command) {
+            this.command = command;
+        }
+
+        @Override
+        public void run() {
+            command.run();
+        }
+
+        @Override
+        public <V> RunnableScheduledFuture<V> decorate(final RunnableScheduledFuture<V> task) {
+            return register(task);
+        }
+
+    }
+
+    /**
+     * @author Gael Lalire
+     */
+    private final class ViewCallable<T> implements Callable<T>, ViewTask {
+
+        private final Callable<T> callable;
+
+        ViewCallable(final Callable<T> callable) {
+            this.callable = callable;
+        }
+
+        @Override
+        public T call() throws Exception {
+            return callable.call();
+        }
+
+        @Override
+        public <V> RunnableScheduledFuture<V> decorate(final RunnableScheduledFuture<V> task) {
+            return register(task);
+        }
+
+    }
+
+    /**
+     * Task as queued in the engine, removed from its view when done or cancelled.
+     * @author Gael Lalire
+     */
+    private final class ViewFuture<V> implements RunnableScheduledFuture<V> {
+
+        private final RunnableScheduledFuture<V> task;
+
+        ViewFuture(final RunnableScheduledFuture<V> task) {
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            task.run();
+            if (task.isDone()) {
+                taskRemoved(this);
+            }
+        }
+
+        @Override
+        public boolean cancel(final boolean mayInterruptIfRunning) {
+            boolean cancelled = task.cancel(mayInterruptIfRunning);
+            if (cancelled) {
+                engine.remove(this);
+            }
+            taskRemoved(this);
+            return cancelled;
+        }
+
+        @Override
+        public boolean isPeriodic() {
+            return task.isPeriodic();
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return task.isCancelled();
+        }
+
+        @Override
+        public boolean isDone() {
+            return task.isDone();
+        }
+
+        @Override
+        public V get() throws InterruptedException, ExecutionException {
+            return task.get();
+        }
+
+        @Override
+        public V get(final long timeout, final TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            return task.get(timeout, unit);
+        }
+
+        @Override
+        public long getDelay(final TimeUnit unit) {
+            return task.getDelay(unit);
+        }
+
+        @Override
+        public int compareTo(final Delayed o) {
+            if (o instanceof ViewFuture) {
+                return task.compareTo(((ViewFuture<?>) o).task);
+            }
+            return task.compareTo(o);
+        }
+
+    }
+
+    /**
+     * @author Gael Lalire
+     */
+    private static final class DetachReaperHelper implements ReaperHelper {
+
+        private final SharedScheduledExecutorView view;
+
+        DetachReaperHelper(final SharedScheduledExecutorView view) {
+            this.view = view;
+        }
+
+        @Override
+        public void reap() {
+            view.shutdownNow();
+        }
+
+    }
+
+}
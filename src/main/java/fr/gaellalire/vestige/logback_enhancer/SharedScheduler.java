@@ -0,0 +1,138 @@
+/*
+ * This file is part of Vestige.
+ *
+ * Vestige is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Vestige is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Vestige.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.gaellalire.vestige.logback_enhancer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RunnableScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * JVM wide scheduling engine shared by all logback contexts. Each context gets its own {@link SharedScheduledExecutorView}, the engine is reference counted and
+ * stopped when the last view is released.
+ * @author Gael Lalire
+ */
+public final class SharedScheduler {
+
+    private static SharedScheduler instance;
+
+    private final Engine engine;
+
+    // thread factories of live views, the newest first
+    private final List<ThreadFactory> threadFactories = new ArrayList<ThreadFactory>();
+
+    private int referenceCount;
+
+    private SharedScheduler(final int poolSize) {
+        engine = new Engine(poolSize, new ThreadFactory() {
+
+            @Override
+            public Thread newThread(final Runnable r) {
+                return newEngineThread(r);
+            }
+        });
+    }
+
+    /**
+     * The engine has no thread factory of its own, threads are created by the factory of any live view. A view factory may be weak and return null once its
+     * application is gone, so the next one is tried.
+     */
+    private Thread newEngineThread(final Runnable r) {
+        List<ThreadFactory> factories;
+        synchronized (SharedScheduler.class) {
+            factories = new ArrayList<ThreadFactory>(threadFactories);
+        }
+        for (ThreadFactory threadFactory : factories) {
+            Thread thread = threadFactory.newThread(r);
+            if (thread != null) {
+                return thread;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param threadFactory used to create engine threads while the returned view is not released
+     * @param poolSize the engine pool grows to the largest requested size
+     */
+    public static SharedScheduledExecutorView acquire(final ThreadFactory threadFactory, final int poolSize) {
+        synchronized (SharedScheduler.class) {
+            if (instance == null) {
+                instance = new SharedScheduler(poolSize);
+            } else if (instance.engine.getCorePoolSize() < poolSize) {
+                instance.engine.setCorePoolSize(poolSize);
+            }
+            instance.referenceCount++;
+            instance.threadFactories.add(0, threadFactory);
+            return new SharedScheduledExecutorView(instance, instance.engine, threadFactory);
+        }
+    }
+
+    void release(final ThreadFactory threadFactory) {
+        synchronized (SharedScheduler.class) {
+            threadFactories.remove(threadFactory);
+            referenceCount--;
+            if (referenceCount == 0) {
+                engine.shutdownNow();
+                if (instance == this) {
+                    instance = null;
+                }
+            }
+        }
+    }
+
+    public static int getReferenceCount() {
+        synchronized (SharedScheduler.class) {
+            if (instance == null) {
+                return 0;
+            }
+            return instance.referenceCount;
+        }
+    }
+
+    /**
+     * Lets views track the tasks they scheduled.
+     * @author Gael Lalire
+     */
+    private static final class Engine extends ScheduledThreadPoolExecutor {
+
+        Engine(final int corePoolSize, final ThreadFactory threadFactory) {
+            super(corePoolSize, threadFactory);
+        }
+
+        @Override
+        protected <V> RunnableScheduledFuture<V> decorateTask(final Runnable runnable, final RunnableScheduledFuture<V> task) {
+            if (runnable instanceof SharedScheduledExecutorView.ViewTask) {
+                return ((SharedScheduledExecutorView.ViewTask) runnable).decorate(task);
+            }
+            return task;
+        }
+
+        @Override
+        protected <V> RunnableScheduledFuture<V> decorateTask(final Callable<V> callable, final RunnableScheduledFuture<V> task) {
+            if (callable instanceof SharedScheduledExecutorView.ViewTask) {
+                return ((SharedScheduledExecutorView.ViewTask) callable).decorate(task);
+            }
+            return task;
+        }
+
+    }
+
+}
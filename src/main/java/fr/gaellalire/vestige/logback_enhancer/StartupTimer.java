@@ -0,0 +1,90 @@
+/*
+ * This file is part of Vestige.
+ *
+ * Vestige is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Vestige is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Vestige.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.gaellalire.vestige.logback_enhancer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Durations of the phases between {@link LogbackEnhancer#enhance()} and the call of the main method. Printed on the error stream when
+ * {@link LogbackExecutorConfiguration#STARTUP_TIMING_PROPERTY} is set, logback itself is not configured yet.
+ * @author Gael Lalire
+ */
+public class StartupTimer {
+
+    private static final String PREFIX = "[vestige.logback] ";
+
+    private static final long NANOS_PER_MICRO = 1000L;
+
+    private static final long MICROS_PER_MILLI = 1000L;
+
+    private final long start;
+
+    private long last;
+
+    private final List<String> phases = new ArrayList<String>();
+
+    private final List<Long> durations = new ArrayList<Long>();
+
+    public StartupTimer() {
+        start = System.nanoTime();
+        last = start;
+    }
+
+    /**
+     * Ends the current phase.
+     */
+    public void mark(final String phase) {
+        long now = System.nanoTime();
+        phases.add(phase);
+        durations.add(now - last);
+        last = now;
+    }
+
+    public static String formatMillis(final long nanos) {
+        long micros = nanos / NANOS_PER_MICRO;
+        // leading one is removed to zero-pad the fraction
+        String fraction = Long.toString(MICROS_PER_MILLI + micros % MICROS_PER_MILLI).substring(1);
+        StringBuilder sb = new StringBuilder();
+        sb.append(micros / MICROS_PER_MILLI).append('.').append(fraction).append(" ms");
+        return sb.toString();
+    }
+
+    public String report(final String title) {
+        StringBuilder sb = new StringBuilder(title);
+        sb.append(" in ").append(formatMillis(last - start));
+        int size = phases.size();
+        for (int i = 0; i < size; i++) {
+            if (i == 0) {
+                sb.append(" (");
+            } else {
+                sb.append(", ");
+            }
+            sb.append(phases.get(i)).append(": ").append(formatMillis(durations.get(i)));
+        }
+        if (size != 0) {
+            sb.append(')');
+        }
+        return sb.toString();
+    }
+
+    public static void print(final String message) {
+        System.err.println(PREFIX + message);
+    }
+
+}
@@ -0,0 +1,119 @@
+/*
+ * This file is part of Vestige.
+ *
+ * Vestige is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Vestige is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Vestige.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.gaellalire.vestige.logback_enhancer;
+
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.RunnableScheduledFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Future returned to the user of a weak executor. The delegate executor only knows the weak wrapper of the task, so this future keeps the task strongly reachable
+ * while the user keeps the future.
+ * @author Gael Lalire
+ */
+public final class StrongRefFuture<T> implements RunnableScheduledFuture<T> {
+
+    private final Future<T> future;
+
+    @SuppressWarnings("unused")
+    private final Object taskHandler;
+
+    public StrongRefFuture(final Future<T> future, final Object task) {
+        this.future = future;
+        this.taskHandler = task;
+    }
+
+    public Future<T> getFuture() {
+        return future;
+    }
+
+    @Override
+    public boolean cancel(final boolean mayInterruptIfRunning) {
+        return future.cancel(mayInterruptIfRunning);
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return future.isCancelled();
+    }
+
+    @Override
+    public boolean isDone() {
+        return future.isDone();
+    }
+
+    @Override
+    public T get() throws InterruptedException, ExecutionException {
+        return future.get();
+    }
+
+    @Override
+    public T get(final long timeout, final TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        return future.get(timeout, unit);
+    }
+
+    @Override
+    public void run() {
+        if (future instanceof RunnableFuture) {
+            ((RunnableFuture<T>) future).run();
+        }
+    }
+
+    @Override
+    public boolean isPeriodic() {
+        if (future instanceof RunnableScheduledFuture) {
+            return ((RunnableScheduledFuture<T>) future).isPeriodic();
+        }
+        return false;
+    }
+
+    @Override
+    public long getDelay(final TimeUnit unit) {
+        if (future instanceof ScheduledFuture) {
+            return ((ScheduledFuture<T>) future).getDelay(unit);
+        }
+        return 0;
+    }
+
+    @Override
+    public int compareTo(final Delayed o) {
+        if (future instanceof ScheduledFuture) {
+            Delayed other = o;
+            if (o instanceof StrongRefFuture) {
+                Future<?> otherFuture = ((StrongRefFuture<?>) o).future;
+                if (otherFuture instanceof Delayed) {
+                    other = (Delayed) otherFuture;
+                }
+            }
+            return ((ScheduledFuture<T>) future).compareTo(other);
+        }
+        long diff = -o.getDelay(TimeUnit.NANOSECONDS);
+        if (diff < 0) {
+            return -1;
+        } else if (diff > 0) {
+            return 1;
+        }
+        return 0;
+    }
+
+}
@@ -0,0 +1,389 @@
+/*
+ * This file is part of Vestige.
+ *
+ * Vestige is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Vestige is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Vestige.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.gaellalire.vestige.logback_enhancer;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import fr.gaellalire.vestige.core.weak.WeakRunnable;
+
+/**
+ * Record the start and run time of the tasks of {@link WeakThreadPoolExecutor} in a ring per thread, written by its thread only, without lock. A watchdog
+ * captures the stack of the tasks running longer than the threshold, the slow tasks and the rings can be dumped with the MBean.
+ * <p>
+ * The ring of a thread is kept in a thread local: it is made of JDK classes only, an enhancer object would keep the application class loader reachable from
+ * a thread of another application.
+ * @author Gael Lalire
+ */
+public class TaskTracer implements TaskTracerMBean {
+
+    /**
+     * Tasks remembered by each thread.
+     */
+    public static final int RING_SIZE = 64;
+
+    public static final int MAX_SLOW_TASKS = 64;
+
+    private static final long MIN_WATCHDOG_PERIOD_MILLIS = 10;
+
+    // indexes in the object array of a thread
+    private static final int THREAD = 0;
+
+    private static final int TIMES = 1;
+
+    private static final int NAMES = 2;
+
+    // indexes in the times of a thread, the ring follows
+    private static final int COUNT = 0;
+
+    private static final int RUNNING = 1;
+
+    private static final int RUNNING_START = 2;
+
+    private static final int REPORTED_START = 3;
+
+    private static final int HEADER = 4;
+
+    // index of the running task in the names of a thread
+    private static final int RUNNING_NAME = RING_SIZE;
+
+    private final String applicationName;
+
+    private final long thresholdNanos;
+
+    private final ThreadLocal<Object[]> threadTrace = new ThreadLocal<Object[]>();
+
+    private final Queue<Object[]> threadTraces = new ConcurrentLinkedQueue<Object[]>();
+
+    // guarded by itself
+    private final Deque<SlowTask> slowTasks = new ArrayDeque<SlowTask>();
+
+    private final AtomicLong slowTaskCount = new AtomicLong();
+
+    private final Runnable watchdog = new Runnable() {
+
+        @Override
+        public void run() {
+            captureSlowTasks();
+        }
+    };
+
+    public TaskTracer(final String applicationName, final long thresholdNanos) {
+        this.applicationName = applicationName;
+        this.thresholdNanos = thresholdNanos;
+    }
+
+    /**
+     * @param scheduledExecutorService runs the watchdog, it only knows a {@link WeakRunnable} of it
+     */
+    public void start(final ScheduledExecutorService scheduledExecutorService) {
+        long periodMillis = Math.max(MIN_WATCHDOG_PERIOD_MILLIS, TimeUnit.NANOSECONDS.toMillis(thresholdNanos) / 2);
+        scheduledExecutorService.scheduleWithFixedDelay(new WeakRunnable(watchdog), periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param task the wrapper which actually runs, usually a {@link WeakRunnable}
+     * @param command the task as submitted, which names the trace
+     */
+    public Runnable trace(final Runnable task, final Object command) {
+        return new TracedRunnable(task, command.getClass().getName());
+    }
+
+    public <T> Callable<T> trace(final Callable<T> task, final Object command) {
+        return new TracedCallable<T>(task, command.getClass().getName());
+    }
+
+    private Object[] getThreadTrace() {
+        Object[] trace = threadTrace.get();
+        if (trace == null) {
+            trace = new Object[] {new WeakReference<Thread>(Thread.currentThread()), new AtomicLongArray(HEADER + 2 * RING_SIZE),
+                    new AtomicReferenceArray<String>(RING_SIZE + 1)};
+            threadTrace.set(trace);
+            threadTraces.add(trace);
+        }
+        return trace;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static AtomicReferenceArray<String> getNames(final Object[] trace) {
+        return (AtomicReferenceArray<String>) trace[NAMES];
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Thread getThread(final Object[] trace) {
+        return ((WeakReference<Thread>) trace[THREAD]).get();
+    }
+
+    /**
+     * Record a task in the ring of the current thread, restoring the running task of the thread at the end as tasks may nest (caller runs policy).
+     */
+    private <T> T run(final Callable<T> callable, final Runnable runnable, final String name) throws Exception {
+        Object[] trace = getThreadTrace();
+        AtomicLongArray times = (AtomicLongArray) trace[TIMES];
+        long outerRunning = times.get(RUNNING);
+        long outerStart = times.get(RUNNING_START);
+        String outerName = getNames(trace).get(RUNNING_NAME);
+        long start = System.nanoTime();
+        taskStarted(trace, name, start);
+        try {
+            if (callable != null) {
+                return callable.call();
+            }
+            runnable.run();
+            return null;
+        } finally {
+            taskEnded(trace, name, start, System.nanoTime(), outerRunning, outerStart, outerName);
+        }
+    }
+
+    private static void taskStarted(final Object[] trace, final String name, final long start) {
+        AtomicLongArray times = (AtomicLongArray) trace[TIMES];
+        getNames(trace).lazySet(RUNNING_NAME, name);
+        times.lazySet(RUNNING_START, start);
+        times.set(RUNNING, 1);
+    }
+
+    private void taskEnded(final Object[] trace, final String name, final long start, final long end, final long outerRunning, final long outerStart,
+            final String outerName) {
+        AtomicLongArray times = (AtomicLongArray) trace[TIMES];
+        AtomicReferenceArray<String> names = getNames(trace);
+        long count = times.get(COUNT);
+        int index = (int) (count % RING_SIZE);
+        names.lazySet(index, name);
+        times.lazySet(HEADER + 2 * index, start);
+        times.lazySet(HEADER + 2 * index + 1, end - start);
+        times.lazySet(COUNT, count + 1);
+        times.set(RUNNING, outerRunning);
+        times.lazySet(RUNNING_START, outerStart);
+        names.lazySet(RUNNING_NAME, outerName);
+        if (end - start > thresholdNanos) {
+            slowTaskEnded(Thread.currentThread(), name, start, end - start);
+        }
+    }
+
+    private void slowTaskEnded(final Thread thread, final String name, final long start, final long duration) {
+        slowTaskCount.incrementAndGet();
+        synchronized (slowTasks) {
+            for (SlowTask slowTask : slowTasks) {
+                if (slowTask.threadId == thread.getId() && slowTask.start == start) {
+                    slowTask.duration = duration;
+                    return;
+                }
+            }
+            // ended before the watchdog saw it
+            addSlowTask(new SlowTask(thread, name, start, duration, null));
+        }
+    }
+
+    private void addSlowTask(final SlowTask slowTask) {
+        if (slowTasks.size() == MAX_SLOW_TASKS) {
+            slowTasks.removeFirst();
+        }
+        slowTasks.addLast(slowTask);
+    }
+
+    void captureSlowTasks() {
+        long now = System.nanoTime();
+        Iterator<Object[]> iterator = threadTraces.iterator();
+        while (iterator.hasNext()) {
+            Object[] trace = iterator.next();
+            Thread thread = getThread(trace);
+            if (thread == null || !thread.isAlive()) {
+                iterator.remove();
+                continue;
+            }
+            AtomicLongArray times = (AtomicLongArray) trace[TIMES];
+            if (times.get(RUNNING) == 0) {
+                continue;
+            }
+            long start = times.get(RUNNING_START);
+            if (now - start <= thresholdNanos || times.get(REPORTED_START) == start) {
+                continue;
+            }
+            String name = getNames(trace).get(RUNNING_NAME);
+            StackTraceElement[] stackTrace = thread.getStackTrace();
+            if (times.get(RUNNING) == 0 || times.get(RUNNING_START) != start) {
+                // the stack belongs to another task
+                continue;
+            }
+            times.set(REPORTED_START, start);
+            synchronized (slowTasks) {
+                addSlowTask(new SlowTask(thread, name, start, -1, stackTrace));
+            }
+        }
+    }
+
+    @Override
+    public String getApplicationName() {
+        return applicationName;
+    }
+
+    @Override
+    public long getSlowTaskThresholdMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(thresholdNanos);
+    }
+
+    @Override
+    public long getSlowTaskCount() {
+        return slowTaskCount.get();
+    }
+
+    @Override
+    public String dumpSlowTasks() {
+        long now = System.nanoTime();
+        StringBuilder sb = new StringBuilder();
+        synchronized (slowTasks) {
+            for (SlowTask slowTask : slowTasks) {
+                sb.append(slowTask.name).append(" on ").append(slowTask.threadName).append(", started ").append(TimeUnit.NANOSECONDS.toMillis(now - slowTask.start))
+                        .append(" ms ago, ");
+                if (slowTask.duration < 0) {
+                    sb.append("still running when captured");
+                } else {
+                    sb.append("ran ").append(TimeUnit.NANOSECONDS.toMillis(slowTask.duration)).append(" ms");
+                }
+                sb.append('\n');
+                if (slowTask.stackTrace == null) {
+                    sb.append("\tstack not captured, the task ended before the watchdog ran\n");
+                } else {
+                    for (StackTraceElement stackTraceElement : slowTask.stackTrace) {
+                        sb.append("\tat ").append(stackTraceElement).append('\n');
+                    }
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String dumpTaskTraces() {
+        long now = System.nanoTime();
+        StringBuilder sb = new StringBuilder();
+        for (Object[] trace : threadTraces) {
+            Thread thread = getThread(trace);
+            if (thread == null) {
+                continue;
+            }
+            // the ring may move while it is read, a dump is only a hint
+            AtomicLongArray times = (AtomicLongArray) trace[TIMES];
+            AtomicReferenceArray<String> names = getNames(trace);
+            long count = times.get(COUNT);
+            sb.append(thread.getName()).append(", ").append(count).append(" tasks");
+            if (times.get(RUNNING) != 0) {
+                sb.append(", running ").append(names.get(RUNNING_NAME)).append(" for ")
+                        .append(TimeUnit.NANOSECONDS.toMicros(now - times.get(RUNNING_START))).append(" us");
+            }
+            sb.append('\n');
+            for (long sequence = count - 1; sequence >= 0 && sequence >= count - RING_SIZE; sequence--) {
+                int index = (int) (sequence % RING_SIZE);
+                sb.append('\t').append(names.get(index)).append(" started ").append(TimeUnit.NANOSECONDS.toMicros(now - times.get(HEADER + 2 * index)))
+                        .append(" us ago, ran ").append(TimeUnit.NANOSECONDS.toMicros(times.get(HEADER + 2 * index + 1))).append(" us\n");
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @author Gael Lalire
+     */
+    private static final class SlowTask {
+
+        // the thread is not kept, it may be long gone when the dump is read
+        private final long threadId;
+
+        private final String threadName;
+
+        private final String name;
+
+        private final long start;
+
+        // -1 while the task is running, guarded by slowTasks
+        private long duration;
+
+        private final StackTraceElement[] stackTrace;
+
+        SlowTask(final Thread thread, final String name, final long start, final long duration, final StackTraceElement[] stackTrace) {
+            this.threadId = thread.getId();
+            this.threadName = thread.getName();
+            this.name = name;
+            this.start = start;
+            this.duration = duration;
+            this.stackTrace = stackTrace;
+        }
+
+    }
+
+    /**
+     * @author Gael Lalire
+     */
+    private final class TracedRunnable implements Runnable {
+
+        private final Runnable task;
+
+        private final String name;
+
+        TracedRunnable(final Runnable task, final String name) {
+            this.task = task;
+            this.name = name;
+        }
+
+        @Override
+        public void run() {
+            try {
+                TaskTracer.this.run(null, task, name);
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                // a runnable only throws unchecked exceptions
+                throw new IllegalStateException(e);
+            }
+        }
+
+    }
+
+    /**
+     * @author Gael Lalire
+     */
+    private final class TracedCallable<T> implements Callable<T> {
+
+        private final Callable<T> task;
+
+        private final String name;
+
+        TracedCallable(final Callable<T> task, final String name) {
+            this.task = task;
+            this.name = name;
+        }
+
+        @Override
+        public T call() throws Exception {
+            return TaskTracer.this.run(task, null, name);
+        }
+
+    }
+
+}
@@ -0,0 +1,45 @@
+/*
+ * This file is part of Vestige.
+ *
+ * Vestige is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Vestige is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Vestige.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.gaellalire.vestige.logback_enhancer;
+
+/**
+ * JMX view of {@link TaskTracer}.
+ * @author Gael Lalire
+ */
+public interface TaskTracerMBean {
+
+    String getApplicationName();
+
+    long getSlowTaskThresholdMillis();
+
+    /**
+     * @return number of tasks which ran longer than the threshold since the start
+     */
+    long getSlowTaskCount();
+
+    /**
+     * @return the last slow tasks with the stack captured while they were running
+     */
+    String dumpSlowTasks();
+
+    /**
+     * @return the running task and the last tasks of each traced thread
+     */
+    String dumpTaskTraces();
+
+}
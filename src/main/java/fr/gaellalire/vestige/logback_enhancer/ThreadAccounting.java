@@ -0,0 +1,256 @@
+/*
+ * This file is part of Vestige.
+ *
+ * Vestige is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Vestige is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Vestige.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.gaellalire.vestige.logback_enhancer;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import fr.gaellalire.vestige.core.weak.ReaperHelper;
+
+/**
+ * CPU time, allocated bytes and thread counts of the logback threads of one application. Threads are sampled with {@link ThreadMXBean} when a logback thread is
+ * created and when the accounting is read, a terminated thread counts for what it had consumed at its last sample. The runnable of a thread is not wrapped: a
+ * thread running enhancer code while idle would keep the application class loader reachable. So there is no final sample when a thread exits, and what a
+ * thread consumed after its last sample is not counted, which undercounts short lived threads. Values are -1 if the JVM does not support the measure.
+ * @author Gael Lalire
+ */
+public class ThreadAccounting implements ThreadAccountingMBean {
+
+    private static final List<ThreadAccounting> INSTANCES = new CopyOnWriteArrayList<ThreadAccounting>();
+
+    private static final ThreadMXBean THREAD_MX_BEAN = ManagementFactory.getThreadMXBean();
+
+    private static final Method GET_THREAD_ALLOCATED_BYTES;
+
+    private static final int CPU_TIME = 0;
+
+    private static final int USER_TIME = 1;
+
+    private static final int ALLOCATED_BYTES = 2;
+
+    private static final int MEASURE_COUNT = 3;
+
+    static {
+        Method getThreadAllocatedBytes = null;
+        try {
+            Class<?> hotspotThreadMXBeanClass = Class.forName("com.sun.management.ThreadMXBean");
+            if (hotspotThreadMXBeanClass.isInstance(THREAD_MX_BEAN)) {
+                getThreadAllocatedBytes = hotspotThreadMXBeanClass.getMethod("getThreadAllocatedBytes", long.class);
+            }
+        } catch (Exception e) {
+            // not a hotspot JVM
+        }
+        GET_THREAD_ALLOCATED_BYTES = getThreadAllocatedBytes;
+    }
+
+    private final String applicationName;
+
+    // last sample of each thread, guarded by itself
+    private final Map<Thread, long[]> samples = new HashMap<Thread, long[]>();
+
+    private final long[] terminated = new long[MEASURE_COUNT];
+
+    private final AtomicLong startedThreadCount = new AtomicLong();
+
+    public ThreadAccounting(final String applicationName) {
+        this.applicationName = applicationName;
+    }
+
+    /**
+     * Make the accounting visible with {@link #getInstances()}. The list belongs to the enhancer classes, so it goes away with them.
+     */
+    public void register() {
+        INSTANCES.add(this);
+    }
+
+    public void unregister() {
+        INSTANCES.remove(this);
+    }
+
+    /**
+     * @return a helper calling {@link #unregister()} when the application is reaped, or stops if it has MBeans
+     */
+    public ReaperHelper newUnregisterReaperHelper() {
+        return new UnregisterReaperHelper(this);
+    }
+
+    /**
+     * @return registered accountings
+     */
+    public static List<ThreadAccounting> getInstances() {
+        return new ArrayList<ThreadAccounting>(INSTANCES);
+    }
+
+    /**
+     * @param thread a new logback thread
+     */
+    public void threadCreated(final Thread thread) {
+        startedThreadCount.incrementAndGet();
+        synchronized (samples) {
+            sample();
+            samples.put(thread, new long[MEASURE_COUNT]);
+        }
+    }
+
+    /**
+     * @param creator a logback thread which only lived to construct thread, thread takes its place in the started thread count
+     * @param thread a new thread, not created by a logback thread factory
+     */
+    public void threadReplaced(final Thread creator, final Thread thread) {
+        synchronized (samples) {
+            sample();
+            long[] values = samples.remove(creator);
+            if (values != null) {
+                for (int measure = 0; measure < MEASURE_COUNT; measure++) {
+                    terminated[measure] += values[measure];
+                }
+            }
+            samples.put(thread, new long[MEASURE_COUNT]);
+        }
+    }
+
+    private static long measure(final int measure, final long threadId) {
+        switch (measure) {
+        case CPU_TIME:
+            return THREAD_MX_BEAN.getThreadCpuTime(threadId);
+        case USER_TIME:
+            return THREAD_MX_BEAN.getThreadUserTime(threadId);
+        default:
+            try {
+                return ((Long) GET_THREAD_ALLOCATED_BYTES.invoke(THREAD_MX_BEAN, threadId)).longValue();
+            } catch (Exception e) {
+                return -1;
+            }
+        }
+    }
+
+    private static boolean isSupported(final int measure) {
+        if (measure == ALLOCATED_BYTES) {
+            return GET_THREAD_ALLOCATED_BYTES != null;
+        }
+        return THREAD_MX_BEAN.isThreadCpuTimeSupported();
+    }
+
+    /**
+     * Refresh the sample of live threads, and move the last sample of terminated threads to the totals. Called with samples lock.
+     */
+    private void sample() {
+        Iterator<Entry<Thread, long[]>> iterator = samples.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Entry<Thread, long[]> entry = iterator.next();
+            Thread thread = entry.getKey();
+            long[] values = entry.getValue();
+            if (thread.getState() == Thread.State.TERMINATED) {
+                for (int measure = 0; measure < MEASURE_COUNT; measure++) {
+                    terminated[measure] += values[measure];
+                }
+                iterator.remove();
+            } else if (thread.isAlive()) {
+                for (int measure = 0; measure < MEASURE_COUNT; measure++) {
+                    if (isSupported(measure)) {
+                        long value = measure(measure, thread.getId());
+                        // -1 if the thread terminated meanwhile, keep the previous sample
+                        if (value > 0) {
+                            values[measure] = value;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public String getApplicationName() {
+        return applicationName;
+    }
+
+    @Override
+    public int getLiveThreadCount() {
+        int count = 0;
+        synchronized (samples) {
+            for (Thread thread : samples.keySet()) {
+                if (thread.isAlive()) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public long getStartedThreadCount() {
+        return startedThreadCount.get();
+    }
+
+    private long total(final int measure) {
+        if (!isSupported(measure)) {
+            return -1;
+        }
+        synchronized (samples) {
+            sample();
+            long total = terminated[measure];
+            for (long[] values : samples.values()) {
+                total += values[measure];
+            }
+            return total;
+        }
+    }
+
+    @Override
+    public long getCpuTime() {
+        return total(CPU_TIME);
+    }
+
+    @Override
+    public long getUserTime() {
+        return total(USER_TIME);
+    }
+
+    @Override
+    public long getAllocatedBytes() {
+        return total(ALLOCATED_BYTES);
+    }
+
+    /**
+     * @author Gael Lalire
+     */
+    private static final class UnregisterReaperHelper implements ReaperHelper {
+
+        private final ThreadAccounting threadAccounting;
+
+        UnregisterReaperHelper(final ThreadAccounting threadAccounting) {
+            this.threadAccounting = threadAccounting;
+        }
+
+        @Override
+        public void reap() {
+            threadAccounting.unregister();
+        }
+
+    }
+
+}
@@ -0,0 +1,500 @@
+/*
+ * This file is part of Vestige.
+ *
+ * Vestige is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Vestige is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Vestige.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.gaellalire.vestige.logback_enhancer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RunnableScheduledFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import fr.gaellalire.vestige.core.weak.WeakRunnable;
+
+/**
+ * {@link ScheduledExecutorService} keeping its tasks in a hierarchical timing wheel: scheduling and cancelling a task are O(1), whatever the number of pending
+ * tasks. Each level has 64 slots of 64 times the duration of the slots of the level below, a task is put in the lowest level whose slot can tell its deadline
+ * apart from the current tick, and moves down when the wheel reaches the slot.
+ * <p>
+ * Due tasks run in the runner, a JDK {@link ScheduledThreadPoolExecutor} which also wakes the wheel up at the next tick where a task is due or must move down,
+ * there is no periodic tick while nothing happens. The runner only knows a {@link WeakRunnable} of the wheel, so the runner can be reaped with the application
+ * and the wheel is collected with its last user. Like the runner, this executor runs the delayed tasks after shutdown and cancels the periodic ones.
+ * @author Gael Lalire
+ */
+public class TimingWheelScheduledExecutorService extends AbstractExecutorService implements ScheduledExecutorService {
+
+    private static final int WHEEL_BITS = 6;
+
+    private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+
+    private static final int LEVELS = (Long.SIZE + WHEEL_BITS - 1) / WHEEL_BITS;
+
+    // about 146 years, keeps deadlines from overflowing
+    private static final long MAX_DELAY_NANOS = Long.MAX_VALUE >> 1;
+
+    private final ScheduledThreadPoolExecutor runner;
+
+    private final long tickNanos;
+
+    private final long startNanos;
+
+    private final Object lock = new Object();
+
+    // guarded by lock, slots of a level are allocated on first use
+    private final WheelTask<?>[][] wheel = new WheelTask<?>[LEVELS][];
+
+    private final int[] levelSizes = new int[LEVELS];
+
+    private int size;
+
+    private long currentTick;
+
+    private Future<?> wakeUp;
+
+    private long wakeUpTick = Long.MAX_VALUE;
+
+    private boolean shutdown;
+
+    // wake-ups are computed once the wheel has advanced
+    private boolean advancing;
+
+    private final Runnable ticker = new Runnable() {
+
+        @Override
+        public void run() {
+            advance();
+        }
+    };
+
+    private final WeakRunnable weakTicker = new WeakRunnable(ticker);
+
+    /**
+     * @param runner runs the due tasks, it is shut down by this executor
+     * @param tickNanos resolution of the wheel, tasks run up to one tick late
+     */
+    public TimingWheelScheduledExecutorService(final ScheduledThreadPoolExecutor runner, final long tickNanos) {
+        if (tickNanos <= 0) {
+            throw new IllegalArgumentException("tickNanos must be positive");
+        }
+        this.runner = runner;
+        this.tickNanos = tickNanos;
+        this.startNanos = System.nanoTime();
+    }
+
+    /**
+     * @return number of tasks waiting in the wheel
+     */
+    public int getWheelSize() {
+        synchronized (lock) {
+            return size;
+        }
+    }
+
+    private long nowTick() {
+        return (System.nanoTime() - startNanos) / tickNanos;
+    }
+
+    /**
+     * @return the first tick not before deadlineNanos, so tasks never run early
+     */
+    private long tickOf(final long deadlineNanos) {
+        long elapsed = deadlineNanos - startNanos;
+        if (elapsed <= 0) {
+            return 0;
+        }
+        return (elapsed + tickNanos - 1) / tickNanos;
+    }
+
+    private static long clearLowBits(final long tick, final int bits) {
+        if (bits >= Long.SIZE) {
+            return 0;
+        }
+        return (tick >>> bits) << bits;
+    }
+
+    private static long triggerNanos(final long delay, final TimeUnit unit) {
+        return System.nanoTime() + Math.min(Math.max(0, unit.toNanos(delay)), MAX_DELAY_NANOS);
+    }
+
+    // lock must be held
+    private void insert(final WheelTask<?> task) {
+        if (size == 0) {
+            // nothing to move down, the wheel can jump to now
+            currentTick = Math.max(currentTick, nowTick());
+        }
+        long deadlineTick = tickOf(task.deadlineNanos);
+        if (deadlineTick <= currentTick) {
+            runner.execute(task);
+            return;
+        }
+        int level = (Long.SIZE - 1 - Long.numberOfLeadingZeros(deadlineTick ^ currentTick)) / WHEEL_BITS;
+        int slot = (int) (deadlineTick >>> (level * WHEEL_BITS)) & WHEEL_MASK;
+        WheelTask<?>[] slots = wheel[level];
+        if (slots == null) {
+            slots = new WheelTask<?>[WHEEL_SIZE];
+            wheel[level] = slots;
+        }
+        WheelTask<?> head = slots[slot];
+        task.next = head;
+        task.previous = null;
+        if (head != null) {
+            head.previous = task;
+        }
+        slots[slot] = task;
+        task.level = level;
+        task.slot = slot;
+        task.inWheel = true;
+        levelSizes[level]++;
+        size++;
+        // the task is due, or moves down, when the wheel reaches its slot
+        scheduleWakeUp(clearLowBits(deadlineTick, level * WHEEL_BITS));
+    }
+
+    // lock must be held
+    private void unlink(final WheelTask<?> task) {
+        if (!task.inWheel) {
+            return;
+        }
+        if (task.previous == null) {
+            wheel[task.level][task.slot] = task.next;
+        } else {
+            task.previous.next = task.next;
+        }
+        if (task.next != null) {
+            task.next.previous = task.previous;
+        }
+        task.next = null;
+        task.previous = null;
+        task.inWheel = false;
+        levelSizes[task.level]--;
+        size--;
+    }
+
+    // lock must be held
+    private WheelTask<?> unlinkSlot(final int level, final int slot) {
+        WheelTask<?> head = wheel[level][slot];
+        WheelTask<?> task = head;
+        while (task != null) {
+            task.inWheel = false;
+            task.previous = null;
+            levelSizes[level]--;
+            size--;
+            task = task.next;
+        }
+        wheel[level][slot] = null;
+        return head;
+    }
+
+    /**
+     * @return the next tick where a task is due or must move down, Long.MAX_VALUE if the wheel is empty
+     */
+    private long nextEventTick() {
+        for (int level = 0; level < LEVELS; level++) {
+            if (levelSizes[level] == 0) {
+                continue;
+            }
+            int shift = level * WHEEL_BITS;
+            WheelTask<?>[] slots = wheel[level];
+            // tasks of a level are after the current slot of the level and before its end
+            for (int slot = ((int) (currentTick >>> shift) & WHEEL_MASK) + 1; slot < WHEEL_SIZE; slot++) {
+                if (slots[slot] != null) {
+                    return clearLowBits(currentTick, shift + WHEEL_BITS) | ((long) slot << shift);
+                }
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    // lock must be held
+    private void scheduleWakeUp(final long eventTick) {
+        if (advancing || eventTick >= wakeUpTick || eventTick == Long.MAX_VALUE) {
+            return;
+        }
+        if (wakeUp != null) {
+            wakeUp.cancel(false);
+        }
+        wakeUpTick = eventTick;
+        long delayNanos = startNanos + eventTick * tickNanos - System.nanoTime();
+        wakeUp = runner.schedule(weakTicker, Math.max(0, delayNanos), TimeUnit.NANOSECONDS);
+    }
+
+    void advance() {
+        synchronized (lock) {
+            wakeUp = null;
+            wakeUpTick = Long.MAX_VALUE;
+            advancing = true;
+            long targetTick = nowTick();
+            while (currentTick < targetTick) {
+                long eventTick = nextEventTick();
+                if (eventTick > targetTick) {
+                    currentTick = targetTick;
+                    break;
+                }
+                currentTick = eventTick;
+                for (int level = LEVELS - 1; level > 0; level--) {
+                    int shift = level * WHEEL_BITS;
+                    if (levelSizes[level] != 0 && clearLowBits(currentTick, shift) == currentTick) {
+                        WheelTask<?> task = unlinkSlot(level, (int) (currentTick >>> shift) & WHEEL_MASK);
+                        while (task != null) {
+                            WheelTask<?> next = task.next;
+                            task.next = null;
+                            insert(task);
+                            task = next;
+                        }
+                    }
+                }
+                if (levelSizes[0] != 0) {
+                    WheelTask<?> task = unlinkSlot(0, (int) currentTick & WHEEL_MASK);
+                    while (task != null) {
+                        WheelTask<?> next = task.next;
+                        task.next = null;
+                        runner.execute(task);
+                        task = next;
+                    }
+                }
+            }
+            advancing = false;
+            scheduleWakeUp(nextEventTick());
+            tryTerminate();
+        }
+    }
+
+    // lock must be held
+    private void tryTerminate() {
+        if (shutdown && size == 0) {
+            if (wakeUp != null) {
+                wakeUp.cancel(false);
+                wakeUp = null;
+            }
+            runner.shutdown();
+        }
+    }
+
+    private <V> WheelTask<V> schedule(final WheelTask<V> task) {
+        synchronized (lock) {
+            if (shutdown) {
+                throw new RejectedExecutionException("Executor is shut down");
+            }
+            insert(task);
+        }
+        return task;
+    }
+
+    @Override
+    public void execute(final Runnable command) {
+        schedule(command, 0, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(final Runnable command, final long delay, final TimeUnit unit) {
+        return schedule(new WheelTask<Object>(Executors.callable(command), triggerNanos(delay, unit), 0));
+    }
+
+    @Override
+    public <V> ScheduledFuture<V> schedule(final Callable<V> callable, final long delay, final TimeUnit unit) {
+        return schedule(new WheelTask<V>(callable, triggerNanos(delay, unit), 0));
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleAtFixedRate(final Runnable command, final long initialDelay, final long period, final TimeUnit unit) {
+        if (period <= 0) {
+            throw new IllegalArgumentException("period must be positive");
+        }
+        return schedule(new WheelTask<Object>(Executors.callable(command), triggerNanos(initialDelay, unit), unit.toNanos(period)));
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleWithFixedDelay(final Runnable command, final long initialDelay, final long delay, final TimeUnit unit) {
+        if (delay <= 0) {
+            throw new IllegalArgumentException("delay must be positive");
+        }
+        return schedule(new WheelTask<Object>(Executors.callable(command), triggerNanos(initialDelay, unit), -unit.toNanos(delay)));
+    }
+
+    @Override
+    public void shutdown() {
+        List<WheelTask<?>> periodicTasks = new ArrayList<WheelTask<?>>();
+        synchronized (lock) {
+            shutdown = true;
+            for (int level = 0; level < LEVELS; level++) {
+                if (levelSizes[level] == 0) {
+                    continue;
+                }
+                for (WheelTask<?> head : wheel[level]) {
+                    for (WheelTask<?> task = head; task != null; task = task.next) {
+                        if (task.isPeriodic()) {
+                            periodicTasks.add(task);
+                        }
+                    }
+                }
+            }
+            tryTerminate();
+        }
+        for (WheelTask<?> task : periodicTasks) {
+            task.cancel(false);
+        }
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        List<Runnable> notRun = new ArrayList<Runnable>();
+        synchronized (lock) {
+            shutdown = true;
+            for (int level = 0; level < LEVELS; level++) {
+                if (levelSizes[level] == 0) {
+                    continue;
+                }
+                for (int slot = 0; slot < WHEEL_SIZE; slot++) {
+                    WheelTask<?> task = unlinkSlot(level, slot);
+                    while (task != null) {
+                        notRun.add(task);
+                        WheelTask<?> next = task.next;
+                        task.next = null;
+                        task = next;
+                    }
+                }
+            }
+            for (Runnable runnable : runner.shutdownNow()) {
+                if (runnable != wakeUp) {
+                    notRun.add(runnable);
+                }
+            }
+            wakeUp = null;
+        }
+        return notRun;
+    }
+
+    @Override
+    public boolean isShutdown() {
+        synchronized (lock) {
+            return shutdown;
+        }
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return isShutdown() && runner.isTerminated();
+    }
+
+    /**
+     * The runner is only shut down once the wheel is empty, until then it does not terminate.
+     */
+    @Override
+    public boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException {
+        return runner.awaitTermination(timeout, unit);
+    }
+
+    /**
+     * @author Gael Lalire
+     */
+    private final class WheelTask<V> extends FutureTask<V> implements RunnableScheduledFuture<V> {
+
+        private volatile long deadlineNanos;
+
+        // positive for a fixed rate, negative for a fixed delay, 0 if not periodic
+        private final long period;
+
+        // next fields are guarded by lock
+        private WheelTask<?> previous;
+
+        private WheelTask<?> next;
+
+        private int level;
+
+        private int slot;
+
+        private boolean inWheel;
+
+        WheelTask(final Callable<V> callable, final long deadlineNanos, final long period) {
+            super(callable);
+            this.deadlineNanos = deadlineNanos;
+            this.period = period;
+        }
+
+        @Override
+        public boolean isPeriodic() {
+            return period != 0;
+        }
+
+        @Override
+        public void run() {
+            if (!isPeriodic()) {
+                super.run();
+                return;
+            }
+            if (!runAndReset()) {
+                return;
+            }
+            synchronized (lock) {
+                if (shutdown) {
+                    cancel(false);
+                    return;
+                }
+                if (period > 0) {
+                    deadlineNanos += period;
+                } else {
+                    deadlineNanos = System.nanoTime() - period;
+                }
+                insert(this);
+            }
+        }
+
+        @Override
+        public boolean cancel(final boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            synchronized (lock) {
+                if (inWheel) {
+                    unlink(this);
+                    tryTerminate();
+                }
+            }
+            return cancelled;
+        }
+
+        @Override
+        public long getDelay(final TimeUnit unit) {
+            return unit.convert(deadlineNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(final Delayed o) {
+            if (o == this) {
+                return 0;
+            }
+            long diff = getDelay(TimeUnit.NANOSECONDS) - o.getDelay(TimeUnit.NANOSECONDS);
+            if (diff < 0) {
+                return -1;
+            } else if (diff > 0) {
+                return 1;
+            }
+            return 0;
+        }
+
+    }
+
+}
@@ -0,0 +1,370 @@
+/*
+ * This file is part of Vestige.
+ *
+ * Vestige is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Vestige is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Vestige.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.gaellalire.vestige.logback_enhancer;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ch.qos.logback.core.util.ExecutorServiceFactory;
+import fr.gaellalire.vestige.core.weak.ExecutorServiceReaperHelper;
+import fr.gaellalire.vestige.core.weak.VestigeReaper;
+import fr.gaellalire.vestige.core.weak.WeakThreadFactory;
+
+/**
+ * {@link ExecutorServiceFactory} installed by {@link LogbackEnhancer}. Executors are weakly wrapped and their delegates are reaped with the application. Threads
+ * factories are obtained from {@link LogbackThreadFactories} on the first executor creation.
+ * <p>
+ * The reaper keeps its helpers until the application is collected, a delegate built with enhancer classes would keep the application class loader reachable
+ * forever when the enhancer is loaded with the application. Such delegates are not given to the reaper, see {@link ApplicationReaper}, they end when logback
+ * shuts them down.
+ * @author Gael Lalire
+ */
+public class VestigeExecutorServiceFactory implements ExecutorServiceFactory {
+
+    private final ApplicationReaper applicationReaper;
+
+    private static final AtomicInteger APPLICATION_NUMBER = new AtomicInteger(1);
+
+    private final LogbackExecutorConfiguration configuration;
+
+    private final String applicationName;
+
+    private final AtomicInteger executorNumber = new AtomicInteger(1);
+
+    private final LogbackThreadFactories threadFactories;
+
+    private ExecutorCleaner executorCleaner;
+
+    private TaskTracer taskTracer;
+
+    private final ExecutorDrainer executorDrainer = new ExecutorDrainer();
+
+    public VestigeExecutorServiceFactory(final VestigeReaper vestigeReaper, final ThreadFactory threadFactory, final LogbackExecutorConfiguration configuration) {
+        this(vestigeReaper, threadFactory, null, configuration);
+    }
+
+    /**
+     * @param virtualThreadFactory used by {@link ExecutorType#VIRTUAL}, if null a pool of threadFactory threads is used instead
+     */
+    public VestigeExecutorServiceFactory(final VestigeReaper vestigeReaper, final ThreadFactory threadFactory, final ThreadFactory virtualThreadFactory,
+            final LogbackExecutorConfiguration configuration) {
+        this(vestigeReaper, new LogbackThreadFactories(threadFactory, virtualThreadFactory), configuration);
+    }
+
+    /**
+     * @param threadFactories keeps the thread factories strongly reachable while this ExecutorServiceFactory is not GC
+     */
+    public VestigeExecutorServiceFactory(final VestigeReaper vestigeReaper, final LogbackThreadFactories threadFactories,
+            final LogbackExecutorConfiguration configuration) {
+        this.applicationReaper = new ApplicationReaper(vestigeReaper);
+        this.configuration = configuration;
+        if (configuration.getApplicationName() != null) {
+            this.applicationName = configuration.getApplicationName();
+        } else {
+            this.applicationName = nextApplicationName();
+        }
+        this.threadFactories = threadFactories;
+        threadFactories.setExecutorDrainer(executorDrainer);
+        threadFactories.setApplicationReaper(applicationReaper);
+        threadFactories.setApplicationName(applicationName);
+    }
+
+    /**
+     * @return a name for an application which has none
+     */
+    public static String nextApplicationName() {
+        return "application-" + APPLICATION_NUMBER.getAndIncrement();
+    }
+
+    /**
+     * @return registers the delegates to reap with the application
+     */
+    public ApplicationReaper getApplicationReaper() {
+        return applicationReaper;
+    }
+
+    public LogbackThreadFactories getThreadFactories() {
+        return threadFactories;
+    }
+
+    /**
+     * @return drains the executors created by this factory
+     */
+    public ExecutorDrainer getExecutorDrainer() {
+        return executorDrainer;
+    }
+
+    public LogbackExecutorConfiguration getConfiguration() {
+        return configuration;
+    }
+
+    /**
+     * @return null if active cleanup is not configured
+     */
+    public synchronized ExecutorCleaner getExecutorCleaner() {
+        if (executorCleaner == null && configuration.isActiveCleanup()) {
+            ScheduledThreadPoolExecutor pollingExecutor = new ScheduledThreadPoolExecutor(1, threadFactories.getWeakThreadFactory());
+            executorCleaner = new ExecutorCleaner();
+            executorCleaner.start(pollingExecutor);
+            applicationReaper.addReapable(pollingExecutor);
+        }
+        return executorCleaner;
+    }
+
+    /**
+     * @return null if slow task detection is not configured
+     */
+    public synchronized TaskTracer getTaskTracer() {
+        if (taskTracer == null && configuration.getSlowTaskThresholdMillis() > 0) {
+            ScheduledThreadPoolExecutor watchdogExecutor = new ScheduledThreadPoolExecutor(1, threadFactories.getWeakThreadFactory());
+            taskTracer = new TaskTracer(applicationName, TimeUnit.MILLISECONDS.toNanos(configuration.getSlowTaskThresholdMillis()));
+            taskTracer.start(watchdogExecutor);
+            applicationReaper.addReapable(watchdogExecutor);
+            executorDrainer.addStopHelper(new ExecutorServiceReaperHelper(watchdogExecutor));
+            registerMBean(taskTracer, "TaskTracer", "logback");
+        }
+        return taskTracer;
+    }
+
+    /**
+     * @param executorService reaped if neither it nor its rejection handler would keep the application loaded
+     */
+    private void reapWithApplication(final ExecutorService executorService) {
+        applicationReaper.addReapable(executorService);
+    }
+
+    /**
+     * @return true if cancelled tasks leave the delay queue at once (Java 7+), otherwise the executor must be purged
+     */
+    private static boolean setRemoveOnCancelPolicy(final ScheduledThreadPoolExecutor scheduledThreadPoolExecutor) {
+        try {
+            ScheduledThreadPoolExecutor.class.getMethod("setRemoveOnCancelPolicy", boolean.class).invoke(scheduledThreadPoolExecutor, Boolean.TRUE);
+            return true;
+        } catch (Exception e) {
+            // java 6
+            return false;
+        }
+    }
+
+    private ExecutorMetrics createMetrics(final ThreadPoolExecutor pool, final String kind, final AtomicLong purgedCount, final AtomicLong rejectedCount,
+            final AtomicLong droppedCount) {
+        ExecutorMetrics metrics = new ExecutorMetrics(pool, purgedCount, rejectedCount, droppedCount);
+        registerMBean(metrics, "Executor", kind + "-" + executorNumber.getAndIncrement());
+        return metrics;
+    }
+
+    /**
+     * The MBean is unregistered when logback is stopped or, if the enhancer is shared, when the application is reaped. When the enhancer is loaded with the
+     * application the MBean server keeps it loaded, so only the stop unregisters the MBean.
+     */
+    private void registerMBean(final Object mbean, final String type, final String name) {
+        MBeanReaperHelper mBeanReaperHelper = MBeanReaperHelper.register(mbean, type, applicationName, name);
+        if (mBeanReaperHelper != null) {
+            executorDrainer.addStopHelper(mBeanReaperHelper);
+            applicationReaper.addReapable(mBeanReaperHelper.getJdkReaperHelper());
+        }
+    }
+
+    /**
+     * @param pool the delegate if it is a {@link ThreadPoolExecutor}, null otherwise
+     */
+    private ScheduledExecutorService meter(final ScheduledExecutorService delegate, final ThreadPoolExecutor pool, final AtomicLong purgedCount) {
+        if (!configuration.isMetrics()) {
+            return delegate;
+        }
+        return new MeteredScheduledExecutorService(delegate, createMetrics(pool, "scheduledExecutor", purgedCount, new AtomicLong(), new AtomicLong()), true);
+    }
+
+    /**
+     * @param pool the pool behind delegate, null if there is none
+     * @param overflowExecutorService the front of pool counting its rejections, null if delegate throws them
+     */
+    private ExecutorService meter(final ExecutorService delegate, final ThreadPoolExecutor pool, final OverflowExecutorService overflowExecutorService,
+            final AtomicLong rejectedCount, final AtomicLong droppedCount) {
+        if (!configuration.isMetrics()) {
+            return delegate;
+        }
+        return new MeteredExecutorService(delegate, createMetrics(pool, "executor", new AtomicLong(), rejectedCount, droppedCount), overflowExecutorService == null);
+    }
+
+    /**
+     * Give a low priority pool to the executor if configured. The pool is a JDK one, reaped with the application, its threads stop when idle.
+     */
+    private void addLowPriorityTier(final WeakThreadPoolExecutor weakThreadPoolExecutor) {
+        int lowPriorityPoolSize = configuration.getLowPriorityPoolSize();
+        if (lowPriorityPoolSize <= 0 || configuration.getLowPriorityTasks().isEmpty()) {
+            return;
+        }
+        ThreadPoolExecutor lowPriorityPool = new ThreadPoolExecutor(lowPriorityPoolSize, lowPriorityPoolSize, getIdleKeepAliveMillis(), TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), threadFactories.getWeakLowPriorityThreadFactory());
+        lowPriorityPool.allowCoreThreadTimeOut(true);
+        reapWithApplication(lowPriorityPool);
+        ExecutorService lowPriorityDelegate = lowPriorityPool;
+        String cpuSet = configuration.getLowPriorityCpuSet();
+        if (cpuSet != null && cpuSet.trim().length() != 0) {
+            lowPriorityDelegate = new CpuSetExecutorService(lowPriorityPool, cpuSet.trim());
+        }
+        weakThreadPoolExecutor.setLowPriorityTier(lowPriorityDelegate, configuration.getLowPriorityTasks());
+    }
+
+    @Override
+    public ScheduledExecutorService newScheduledExecutorService() {
+        final ScheduledExecutorService delegate;
+        ThreadPoolExecutor pool = null;
+        ThreadPoolExecutor purgedPool = null;
+        if (configuration.getSchedulerType() == SchedulerType.SHARED) {
+            SharedScheduledExecutorView view = SharedScheduler.acquire(threadFactories.getWeakThreadFactory(), configuration.getScheduledPoolSize());
+            // the view detaches from the shared engine when logback shuts it down or, if the enhancer is shared, when the application is reaped
+            applicationReaper.addReapable(view.newDetachReaperHelper(), view);
+            delegate = view;
+        } else if (configuration.getSchedulerType() == SchedulerType.WHEEL) {
+            ScheduledThreadPoolExecutor runner = new ScheduledThreadPoolExecutor(configuration.getScheduledPoolSize(), threadFactories.getWeakThreadFactory());
+            // the runner only holds wake-ups of the wheel, cancelled ones are rare
+            setRemoveOnCancelPolicy(runner);
+            // the wheel is not a JDK class, its runner is what the reaper can stop
+            reapWithApplication(runner);
+            delegate = new TimingWheelScheduledExecutorService(runner, TimeUnit.MICROSECONDS.toNanos(Math.max(1, configuration.getWheelTickMicros())));
+        } else {
+            ScheduledThreadPoolExecutor scheduledThreadPoolExecutor = new ScheduledThreadPoolExecutor(configuration.getScheduledPoolSize(),
+                    threadFactories.getWeakThreadFactory());
+            if (!setRemoveOnCancelPolicy(scheduledThreadPoolExecutor)) {
+                // cancelled periodic tasks would wake a thread until their next execution time
+                purgedPool = scheduledThreadPoolExecutor;
+            }
+            pool = scheduledThreadPoolExecutor;
+            delegate = scheduledThreadPoolExecutor;
+        }
+        ExecutorCleaner cleaner = getExecutorCleaner();
+        AtomicLong purgedCount = new AtomicLong();
+        WeakScheduledThreadPoolExecutor weakScheduledThreadPoolExecutor = new WeakScheduledThreadPoolExecutor(meter(delegate, pool, purgedCount),
+                configuration.isCacheWeakRunnable(), cleaner, purgedPool, purgedCount, configuration.isCoalescePeriodicTasks());
+        weakScheduledThreadPoolExecutor.setTaskTracer(getTaskTracer());
+        addLowPriorityTier(weakScheduledThreadPoolExecutor);
+        if (configuration.getSchedulerType() != SchedulerType.SHARED) {
+            reapWithApplication(delegate);
+        }
+        if (cleaner != null) {
+            cleaner.shutdownWhenCollected(weakScheduledThreadPoolExecutor, delegate);
+        }
+        executorDrainer.register(weakScheduledThreadPoolExecutor);
+        return weakScheduledThreadPoolExecutor;
+    }
+
+    /**
+     * @return the configured keep alive, or a default one for the executors whose idle threads must stop
+     */
+    private long getIdleKeepAliveMillis() {
+        long keepAliveMillis = configuration.getKeepAliveMillis();
+        if (keepAliveMillis <= 0) {
+            return LogbackExecutorConfiguration.DEFAULT_IDLE_KEEP_ALIVE_MILLIS;
+        }
+        return keepAliveMillis;
+    }
+
+    /**
+     * @return the queue type of the adaptive pool
+     */
+    private QueueType getAdaptiveQueueType() {
+        QueueType queueType = configuration.getQueueType();
+        if (queueType == QueueType.SYNCHRONOUS) {
+            // tasks must wait in a queue to measure their wait
+            return QueueType.LINKED;
+        }
+        return queueType;
+    }
+
+    private AdaptiveThreadPoolExecutor newAdaptiveThreadPoolExecutor() {
+        // threads must time out for the pool to shrink
+        long keepAliveMillis = getIdleKeepAliveMillis();
+        int maxCoreSize = Math.min(configuration.getMaxPoolSize(), GlobalThreadBudget.THREADS_PER_PROCESSOR * CpuQuota.getEffectiveProcessors());
+        return new AdaptiveThreadPoolExecutor(maxCoreSize, configuration.getMaxPoolSize(), keepAliveMillis, TimeUnit.MILLISECONDS,
+                getAdaptiveQueueType().createQueue(configuration.getQueueCapacity()), threadFactories.getWeakThreadFactory(),
+                new ThreadPoolExecutor.AbortPolicy(), TimeUnit.MICROSECONDS.toNanos(configuration.getTargetQueueWaitMicros()),
+                TimeUnit.MILLISECONDS.toNanos(configuration.getAdaptiveIntervalMillis()), GlobalThreadBudget.getInstance());
+    }
+
+    @Override
+    public ExecutorService newExecutorService() {
+        final ExecutorService delegate;
+        ThreadPoolExecutor pool = null;
+        // rejections of a pool are handled by the overflow policy in front of it, so the pool keeps the JDK abort policy
+        OverflowExecutorService overflowExecutorService = null;
+        AtomicLong rejectedCount = new AtomicLong();
+        AtomicLong droppedCount = new AtomicLong();
+        // a batching delegate is not reaped but its pool is, enhancer executors are only reaped when the enhancer is shared
+        ExecutorService reapable = null;
+        WeakThreadFactory weakVirtualThreadFactory = null;
+        if (configuration.getExecutorType() == ExecutorType.VIRTUAL) {
+            weakVirtualThreadFactory = threadFactories.getWeakVirtualThreadFactory();
+        }
+        if (weakVirtualThreadFactory != null) {
+            delegate = VirtualThreads.newThreadPerTaskExecutor(weakVirtualThreadFactory);
+            reapable = delegate;
+        } else if (configuration.getExecutorType() == ExecutorType.RING_BUFFER) {
+            delegate = new RingBufferExecutorService(threadFactories.getWeakThreadFactory(), configuration.getMaxPoolSize(), configuration.getQueueCapacity(),
+                    configuration.getWaitStrategy(), configuration.getOverflowPolicy(), TimeUnit.MILLISECONDS.toNanos(getIdleKeepAliveMillis()));
+            reapable = delegate;
+        } else if (configuration.getExecutorType() == ExecutorType.FORK_JOIN && ForkJoinPools.isAvailable()) {
+            int parallelism = Math.max(1, Math.min(configuration.getMaxPoolSize(), CpuQuota.getEffectiveProcessors()));
+            delegate = ForkJoinPools.newAsyncForkJoinPool(parallelism, threadFactories.getWeakForkJoinWorkerThreadFactory());
+            reapable = delegate;
+        } else if (configuration.getExecutorType() == ExecutorType.ADAPTIVE) {
+            pool = newAdaptiveThreadPoolExecutor();
+            reapable = pool;
+            overflowExecutorService = new OverflowExecutorService(pool, configuration.createRejectedExecutionHandler(getAdaptiveQueueType()), rejectedCount,
+                    droppedCount);
+            delegate = overflowExecutorService;
+        } else {
+            pool = new ThreadPoolExecutor(configuration.getCorePoolSize(), configuration.getMaxPoolSize(), configuration.getKeepAliveMillis(), TimeUnit.MILLISECONDS,
+                    configuration.getQueueType().createQueue(configuration.getQueueCapacity()), threadFactories.getWeakThreadFactory(),
+                    new ThreadPoolExecutor.AbortPolicy());
+            reapable = pool;
+            overflowExecutorService = new OverflowExecutorService(pool, configuration.createRejectedExecutionHandler(configuration.getQueueType()), rejectedCount,
+                    droppedCount);
+            if (configuration.getExecutorType() == ExecutorType.BATCHING) {
+                delegate = new BatchingExecutorService(overflowExecutorService, configuration.getBatchSize(),
+                        TimeUnit.MICROSECONDS.toNanos(configuration.getBatchWindowMicros()), configuration.getMaxPoolSize());
+                // the pool only sees drainers
+                pool = null;
+            } else {
+                delegate = overflowExecutorService;
+            }
+        }
+        final WeakThreadPoolExecutor weakThreadPoolExecutor = new WeakThreadPoolExecutor(meter(delegate, pool, overflowExecutorService, rejectedCount, droppedCount),
+                configuration.isCacheWeakRunnable());
+        weakThreadPoolExecutor.setTaskTracer(getTaskTracer());
+        addLowPriorityTier(weakThreadPoolExecutor);
+        if (reapable != null) {
+            reapWithApplication(reapable);
+        }
+        ExecutorCleaner cleaner = getExecutorCleaner();
+        if (cleaner != null) {
+            cleaner.shutdownWhenCollected(weakThreadPoolExecutor, delegate);
+        }
+        executorDrainer.register(weakThreadPoolExecutor);
+        return weakThreadPoolExecutor;
+    }
+
+}
@@ -0,0 +1,82 @@
+/*
+ * This file is part of Vestige.
+ *
+ * Vestige is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Vestige is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Vestige.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.gaellalire.vestige.logback_enhancer;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinPool.ForkJoinWorkerThreadFactory;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Worker threads of a {@link ForkJoinPool} cannot be created by a {@link ThreadFactory}, they are constructed by a short lived thread of the given factory so
+ * they inherit its thread group and access control context, and take its name and context class loader. The worker replaces its short lived thread in the
+ * {@link ThreadAccounting}. Java 7 API, only loaded by {@link ForkJoinPools}.
+ * @author Gael Lalire
+ */
+public class VestigeForkJoinWorkerThreadFactory implements ForkJoinWorkerThreadFactory {
+
+    private final ThreadFactory threadFactory;
+
+    private final ThreadAccounting threadAccounting;
+
+    /**
+     * @param threadAccounting may be null
+     */
+    public VestigeForkJoinWorkerThreadFactory(final ThreadFactory threadFactory, final ThreadAccounting threadAccounting) {
+        this.threadFactory = threadFactory;
+        this.threadAccounting = threadAccounting;
+    }
+
+    @Override
+    public ForkJoinWorkerThread newThread(final ForkJoinPool pool) {
+        final ForkJoinWorkerThread[] workerThread = new ForkJoinWorkerThread[1];
+        Thread creatorThread = threadFactory.newThread(new Runnable() {
+
+            @Override
+            public void run() {
+                workerThread[0] = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            }
+        });
+        if (creatorThread == null) {
+            // the pool does not add a worker
+            return null;
+        }
+        creatorThread.start();
+        boolean interrupted = false;
+        while (creatorThread.isAlive()) {
+            try {
+                creatorThread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        ForkJoinWorkerThread thread = workerThread[0];
+        if (thread != null) {
+            thread.setName(creatorThread.getName());
+            thread.setContextClassLoader(creatorThread.getContextClassLoader());
+            if (threadAccounting != null) {
+                threadAccounting.threadReplaced(creatorThread, thread);
+            }
+        }
+        return thread;
+    }
+
+}
@@ -0,0 +1,107 @@
+/*
+ * This file is part of Vestige.
+ *
+ * Vestige is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Vestige is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Vestige.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.gaellalire.vestige.logback_enhancer;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Access to JDK 21 virtual threads by reflection, this project is compiled for older JDK.
+ * @author Gael Lalire
+ */
+public final class VirtualThreads {
+
+    private static final Method OF_VIRTUAL;
+
+    private static final Method BUILDER_NAME;
+
+    private static final Method BUILDER_FACTORY;
+
+    private static final Method NEW_THREAD_PER_TASK_EXECUTOR;
+
+    static {
+        Method ofVirtual = null;
+        Method builderName = null;
+        Method builderFactory = null;
+        Method newThreadPerTaskExecutor = null;
+        try {
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builderName = builderClass.getMethod("name", String.class, long.class);
+            builderFactory = builderClass.getMethod("factory");
+            newThreadPerTaskExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+        } catch (Exception e) {
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        BUILDER_NAME = builderName;
+        BUILDER_FACTORY = builderFactory;
+        NEW_THREAD_PER_TASK_EXECUTOR = newThreadPerTaskExecutor;
+    }
+
+    private VirtualThreads() {
+    }
+
+    public static boolean isAvailable() {
+        return OF_VIRTUAL != null;
+    }
+
+    private static Object invoke(final Method method, final Object target, final Object... args) {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return a factory of virtual threads named prefix followed by a counter
+     * @throws UnsupportedOperationException if virtual threads are not available
+     */
+    public static ThreadFactory newThreadFactory(final String prefix) {
+        if (OF_VIRTUAL == null) {
+            throw new UnsupportedOperationException("Virtual threads require JDK 21");
+        }
+        Object builder = invoke(OF_VIRTUAL, null);
+        builder = invoke(BUILDER_NAME, builder, prefix, 1L);
+        return (ThreadFactory) invoke(BUILDER_FACTORY, builder);
+    }
+
+    /**
+     * @throws UnsupportedOperationException if virtual threads are not available
+     */
+    public static ExecutorService newThreadPerTaskExecutor(final ThreadFactory threadFactory) {
+        if (NEW_THREAD_PER_TASK_EXECUTOR == null) {
+            throw new UnsupportedOperationException("Virtual threads require JDK 21");
+        }
+        return (ExecutorService) invoke(NEW_THREAD_PER_TASK_EXECUTOR, null, threadFactory);
+    }
+
+}
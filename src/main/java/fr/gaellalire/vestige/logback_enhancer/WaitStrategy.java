@@ -0,0 +1,72 @@
+/*
+ * This file is part of Vestige.
+ *
+ * Vestige is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Vestige is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Vestige.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.gaellalire.vestige.logback_enhancer;
+
+/**
+ * How an idle thread of {@link RingBufferExecutorService} waits for a task. Whatever the strategy, an idle thread ends up parked so an idle application does
+ * not burn CPU, the strategy only changes what happens before.
+ * @author Gael Lalire
+ */
+public enum WaitStrategy {
+
+    /**
+     * Busy spin before parking, lowest latency, one core used while spinning.
+     */
+    SPIN(10000) {
+        @Override
+        public void backOff() {
+            // busy spin
+        }
+    },
+
+    /**
+     * Yield before parking.
+     */
+    YIELD(100) {
+        @Override
+        public void backOff() {
+            Thread.yield();
+        }
+    },
+
+    /**
+     * Park at once, producers unpark a waiting thread.
+     */
+    PARK(0) {
+        @Override
+        public void backOff() {
+            // never called
+        }
+    };
+
+    private final int tries;
+
+    private WaitStrategy(final int tries) {
+        this.tries = tries;
+    }
+
+    /**
+     * @return number of {@link #backOff()} calls before parking
+     */
+    public int getTries() {
+        return tries;
+    }
+
+    public abstract void backOff();
+
+}
@@ -0,0 +1,189 @@
+/*
+ * This file is part of Vestige.
+ *
+ * Vestige is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Vestige is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Vestige.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.gaellalire.vestige.logback_enhancer;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+
+/**
+ * Identity keyed cache whose keys are weakly referenced, an entry is removed once its key is collected. A value must not strongly reference its key, or the
+ * entry would never be removed.
+ * @param <K> type of the keys
+ * @param <V> type of the values
+ * @author Gael Lalire
+ */
+public abstract class WeakIdentityCache<K, V> {
+
+    private static final int SEGMENT_COUNT = 16;
+
+    private static final int INITIAL_SEGMENT_CAPACITY = 16;
+
+    private static final int DEFAULT_MAX_SEGMENT_SIZE = 1024;
+
+    private final Segment<K, V>[] segments;
+
+    public WeakIdentityCache() {
+        this(DEFAULT_MAX_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param maxSegmentSize when a segment is full, values are created without being cached
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public WeakIdentityCache(final int maxSegmentSize) {
+        segments = new Segment[SEGMENT_COUNT];
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            segments[i] = new Segment<K, V>(this, maxSegmentSize);
+        }
+    }
+
+    /**
+     * Called with the lock of a segment held.
+     */
+    protected abstract V create(K key);
+
+    public V get(final K key) {
+        int hash = System.identityHashCode(key);
+        // low bits select the segment, the next ones select the bucket
+        return segments[hash & (SEGMENT_COUNT - 1)].get(key, hash);
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment<K, V> segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    /**
+     * @author Gael Lalire
+     */
+    private static final class Entry<K, V> extends WeakReference<K> {
+
+        private final int hash;
+
+        private final V value;
+
+        private Entry<K, V> next;
+
+        Entry(final K key, final int hash, final V value, final Entry<K, V> next, final ReferenceQueue<K> queue) {
+            super(key, queue);
+            this.hash = hash;
+            this.value = value;
+            this.next = next;
+        }
+
+    }
+
+    /**
+     * @author Gael Lalire
+     */
+    private static final class Segment<K, V> {
+
+        private final ReferenceQueue<K> queue = new ReferenceQueue<K>();
+
+        private final WeakIdentityCache<K, V> cache;
+
+        private final int maxSize;
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        private Entry<K, V>[] table = new Entry[INITIAL_SEGMENT_CAPACITY];
+
+        private int size;
+
+        Segment(final WeakIdentityCache<K, V> cache, final int maxSize) {
+            this.cache = cache;
+            this.maxSize = maxSize;
+        }
+
+        private static int indexFor(final int hash, final int length) {
+            return (hash >>> 4) & (length - 1);
+        }
+
+        public synchronized int size() {
+            expungeStaleEntries();
+            return size;
+        }
+
+        public synchronized V get(final K key, final int hash) {
+            int index = indexFor(hash, table.length);
+            for (Entry<K, V> entry = table[index]; entry != null; entry = entry.next) {
+                if (entry.hash == hash && entry.get() == key) {
+                    return entry.value;
+                }
+            }
+            // miss path only, the hit path above does not allocate
+            expungeStaleEntries();
+            V value = cache.create(key);
+            if (size >= maxSize) {
+                return value;
+            }
+            if (size >= table.length - (table.length >>> 2)) {
+                resize();
+                index = indexFor(hash, table.length);
+            }
+            table[index] = new Entry<K, V>(key, hash, value, table[index], queue);
+            size++;
+            return value;
+        }
+
+        private void resize() {
+            Entry<K, V>[] oldTable = table;
+            @SuppressWarnings({"unchecked", "rawtypes"})
+            Entry<K, V>[] newTable = new Entry[oldTable.length * 2];
+            for (Entry<K, V> head : oldTable) {
+                Entry<K, V> entry = head;
+                while (entry != null) {
+                    Entry<K, V> next = entry.next;
+                    int index = indexFor(entry.hash, newTable.length);
+                    entry.next = newTable[index];
+                    newTable[index] = entry;
+                    entry = next;
+                }
+            }
+            table = newTable;
+        }
+
+        private void expungeStaleEntries() {
+            Object stale = queue.poll();
+            while (stale != null) {
+                Entry<?, ?> staleEntry = (Entry<?, ?>) stale;
+                int index = indexFor(staleEntry.hash, table.length);
+                Entry<K, V> previous = null;
+                Entry<K, V> entry = table[index];
+                while (entry != null) {
+                    if (entry == staleEntry) {
+                        if (previous == null) {
+                            table[index] = entry.next;
+                        } else {
+                            previous.next = entry.next;
+                        }
+                        size--;
+                        break;
+                    }
+                    previous = entry;
+                    entry = entry.next;
+                }
+                stale = queue.poll();
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,46 @@
+/*
+ * This file is part of Vestige.
+ *
+ * Vestige is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Vestige is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Vestige.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.gaellalire.vestige.logback_enhancer;
+
+import fr.gaellalire.vestige.core.weak.WeakRunnable;
+
+/**
+ * Identity keyed cache of {@link WeakRunnable}. Logback submits the same command over and over (appender workers, compression tasks), with this cache the wrapper
+ * is only allocated the first time. Keys are weakly referenced so the cache does not retain commands and a {@link WeakRunnable} only weakly references its command,
+ * so an entry never prevents its own collection.
+ * @author Gael Lalire
+ */
+public class WeakRunnableCache extends WeakIdentityCache<Runnable, WeakRunnable> {
+
+    public WeakRunnableCache() {
+        super();
+    }
+
+    /**
+     * @param maxSegmentSize when a segment is full, commands are wrapped without being cached
+     */
+    public WeakRunnableCache(final int maxSegmentSize) {
+        super(maxSegmentSize);
+    }
+
+    @Override
+    protected WeakRunnable create(final Runnable command) {
+        return new WeakRunnable(command);
+    }
+
+}
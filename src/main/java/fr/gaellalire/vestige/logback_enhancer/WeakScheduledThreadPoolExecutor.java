@@ -17,133 +17,203 @@
 
 package fr.gaellalire.vestige.logback_enhancer;
 
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.Set;
 import java.util.concurrent.Callable;
-import java.util.concurrent.Delayed;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
-import fr.gaellalire.vestige.core.weak.WeakCallable;
 import fr.gaellalire.vestige.core.weak.WeakRunnable;
 
+
 /**
  * @author Gael Lalire
  */
 public class WeakScheduledThreadPoolExecutor extends WeakThreadPoolExecutor implements ScheduledExecutorService {
 
+    public static final long EXPUNGE_INTERVAL_MILLIS = 1000;
+
     private ScheduledExecutorService delegate;
 
-    public WeakScheduledThreadPoolExecutor(final ScheduledExecutorService delegate) {
-        super(delegate);
-        this.delegate = delegate;
-    }
+    private ExecutorCleaner executorCleaner;
 
-    public static <T> ScheduledFuture<T> getHandlingScheduleFuture(final ScheduledFuture<T> future, final Runnable runnable) {
-        return new ScheduledFuture<T>() {
+    private ThreadPoolExecutor pool;
 
-            @SuppressWarnings("unused")
-            private Runnable runnableHandler = runnable;
+    private final AtomicLong collectedCount;
 
-            @Override
-            public boolean cancel(final boolean mayInterruptIfRunning) {
-                return future.cancel(mayInterruptIfRunning);
-            }
+    private PeriodicTaskCoalescer periodicTaskCoalescer;
 
-            @Override
-            public boolean isCancelled() {
-                return future.isCancelled();
-            }
+    private final ReferenceQueue<Runnable> collectedCommands = new ReferenceQueue<Runnable>();
 
-            @Override
-            public boolean isDone() {
-                return future.isDone();
-            }
+    // periodic tasks tracked while there is no executor cleaner
+    private final Set<PeriodicTaskReference> periodicTasks = Collections.newSetFromMap(new ConcurrentHashMap<PeriodicTaskReference, Boolean>());
 
-            @Override
-            public T get() throws InterruptedException, ExecutionException {
-                return future.get();
-            }
+    private final AtomicBoolean expungeScheduled = new AtomicBoolean();
 
-            @Override
-            public T get(final long timeout, final TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
-                return future.get(timeout, unit);
-            }
+    // the delegate only gets a weak runnable of it, so it does not keep this executor, nor the enhancer, reachable
+    private final Runnable expunger = new Runnable() {
 
-            @Override
-            public long getDelay(final TimeUnit unit) {
-                return future.getDelay(unit);
-            }
+        @Override
+        public void run() {
+            expungeScheduled.set(false);
+            expungeCollectedTasks();
+            scheduleExpunge();
+        }
+    };
 
-            @Override
-            public int compareTo(final Delayed o) {
-                return future.compareTo(o);
-            }
-        };
+    public WeakScheduledThreadPoolExecutor(final ScheduledExecutorService delegate) {
+        this(delegate, false);
     }
 
-    public static <T> ScheduledFuture<T> getHandlingScheduleFuture(final ScheduledFuture<T> future, final Callable<?> callable) {
-        return new ScheduledFuture<T>() {
+    public WeakScheduledThreadPoolExecutor(final ScheduledExecutorService delegate, final boolean cacheWeakRunnable) {
+        this(delegate, cacheWeakRunnable, null, null, new AtomicLong());
+    }
 
-            @SuppressWarnings("unused")
-            private Callable<?> callableHandler = callable;
+    /**
+     * @param executorCleaner cancels periodic tasks whose command is collected, may be null
+     * @param pool the pool behind delegate, purged when a periodic task is cancelled, null if it removes cancelled tasks by itself
+     * @param collectedCount incremented when a periodic task is cancelled because its command is collected
+     */
+    public WeakScheduledThreadPoolExecutor(final ScheduledExecutorService delegate, final boolean cacheWeakRunnable, final ExecutorCleaner executorCleaner,
+            final ThreadPoolExecutor pool, final AtomicLong collectedCount) {
+        this(delegate, cacheWeakRunnable, executorCleaner, pool, collectedCount, false);
+    }
 
-            @Override
-            public boolean cancel(final boolean mayInterruptIfRunning) {
-                return future.cancel(mayInterruptIfRunning);
-            }
+    /**
+     * @param coalescePeriodicTasks run periodic tasks with the same command class and period from a single delegate task, see {@link PeriodicTaskCoalescer}
+     */
+    public WeakScheduledThreadPoolExecutor(final ScheduledExecutorService delegate, final boolean cacheWeakRunnable, final ExecutorCleaner executorCleaner,
+            final ThreadPoolExecutor pool, final AtomicLong collectedCount, final boolean coalescePeriodicTasks) {
+        super(delegate, cacheWeakRunnable);
+        this.delegate = delegate;
+        this.executorCleaner = executorCleaner;
+        this.pool = pool;
+        this.collectedCount = collectedCount;
+        if (coalescePeriodicTasks) {
+            periodicTaskCoalescer = new PeriodicTaskCoalescer(delegate, pool, collectedCount);
+        }
+    }
 
-            @Override
-            public boolean isCancelled() {
-                return future.isCancelled();
-            }
+    /**
+     * @return number of delegate tasks running coalesced periodic tasks, 0 if periodic tasks are not coalesced
+     */
+    public int getCoalescedGroupCount() {
+        if (periodicTaskCoalescer == null) {
+            return 0;
+        }
+        return periodicTaskCoalescer.getGroupCount();
+    }
 
-            @Override
-            public boolean isDone() {
-                return future.isDone();
-            }
+    /**
+     * @return number of periodic tasks cancelled because their command was collected
+     */
+    public long getCollectedCount() {
+        return collectedCount.get();
+    }
 
-            @Override
-            public T get() throws InterruptedException, ExecutionException {
-                return future.get();
+    /**
+     * Cancel the periodic tasks whose command was collected. The delegate only knows the {@link fr.gaellalire.vestige.core.weak.WeakRunnable} of a periodic
+     * task, which would otherwise run as a no-op until shutdown. Without executor cleaner, this is done each time a task is scheduled and, while periodic
+     * tasks are tracked, every {@value #EXPUNGE_INTERVAL_MILLIS} ms by a task of the delegate.
+     */
+    public void expungeCollectedTasks() {
+        Reference<? extends Runnable> reference = collectedCommands.poll();
+        while (reference != null) {
+            PeriodicTaskReference periodicTaskReference = (PeriodicTaskReference) reference;
+            if (periodicTasks.remove(periodicTaskReference) && periodicTaskReference.future.cancel(false)) {
+                collectedCount.incrementAndGet();
+                if (pool != null) {
+                    pool.purge();
+                }
             }
+            reference = collectedCommands.poll();
+        }
+    }
 
-            @Override
-            public T get(final long timeout, final TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
-                return future.get(timeout, unit);
-            }
+    private ScheduledFuture<?> cancelWhenCollected(final Runnable command, final ScheduledFuture<?> future) {
+        if (executorCleaner != null) {
+            executorCleaner.cancelWhenCollected(command, future, pool, collectedCount);
+        } else {
+            periodicTasks.add(new PeriodicTaskReference(command, collectedCommands, future));
+            scheduleExpunge();
+        }
+        return future;
+    }
 
-            @Override
-            public long getDelay(final TimeUnit unit) {
-                return future.getDelay(unit);
-            }
+    private void scheduleExpunge() {
+        if (periodicTasks.isEmpty() || !expungeScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            delegate.schedule(new WeakRunnable(expunger), EXPUNGE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // the delegate is shut down, it cancelled its periodic tasks
+            expungeScheduled.set(false);
+        }
+    }
 
-            @Override
-            public int compareTo(final Delayed o) {
-                return future.compareTo(o);
-            }
-        };
+    public static <T> ScheduledFuture<T> getHandlingScheduleFuture(final ScheduledFuture<T> future, final Runnable runnable) {
+        return new StrongRefFuture<T>(future, runnable);
+    }
+
+    public static <T> ScheduledFuture<T> getHandlingScheduleFuture(final ScheduledFuture<T> future, final Callable<?> callable) {
+        return new StrongRefFuture<T>(future, callable);
     }
 
     @Override
     public ScheduledFuture<?> scheduleWithFixedDelay(final Runnable command, final long initialDelay, final long delay, final TimeUnit unit) {
-        return getHandlingScheduleFuture(delegate.scheduleWithFixedDelay(new WeakRunnable(command), initialDelay, delay, unit), command);
+        expungeCollectedTasks();
+        if (periodicTaskCoalescer != null) {
+            return getHandlingScheduleFuture(periodicTaskCoalescer.schedule(command, initialDelay, delay, unit, false), command);
+        }
+        return getHandlingScheduleFuture(cancelWhenCollected(command, delegate.scheduleWithFixedDelay(wrap(command), initialDelay, delay, unit)),
+                command);
     }
 
     @Override
     public ScheduledFuture<?> scheduleAtFixedRate(final Runnable command, final long initialDelay, final long period, final TimeUnit unit) {
-        return getHandlingScheduleFuture(delegate.scheduleAtFixedRate(new WeakRunnable(command), initialDelay, period, unit), command);
+        expungeCollectedTasks();
+        if (periodicTaskCoalescer != null) {
+            return getHandlingScheduleFuture(periodicTaskCoalescer.schedule(command, initialDelay, period, unit, true), command);
+        }
+        return getHandlingScheduleFuture(cancelWhenCollected(command, delegate.scheduleAtFixedRate(wrap(command), initialDelay, period, unit)),
+                command);
     }
 
     @Override
     public <V> ScheduledFuture<V> schedule(final Callable<V> callable, final long delay, final TimeUnit unit) {
-        return getHandlingScheduleFuture(delegate.schedule(new WeakCallable<V>(callable), delay, unit), callable);
+        expungeCollectedTasks();
+        return getHandlingScheduleFuture(delegate.schedule(wrap(callable), delay, unit), callable);
     }
 
     @Override
     public ScheduledFuture<?> schedule(final Runnable command, final long delay, final TimeUnit unit) {
-        return getHandlingScheduleFuture(delegate.schedule(new WeakRunnable(command), delay, unit), command);
+        expungeCollectedTasks();
+        return getHandlingScheduleFuture(delegate.schedule(wrap(command), delay, unit), command);
+    }
+
+    /**
+     * @author Gael Lalire
+     */
+    private static final class PeriodicTaskReference extends WeakReference<Runnable> {
+
+        private final Future<?> future;
+
+        PeriodicTaskReference(final Runnable command, final ReferenceQueue<Runnable> referenceQueue, final Future<?> future) {
+            super(command, referenceQueue);
+            this.future = future;
+        }
+
     }
 
 }
@@ -19,8 +19,8 @@ package fr.gaellalire.vestige.logback_enhancer;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
@@ -38,83 +38,106 @@ public class WeakThreadPoolExecutor implements ExecutorService {
 
     private ExecutorService delegate;
 
-    public WeakThreadPoolExecutor(final ExecutorService delegate) {
-        this.delegate = delegate;
-    }
+    private WeakRunnableCache weakRunnableCache;
 
-    public static <T> List<Future<T>> getHandlingFutures(final List<Future<T>> futures, final Collection<? extends Callable<T>> tasks) {
-        List<Future<T>> futureList = new ArrayList<Future<T>>(futures.size());
-        final Iterator<? extends Callable<T>> taskIterator = tasks.iterator();
-        for (Future<T> future : futures) {
-            futureList.add(getHandlingFuture(future, taskIterator.next()));
-        }
-        return futureList;
-    }
+    private ExecutorService lowPriorityDelegate;
 
-    public static <T> Future<T> getHandlingFuture(final Future<T> future, final Callable<?> callable) {
-        return new Future<T>() {
+    private Set<String> lowPriorityTasks;
 
-            @SuppressWarnings("unused")
-            private Callable<?> callableHandler = callable;
+    private TracedTasks tracedTasks;
 
-            @Override
-            public boolean cancel(final boolean mayInterruptIfRunning) {
-                return future.cancel(mayInterruptIfRunning);
-            }
+    public WeakThreadPoolExecutor(final ExecutorService delegate) {
+        this(delegate, false);
+    }
 
-            @Override
-            public boolean isCancelled() {
-                return future.isCancelled();
-            }
+    /**
+     * @param cacheWeakRunnable reuse the same {@link WeakRunnable} for a command submitted several times
+     */
+    public WeakThreadPoolExecutor(final ExecutorService delegate, final boolean cacheWeakRunnable) {
+        this.delegate = delegate;
+        if (cacheWeakRunnable) {
+            weakRunnableCache = new WeakRunnableCache();
+        }
+    }
 
-            @Override
-            public boolean isDone() {
-                return future.isDone();
-            }
+    /**
+     * Run some tasks, recognized by their class name, in another executor. Only execute and submit are routed, scheduled and invoked tasks always run in the
+     * main delegate.
+     * @param lowPriorityTasks class names of the tasks to run in lowPriorityDelegate
+     */
+    public void setLowPriorityTier(final ExecutorService lowPriorityDelegate, final Set<String> lowPriorityTasks) {
+        this.lowPriorityDelegate = lowPriorityDelegate;
+        this.lowPriorityTasks = lowPriorityTasks;
+    }
 
-            @Override
-            public T get() throws InterruptedException, ExecutionException {
-                return future.get();
-            }
+    /**
+     * Trace the tasks given to the delegate from now on. The trace wrapper of a task lives as long as the task and the delegate only gets a weak reference to
+     * it, so the delegate queue is still free of enhancer objects.
+     * @param taskTracer null to stop tracing
+     */
+    public void setTaskTracer(final TaskTracer taskTracer) {
+        if (taskTracer == null) {
+            tracedTasks = null;
+        } else {
+            tracedTasks = new TracedTasks(taskTracer);
+        }
+    }
 
-            @Override
-            public T get(final long timeout, final TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
-                return future.get(timeout, unit);
-            }
-        };
+    private ExecutorService getDelegate(final Object task) {
+        if (lowPriorityDelegate != null && lowPriorityTasks.contains(task.getClass().getName())) {
+            return lowPriorityDelegate;
+        }
+        return delegate;
     }
 
-    public static <T> Future<T> getHandlingFuture(final Future<T> future, final Runnable task) {
-        return new Future<T>() {
+    protected WeakRunnable getWeakRunnable(final Runnable command) {
+        if (weakRunnableCache == null) {
+            return new WeakRunnable(command);
+        }
+        return weakRunnableCache.get(command);
+    }
 
-            @SuppressWarnings("unused")
-            private Runnable taskHandler = task;
+    /**
+     * @return the task to give to the delegate, a {@link WeakRunnable} of the command or of its trace wrapper if a {@link TaskTracer} is set
+     */
+    protected Runnable wrap(final Runnable command) {
+        TracedTasks traced = tracedTasks;
+        if (traced == null) {
+            return getWeakRunnable(command);
+        }
+        return new WeakRunnable(traced.runnables.get(command));
+    }
 
-            @Override
-            public boolean cancel(final boolean mayInterruptIfRunning) {
-                return future.cancel(mayInterruptIfRunning);
-            }
+    @SuppressWarnings("unchecked")
+    protected <T> Callable<T> wrap(final Callable<T> task) {
+        TracedTasks traced = tracedTasks;
+        if (traced == null) {
+            return new WeakCallable<T>(task);
+        }
+        return new WeakCallable<T>((Callable<T>) traced.callables.get(task));
+    }
 
-            @Override
-            public boolean isCancelled() {
-                return future.isCancelled();
-            }
+    private <T> List<Callable<T>> wrapAll(final Collection<? extends Callable<T>> tasks) {
+        if (tracedTasks == null) {
+            return getTaskList(tasks);
+        }
+        List<Callable<T>> taskList = new ArrayList<Callable<T>>(tasks.size());
+        for (Callable<T> c : tasks) {
+            taskList.add(wrap(c));
+        }
+        return taskList;
+    }
 
-            @Override
-            public boolean isDone() {
-                return future.isDone();
-            }
+    public static <T> List<Future<T>> getHandlingFutures(final List<Future<T>> futures, final Collection<? extends Callable<T>> tasks) {
+        return new HandlingFutureList<T>(futures, tasks);
+    }
 
-            @Override
-            public T get() throws InterruptedException, ExecutionException {
-                return future.get();
-            }
+    public static <T> Future<T> getHandlingFuture(final Future<T> future, final Callable<?> callable) {
+        return new StrongRefFuture<T>(future, callable);
+    }
 
-            @Override
-            public T get(final long timeout, final TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
-                return future.get(timeout, unit);
-            }
-        };
+    public static <T> Future<T> getHandlingFuture(final Future<T> future, final Runnable task) {
+        return new StrongRefFuture<T>(future, task);
     }
 
     public static <T> List<Callable<T>> getTaskList(final Collection<? extends Callable<T>> tasks) {
@@ -128,37 +151,57 @@ public class WeakThreadPoolExecutor implements ExecutorService {
 
     @Override
     public void execute(final Runnable command) {
-        delegate.execute(new WeakRunnable(command));
+        getDelegate(command).execute(wrap(command));
     }
 
     @Override
     public <T> Future<T> submit(final Runnable task, final T result) {
-        return getHandlingFuture(delegate.submit(new WeakRunnable(task), result), task);
+        return getHandlingFuture(getDelegate(task).submit(wrap(task), result), task);
     }
 
     @Override
     public Future<?> submit(final Runnable task) {
-        return getHandlingFuture(delegate.submit(new WeakRunnable(task)), task);
+        return getHandlingFuture(getDelegate(task).submit(wrap(task)), task);
     }
 
     @Override
     public <T> Future<T> submit(final Callable<T> task) {
-        return getHandlingFuture(delegate.submit(new WeakCallable<T>(task)), task);
+        return getHandlingFuture(getDelegate(task).submit(wrap(task)), task);
+    }
+
+    /**
+     * Shut down and let queued tasks run until the timeout, then shut down now.
+     * @return number of tasks which did not run
+     */
+    public int drain(final long timeout, final TimeUnit unit) throws InterruptedException {
+        shutdown();
+        if (awaitTermination(timeout, unit)) {
+            return 0;
+        }
+        return shutdownNow().size();
     }
 
     @Override
     public List<Runnable> shutdownNow() {
-        return delegate.shutdownNow();
+        List<Runnable> notRun = delegate.shutdownNow();
+        if (lowPriorityDelegate != null) {
+            notRun = new ArrayList<Runnable>(notRun);
+            notRun.addAll(lowPriorityDelegate.shutdownNow());
+        }
+        return notRun;
     }
 
     @Override
     public void shutdown() {
         delegate.shutdown();
+        if (lowPriorityDelegate != null) {
+            lowPriorityDelegate.shutdown();
+        }
     }
 
     @Override
     public boolean isTerminated() {
-        return delegate.isTerminated();
+        return delegate.isTerminated() && (lowPriorityDelegate == null || lowPriorityDelegate.isTerminated());
     }
 
     @Override
@@ -169,27 +212,68 @@ public class WeakThreadPoolExecutor implements ExecutorService {
     @Override
     public <T> T invokeAny(final Collection<? extends Callable<T>> tasks, final long timeout, final TimeUnit unit)
             throws InterruptedException, ExecutionException, TimeoutException {
-        return delegate.invokeAny(getTaskList(tasks), timeout, unit);
+        return delegate.invokeAny(wrapAll(tasks), timeout, unit);
     }
 
     @Override
     public <T> T invokeAny(final Collection<? extends Callable<T>> tasks) throws InterruptedException, ExecutionException {
-        return delegate.invokeAny(getTaskList(tasks));
+        return delegate.invokeAny(wrapAll(tasks));
     }
 
     @Override
     public <T> List<Future<T>> invokeAll(final Collection<? extends Callable<T>> tasks, final long timeout, final TimeUnit unit) throws InterruptedException {
-        return getHandlingFutures(delegate.invokeAll(getTaskList(tasks), timeout, unit), tasks);
+        return getHandlingFutures(delegate.invokeAll(wrapAll(tasks), timeout, unit), tasks);
     }
 
     @Override
     public <T> List<Future<T>> invokeAll(final Collection<? extends Callable<T>> tasks) throws InterruptedException {
-        return getHandlingFutures(delegate.invokeAll(getTaskList(tasks)), tasks);
+        return getHandlingFutures(delegate.invokeAll(wrapAll(tasks)), tasks);
     }
 
     @Override
     public boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException {
-        return delegate.awaitTermination(timeout, unit);
+        if (lowPriorityDelegate == null) {
+            return delegate.awaitTermination(timeout, unit);
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        if (!delegate.awaitTermination(timeout, unit)) {
+            return false;
+        }
+        return lowPriorityDelegate.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Trace wrappers keyed by their task, a wrapper only weakly references its task so it is collected with it.
+     * @author Gael Lalire
+     */
+    private final class TracedTasks {
+
+        private final WeakIdentityCache<Runnable, Runnable> runnables;
+
+        private final WeakIdentityCache<Callable<?>, Callable<?>> callables;
+
+        TracedTasks(final TaskTracer taskTracer) {
+            // a wrapper dropped by a full cache would be collected before it runs
+            runnables = new WeakIdentityCache<Runnable, Runnable>(Integer.MAX_VALUE) {
+
+                @Override
+                protected Runnable create(final Runnable command) {
+                    return taskTracer.trace(getWeakRunnable(command), command);
+                }
+            };
+            callables = new WeakIdentityCache<Callable<?>, Callable<?>>(Integer.MAX_VALUE) {
+
+                @Override
+                protected Callable<?> create(final Callable<?> task) {
+                    return trace(taskTracer, task);
+                }
+            };
+        }
+
+        private <T> Callable<T> trace(final TaskTracer taskTracer, final Callable<T> task) {
+            return taskTracer.trace(new WeakCallable<T>(task), task);
+        }
+
     }
 
 }
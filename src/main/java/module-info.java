@@ -4,5 +4,9 @@ module fr.gaellalire.vestige.logback_enhancer {
 
     requires logback.core;
 
+    requires java.management;
+
+    requires static jdk.management;
+
     exports fr.gaellalire.vestige.logback_enhancer;
 }